@@ -0,0 +1,197 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs group membership synchronizations outside of the request threads
+ * (provisioning.async), so a login does not wait for the Crowd writes.
+ * <p/>
+ * There is at most one pending job per user: a job submitted while an older one
+ * of the same user is still waiting replaces it, so a burst of requests results
+ * in one synchronization with the latest attributes. Jobs of one user never run
+ * at the same time. The work queue holds at most provisioning.async.queue.size
+ * users; when it is full, the job runs in the submitting thread instead, which
+ * bounds the memory used by the queue. After shutdown, the jobs that were
+ * already queued still run, and jobs submitted later run in the submitting
+ * thread, so none is lost when a reload replaces the provisioner.
+ * <p/>
+ * Workers are virtual threads when the JVM has them, daemon threads otherwise.
+ */
+public class AsyncProvisioner {
+
+    private final static Log log = LogFactory.getLog(AsyncProvisioner.class);
+
+    private final int threads;
+
+    private final int queueSize;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Map<userid, Runnable> the latest job of each user that has not started yet
+     */
+    private final ConcurrentHashMap pending = new ConcurrentHashMap();
+
+    /**
+     * Map<userid, Boolean> users whose jobs are running
+     */
+    private final ConcurrentHashMap running = new ConcurrentHashMap();
+
+    /**
+     * @param threads   number of workers
+     * @param queueSize the most users waiting for a worker
+     */
+    public AsyncProvisioner(int threads, int queueSize) {
+        this.threads = threads;
+        this.queueSize = queueSize;
+        // unlike CallerRunsPolicy, also runs the job in the caller when the executor is shut down
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue(queueSize), newThreadFactory(), new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                r.run();
+            }
+        });
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Run job for userid in a worker, replacing a job of the user that has not started yet.
+     *
+     * @return the job that was replaced and will not run, or null
+     */
+    public Runnable submit(String userid, Runnable job) {
+        Runnable replaced = (Runnable) pending.put(userid, job);
+        if (replaced == null) {
+            schedule(userid);
+        } else {
+            ShibAuthStatistics.provisioningCoalesced();
+            if (log.isDebugEnabled()) {
+                log.debug("Replaced the pending group synchronization of user " + userid);
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * @return the number of users with a job that has not started yet
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stop accepting work for the workers; the jobs already queued still run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void schedule(final String userid) {
+        executor.execute(new Runnable() {
+            public void run() {
+                drain(userid);
+            }
+        });
+    }
+
+    /**
+     * Run the pending jobs of the user, unless they are already being run.
+     */
+    private void drain(String userid) {
+        if (running.putIfAbsent(userid, Boolean.TRUE) != null) {
+            // the thread running the jobs of the user picks this one up when done
+            return;
+        }
+
+        try {
+            Runnable job;
+            while ((job = (Runnable) pending.remove(userid)) != null) {
+                try {
+                    job.run();
+                } catch (Throwable t) {
+                    log.error("Group synchronization of user " + userid + " failed", t);
+                }
+            }
+        } finally {
+            running.remove(userid);
+        }
+
+        // a job submitted after the last remove, whose own drain returned because this one was running
+        if (pending.containsKey(userid)) {
+            schedule(userid);
+        }
+    }
+
+    /**
+     * @return a factory of virtual threads if the JVM has them, of daemon threads otherwise
+     */
+    private static ThreadFactory newThreadFactory() {
+        try {
+            // Thread.ofVirtual().name("shibauth-provisioning-", 0).factory(), without requiring Java 21 to build
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, "shibauth-provisioning-", Long.valueOf(0));
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug("No virtual threads, using daemon threads for group synchronization: " + e);
+            }
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "shibauth-provisioning-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Set of Strings in which strings that are String#equalsIgnoreCase equal are the same
+ * element, with constant time lookups. Each string is stored under a folded key, built
+ * char by char with Character.toLowerCase(Character.toUpperCase(c)) just like
+ * equalsIgnoreCase compares chars, so the result doesn't depend on the default locale.
+ * <p/>
+ * The set iterates over the strings as they were first added. Null elements are not
+ * supported.
+ */
+public class CaseInsensitiveStringSet extends AbstractSet {
+
+    /**
+     * Folded key to the string as it was added.
+     */
+    private final Map strings;
+
+    public CaseInsensitiveStringSet() {
+        strings = new HashMap();
+    }
+
+    public CaseInsensitiveStringSet(Collection c) {
+        strings = new HashMap(Math.max(16, (int) (c.size() / 0.75f) + 1));
+        addAll(c);
+    }
+
+    public boolean add(Object o) {
+        String s = (String) o;
+        String key = fold(s);
+        if (strings.containsKey(key)) {
+            return false;
+        }
+
+        strings.put(key, s);
+        return true;
+    }
+
+    public boolean contains(Object o) {
+        return (o instanceof String) && strings.containsKey(fold((String) o));
+    }
+
+    public boolean remove(Object o) {
+        return (o instanceof String) && strings.remove(fold((String) o)) != null;
+    }
+
+    public Iterator iterator() {
+        return strings.values().iterator();
+    }
+
+    public int size() {
+        return strings.size();
+    }
+
+    public void clear() {
+        strings.clear();
+    }
+
+    /**
+     * Fold s so that folded strings are equal exactly when the strings are equalsIgnoreCase.
+     */
+    static String fold(String s) {
+        int len = s.length();
+        int i = 0;
+        // most group names are already lower case ASCII, these are returned as is
+        while (i < len) {
+            char c = s.charAt(i);
+            if (c >= 0x80 || (c >= 'A' && c <= 'Z')) {
+                break;
+            }
+            i++;
+        }
+
+        if (i == len) {
+            return s;
+        }
+
+        char[] chars = s.toCharArray();
+        for (; i < len; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+
+        return new String(chars);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled regex used for mapping, backed by one of the engines that can be
+ * selected with regex.engine:
+ * <ul>
+ * <li>jdk - java.util.regex (default)</li>
+ * <li>linear - LinearPattern, which runs in time linear to the input length for
+ * the subset of regex syntax it supports. Patterns outside that subset fall back
+ * to java.util.regex.</li>
+ * </ul>
+ * Instances are immutable and can be shared by all request threads.
+ */
+public abstract class CompiledPattern {
+
+    public final static String ENGINE_JDK = "jdk";
+    public final static String ENGINE_LINEAR = "linear";
+
+    private final static Log log = LogFactory.getLog(CompiledPattern.class);
+
+    /**
+     * Compile regex with the given engine.
+     *
+     * @param regex  the regex
+     * @param flags  java.util.regex.Pattern flags, the linear engine only supports CASE_INSENSITIVE
+     * @param engine ENGINE_JDK or ENGINE_LINEAR, anything else is treated as ENGINE_JDK
+     * @param label  what the regex belongs to, used to warn when the linear engine cannot
+     *               handle the regex. When null the fallback is only logged at debug level.
+     * @return the compiled pattern
+     * @throws java.util.regex.PatternSyntaxException if the regex is invalid
+     */
+    public static CompiledPattern compile(String regex, int flags, String engine, String label) {
+        // Always validate with the JDK, so both engines accept and reject the same syntax.
+        Pattern pattern = Pattern.compile(regex, flags);
+
+        if (ENGINE_LINEAR.equals(engine)) {
+            try {
+                return new LinearPattern(regex, flags);
+            } catch (LinearPattern.UnsupportedSyntaxException e) {
+                if (label != null) {
+                    log.warn("Regex '" + regex + "' of " + label + " is not supported by the " + ENGINE_LINEAR +
+                            " regex engine (" + e.getMessage() + "), using java.util.regex for it.");
+                } else if (log.isDebugEnabled()) {
+                    log.debug("Regex '" + regex + "' is not supported by the " + ENGINE_LINEAR +
+                            " regex engine (" + e.getMessage() + "), using java.util.regex for it.");
+                }
+            }
+        }
+
+        return new JdkPattern(pattern);
+    }
+
+    /**
+     * Match the entire input against this pattern, like Matcher#matches().
+     *
+     * @param input the input
+     * @return the match, or null if the input doesn't match
+     */
+    public abstract MatchResult matches(CharSequence input);
+
+    /**
+     * Replace every match in input, with the semantics of String#replaceAll(String, String).
+     */
+    public abstract String replaceAll(CharSequence input, String replacement);
+
+    /**
+     * Check a replacement for replaceAll(CharSequence, String) with this pattern, so that an
+     * invalid replacement is found when the configuration is loaded instead of at the first match.
+     * References to named groups are left to java.util.regex.
+     *
+     * @throws IllegalArgumentException  if a backslash or $ is dangling, or $ is not followed by a group
+     * @throws IndexOutOfBoundsException if the replacement refers to a group the pattern does not have
+     */
+    public void checkReplacement(String replacement) {
+        int i = 0;
+        while (i < replacement.length()) {
+            char c = replacement.charAt(i++);
+            if (c == '\\') {
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("character to be escaped is missing");
+                }
+                i++;
+            } else if (c == '$') {
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("Illegal group reference: group index is missing");
+                }
+
+                char next = replacement.charAt(i);
+                if (next == '{' && ENGINE_JDK.equals(getEngine())) {
+                    int end = replacement.indexOf('}', i);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("named capturing group is missing trailing '}'");
+                    }
+                    i = end + 1;
+                } else if (next < '0' || next > '9') {
+                    throw new IllegalArgumentException("Illegal group reference");
+                } else if (next - '0' > groupCount()) {
+                    throw new IndexOutOfBoundsException("No group " + (next - '0'));
+                } else {
+                    // further digits are only taken while they name an existing group
+                    i++;
+                }
+            }
+        }
+    }
+
+    public abstract int groupCount();
+
+    public abstract String pattern();
+
+    /**
+     * @return the engine actually used for this pattern
+     */
+    public abstract String getEngine();
+
+    public String toString() {
+        return pattern();
+    }
+
+    private static class JdkPattern extends CompiledPattern {
+        private final Pattern pattern;
+        private final int groupCount;
+
+        JdkPattern(Pattern pattern) {
+            this.pattern = pattern;
+            this.groupCount = pattern.matcher("").groupCount();
+        }
+
+        public MatchResult matches(CharSequence input) {
+            Matcher m = pattern.matcher(input);
+            return m.matches() ? m : null;
+        }
+
+        public String replaceAll(CharSequence input, String replacement) {
+            return pattern.matcher(input).replaceAll(replacement);
+        }
+
+        public int groupCount() {
+            return groupCount;
+        }
+
+        public String pattern() {
+            return pattern.pattern();
+        }
+
+        public String getEngine() {
+            return ENGINE_JDK;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reloads the configuration in a daemon thread when reload.config is true, and
+ * dynamicroles.mapping.file when it is set, so that request threads never touch
+ * these files.
+ * <p/>
+ * The directories of the files are watched with a WatchService, which picks up
+ * changes right away. Because a WatchService does not see every change (e.g. on
+ * NFS) or may not be available at all, the file is also checked every
+ * reload.config.check.interval milliseconds. A changed config file is only loaded
+ * once its size and lastModified stamp stayed the same for SETTLE_DELAY ms, so a
+ * file that an editor or deploy tool is still writing is not loaded half written.
+ * The new configuration is loaded and compiled in this thread and only then
+ * published to the request threads. A config file that can not be read or has
+ * invalid values is not published, the last good configuration stays in use
+ * until the file is fixed.
+ */
+public class ConfigReloader implements Runnable {
+
+    /**
+     * Lower bound of the check interval, so a check interval of 0 does not spin
+     */
+    final static long MIN_CHECK_INTERVAL = 100;
+
+    /**
+     * How long the size and lastModified stamp of a changed config file must stay the same before it is loaded
+     */
+    final static long SETTLE_DELAY = 500;
+
+    private final static Log log = LogFactory.getLog(ConfigReloader.class);
+
+    /**
+     * The thread started by start, until it ends or is stopped
+     */
+    private static volatile Thread thread;
+
+    private final AtomicReference configReference;
+
+    private final long settleDelay;
+
+    /**
+     * Last modified stamp and size of the config file that was loaded last
+     */
+    private long loadedLastModified;
+
+    private long loadedSize;
+
+    /**
+     * Last modified stamp and size of a config file that failed to load, so it is not loaded again until it
+     * changes
+     */
+    private long failedLastModified = -1;
+
+    private long failedSize = -1;
+
+    ConfigReloader(AtomicReference configReference) {
+        this(configReference, SETTLE_DELAY);
+    }
+
+    ConfigReloader(AtomicReference configReference, long settleDelay) {
+        this.configReference = configReference;
+        this.settleDelay = settleDelay;
+
+        ShibAuthConfiguration config = (ShibAuthConfiguration) configReference.get();
+        loadedLastModified = config.getConfigFileLastModified();
+        loadedSize = (config.getConfigFile() != null) ? new File(config.getConfigFile()).length() : -1;
+    }
+
+    /**
+     * Start watching the files of the configuration in configReference, if that
+     * configuration wants to be reloaded or has a dynamicroles.mapping.file.
+     *
+     * @return the started thread, or null if there is nothing to watch
+     */
+    static Thread start(AtomicReference configReference) {
+        ShibAuthConfiguration config = (ShibAuthConfiguration) configReference.get();
+        if (!isReloadingConfigFile(config) && config.getRoleMappingFile() == null) {
+            return null;
+        }
+
+        Thread reloader = new Thread(new ConfigReloader(configReference), "shibauth-config-reloader");
+        reloader.setDaemon(true);
+        thread = reloader;
+        reloader.start();
+        return reloader;
+    }
+
+    /**
+     * Stop the thread started by start, e.g. when Confluence is shut down or the authenticator undeployed.
+     */
+    static void stop() {
+        Thread reloader = thread;
+        thread = null;
+        if (reloader != null) {
+            reloader.interrupt();
+            try {
+                reloader.join(SETTLE_DELAY * 4);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void run() {
+        WatchService watcher = openWatcher((ShibAuthConfiguration) configReference.get());
+
+        try {
+            while (true) {
+                ShibAuthConfiguration config = (ShibAuthConfiguration) configReference.get();
+                if (!isReloadingConfigFile(config) && config.getRoleMappingFile() == null) {
+                    log.info("Neither reload.config nor " + ShibAuthConstants.ROLES_MAPPING_FILE +
+                            " is set any more, no longer checking files for changes");
+                    return;
+                }
+
+                long interval = Math.max(config.getReloadConfigCheckInterval(), MIN_CHECK_INTERVAL);
+                if (watcher == null) {
+                    Thread.sleep(interval);
+                } else {
+                    WatchKey key = watcher.poll(interval, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        // any event in the directory triggers a check, the check looks at the file itself
+                        key.pollEvents();
+                        if (!key.reset()) {
+                            log.warn("Directory of a watched file is no longer watched, checking the files every " +
+                                    interval + " ms");
+                            close(watcher);
+                            watcher = null;
+                        }
+                    }
+                }
+
+                if (isReloadingConfigFile(config)) {
+                    checkConfigFile(config);
+                }
+
+                // a reloaded configuration has read its mapping file already
+                if (config == configReference.get() && config.getRoleMappingFile() != null) {
+                    config.getRoleMappingFile().reloadIfChanged();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close(watcher);
+            if (thread == Thread.currentThread()) {
+                thread = null;
+            }
+        }
+    }
+
+    private static boolean isReloadingConfigFile(ShibAuthConfiguration config) {
+        return config.isReloadConfig() && config.getConfigFile() != null;
+    }
+
+    /**
+     * Reload the configuration if the config file has been changed since config was loaded. The file is
+     * loaded once it settled, and checked once more after the new configuration was published, as a write
+     * that ends in the same lastModified stamp as the loaded one would otherwise only be seen by its size.
+     */
+    void checkConfigFile(ShibAuthConfiguration config) throws InterruptedException {
+        File file = new File(config.getConfigFile());
+
+        if (!isChanged(file)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Config file has not been changed, not reloading");
+            }
+            return;
+        }
+
+        do {
+            if (log.isDebugEnabled()) {
+                log.debug("Config file has been changed, waiting for it to settle before reloading");
+            }
+
+            long[] stamp = waitUntilSettled(file);
+            long configFileLastModified = stamp[0];
+            long configFileSize = stamp[1];
+            if (configFileLastModified == failedLastModified && configFileSize == failedSize) {
+                return;
+            }
+
+            ShibAuthConfiguration newConfig;
+            try {
+                newConfig = ShibAuthConfigLoader.getShibAuthConfiguration(config);
+            } catch (RuntimeException e) {
+                // keep the thread alive, the next change of the file gets another chance
+                log.error("Unable to reload configuration from " + config.getConfigFile() +
+                        ", keeping the current configuration", e);
+                failedLastModified = configFileLastModified;
+                failedSize = configFileSize;
+                return;
+            }
+
+            if (!newConfig.getLoadErrors().isEmpty()) {
+                log.error("Configuration in " + config.getConfigFile() + " has " +
+                        newConfig.getLoadErrors().size() + " error(s), keeping the current configuration: " +
+                        newConfig.getLoadErrors());
+                failedLastModified = configFileLastModified;
+                failedSize = configFileSize;
+                return;
+            }
+
+            configReference.set(newConfig);
+            loadedLastModified = configFileLastModified;
+            loadedSize = configFileSize;
+            if (!isReloadingConfigFile(newConfig)) {
+                return;
+            }
+            config = newConfig;
+
+            Thread.sleep(settleDelay);
+        } while (isChanged(file));
+    }
+
+    /**
+     * @return true if the size or lastModified stamp of the config file differ from the loaded one and
+     *         from the one that failed to load
+     */
+    private boolean isChanged(File file) {
+        long lastModified = file.lastModified();
+        long size = file.length();
+        if (lastModified == failedLastModified && size == failedSize) {
+            return false;
+        }
+        return lastModified != loadedLastModified || size != loadedSize;
+    }
+
+    /**
+     * Wait until the size and lastModified stamp of file stayed the same for the settle delay.
+     *
+     * @return the settled lastModified stamp and size
+     */
+    private long[] waitUntilSettled(File file) throws InterruptedException {
+        long lastModified = file.lastModified();
+        long size = file.length();
+        while (true) {
+            Thread.sleep(settleDelay);
+            long settledLastModified = file.lastModified();
+            long settledSize = file.length();
+            if (settledLastModified == lastModified && settledSize == size) {
+                return new long[]{lastModified, size};
+            }
+            lastModified = settledLastModified;
+            size = settledSize;
+        }
+    }
+
+    private static WatchService openWatcher(ShibAuthConfiguration config) {
+        Set dirs = new HashSet();
+        if (isReloadingConfigFile(config)) {
+            dirs.add(new File(config.getConfigFile()).getAbsoluteFile().toPath().getParent());
+        }
+        if (config.getRoleMappingFile() != null) {
+            dirs.add(new File(config.getRoleMappingFile().getFileName()).getAbsoluteFile().toPath().getParent());
+        }
+
+        WatchService watcher = null;
+
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            for (Iterator it = dirs.iterator(); it.hasNext(); ) {
+                ((Path) it.next()).register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+            return watcher;
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Unable to watch " + dirs + " for changes, checking the files every " +
+                    "reload.config.check.interval ms instead", e);
+            close(watcher);
+            return null;
+        }
+    }
+
+    private static void close(WatchService watcher) {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                log.debug("Unable to close config file watcher", e);
+            }
+        }
+    }
+}
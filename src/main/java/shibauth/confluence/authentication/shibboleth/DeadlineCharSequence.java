@@ -0,0 +1,99 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+/**
+ * CharSequence that gives up once a deadline has passed. Regex engines read their
+ * input through charAt, so matching against this wrapper bounds the time a single
+ * match can take: when the deadline is exceeded the next read throws TimeoutException.
+ * <p/>
+ * Instances are cheap and meant to be used for a single match by a single thread.
+ */
+public class DeadlineCharSequence implements CharSequence {
+
+    /**
+     * Thrown from charAt when the time budget of the match is used up.
+     */
+    public static class TimeoutException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public TimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The clock is only read every CHECK_INTERVAL reads, System.nanoTime() is much
+     * more expensive than a charAt.
+     */
+    private final static int CHECK_INTERVAL = 256;
+
+    private final CharSequence chars;
+    private final long deadline;
+    private final long budgetMillis;
+    private int countdown = CHECK_INTERVAL;
+
+    /**
+     * @param chars        the input
+     * @param budgetMillis time allowed for the match, from now
+     */
+    public DeadlineCharSequence(CharSequence chars, long budgetMillis) {
+        this.chars = chars;
+        this.budgetMillis = budgetMillis;
+        this.deadline = System.nanoTime() + budgetMillis * 1000000L;
+    }
+
+    public char charAt(int index) {
+        if (--countdown == 0) {
+            countdown = CHECK_INTERVAL;
+            if (System.nanoTime() - deadline > 0) {
+                throw new TimeoutException("Regex evaluation exceeded " + budgetMillis + " ms on a value of length " +
+                        chars.length());
+            }
+        }
+
+        return chars.charAt(index);
+    }
+
+    public int length() {
+        return chars.length();
+    }
+
+    /**
+     * Sub sequences (group values) are taken from the plain input, without deadline.
+     */
+    public CharSequence subSequence(int start, int end) {
+        return chars.subSequence(start, end);
+    }
+
+    public String toString() {
+        return chars.toString();
+    }
+}
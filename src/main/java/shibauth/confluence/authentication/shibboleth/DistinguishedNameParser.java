@@ -0,0 +1,260 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal, single pass reader of string distinguished names as described in RFC 4514
+ * (and the older RFC 2253), such as "CN=John Doe,OU=People,O=Example\, Inc.,C=FI" in the
+ * SSL_CLIENT_S_DN variable of a client certificate endpoint. It only extracts the value of
+ * one attribute type and does not use regexes.
+ * <p/>
+ * Supported are ',' and ';' between RDNs, '+' in multi-valued RDNs, spaces around types,
+ * values and separators, backslash escapes of special characters, hex escaped UTF-8 bytes
+ * (e.g. "\C3\A4") and quoted values. Values in hex form ("#04024869") are skipped.
+ */
+public class DistinguishedNameParser {
+
+    private final String dn;
+    private final int len;
+    private int pos;
+    private boolean malformed;
+
+    private DistinguishedNameParser(String dn) {
+        this.dn = dn;
+        this.len = dn.length();
+    }
+
+    /**
+     * Get the value of the first RDN with the given attribute type.
+     *
+     * @param dn   the distinguished name
+     * @param type attribute type, e.g. "CN" (compared ignoring case) or an OID like "2.5.4.3"
+     * @return the unescaped value, or null if dn has no such (non-empty) value or is malformed
+     *         before it
+     */
+    public static String getAttribute(String dn, String type) {
+        if (dn == null || type == null) {
+            return null;
+        }
+
+        return new DistinguishedNameParser(dn).find(type);
+    }
+
+    private String find(String type) {
+        while (true) {
+            skipSpaces();
+            if (pos >= len) {
+                return null;
+            }
+
+            int typeStart = pos;
+            while (pos < len && dn.charAt(pos) != '=' && dn.charAt(pos) != ',' && dn.charAt(pos) != ';' &&
+                    dn.charAt(pos) != '+') {
+                pos++;
+            }
+            if (pos >= len || dn.charAt(pos) != '=') {
+                // attribute type without a value
+                return null;
+            }
+
+            int typeEnd = pos;
+            while (typeEnd > typeStart && dn.charAt(typeEnd - 1) == ' ') {
+                typeEnd--;
+            }
+
+            boolean wanted = (typeEnd - typeStart == type.length()) &&
+                    dn.regionMatches(true, typeStart, type, 0, type.length());
+
+            pos++;
+            skipSpaces();
+
+            String value = readValue(wanted);
+            if (malformed) {
+                return null;
+            }
+            if (wanted && value != null && value.length() > 0) {
+                return value;
+            }
+
+            if (pos >= len) {
+                return null;
+            }
+            // skip the ',', ';' or '+'
+            pos++;
+        }
+    }
+
+    /**
+     * Read the value at pos, leaving pos at the separator following it (or the end).
+     *
+     * @param build whether the value is needed
+     * @return the value, null if not built, in hex form or malformed (then malformed is set)
+     */
+    private String readValue(boolean build) {
+        if (pos < len && dn.charAt(pos) == '#') {
+            // BER encoded value, not a string
+            while (pos < len && !isSeparator(dn.charAt(pos))) {
+                pos++;
+            }
+            return null;
+        }
+
+        StringBuilder sb = build ? new StringBuilder() : null;
+        byte[] bytes = null;
+        int byteCount = 0;
+        boolean quoted = pos < len && dn.charAt(pos) == '"';
+        if (quoted) {
+            pos++;
+        }
+
+        // length of sb without unescaped trailing spaces
+        int keep = 0;
+
+        while (pos < len) {
+            char c = dn.charAt(pos);
+
+            if (c == '\\') {
+                if (pos + 1 >= len) {
+                    malformed = true;
+                    return null;
+                }
+
+                int hi = hexDigit(dn.charAt(pos + 1));
+                int lo = (pos + 2 < len) ? hexDigit(dn.charAt(pos + 2)) : -1;
+                if (hi >= 0 && lo >= 0) {
+                    if (build) {
+                        if (bytes == null) {
+                            bytes = new byte[8];
+                        } else if (byteCount == bytes.length) {
+                            byte[] grown = new byte[byteCount * 2];
+                            System.arraycopy(bytes, 0, grown, 0, byteCount);
+                            bytes = grown;
+                        }
+                        bytes[byteCount++] = (byte) (hi * 16 + lo);
+                    }
+                    pos += 3;
+                    continue;
+                }
+
+                if (build) {
+                    if (byteCount > 0) {
+                        byteCount = flush(sb, bytes, byteCount);
+                    }
+                    sb.append(dn.charAt(pos + 1));
+                    keep = sb.length();
+                }
+                pos += 2;
+                continue;
+            }
+
+            if (quoted) {
+                if (c == '"') {
+                    pos++;
+                    skipSpaces();
+                    if (pos < len && !isSeparator(dn.charAt(pos))) {
+                        malformed = true;
+                        return null;
+                    }
+                    quoted = false;
+                    break;
+                }
+            } else if (isSeparator(c)) {
+                break;
+            }
+
+            if (build) {
+                if (byteCount > 0) {
+                    byteCount = flush(sb, bytes, byteCount);
+                    keep = sb.length();
+                }
+                sb.append(c);
+                if (c != ' ' || quoted) {
+                    keep = sb.length();
+                }
+            }
+            pos++;
+        }
+
+        if (quoted) {
+            // no closing quote
+            malformed = true;
+            return null;
+        }
+
+        if (!build) {
+            return null;
+        }
+
+        if (byteCount > 0) {
+            flush(sb, bytes, byteCount);
+            keep = sb.length();
+        }
+        sb.setLength(keep);
+        return sb.toString();
+    }
+
+    /**
+     * Append pending hex escaped bytes to sb, decoded as UTF-8.
+     *
+     * @return the new number of pending bytes (0)
+     */
+    private static int flush(StringBuilder sb, byte[] bytes, int byteCount) {
+        if (byteCount > 0) {
+            sb.append(new String(bytes, 0, byteCount, StandardCharsets.UTF_8));
+        }
+        return 0;
+    }
+
+    private void skipSpaces() {
+        while (pos < len && dn.charAt(pos) == ' ') {
+            pos++;
+        }
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ',' || c == ';' || c == '+';
+    }
+}
@@ -32,7 +32,8 @@ package shibauth.confluence.authentication.shibboleth;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.util.regex.Matcher;
+import java.util.Collection;
+import java.util.regex.MatchResult;
 import java.util.regex.Pattern;
 
 /**
@@ -81,10 +82,32 @@ import java.util.regex.Pattern;
  * list if its 'force' attribute is set to true.
  */
 public class GroupMapper {
-    private String matchRegex;
-    private String transform;
-    private String name;
-    private boolean sensitive = true;
+    private final String matchRegex;
+    private final String transform;
+    private final String name;
+    private final boolean sensitive;
+
+    /**
+     * Compiled form of matchRegex (or ".*" when no match regex is given),
+     * honouring the case sensitivity flag and compiled with the configured
+     * regex engine. It is immutable and safe to share between request threads.
+     */
+    private final CompiledPattern pattern;
+
+    /**
+     * Parsed form of transform, null when there is no transform.
+     */
+    private final TransformTemplate template;
+
+    /**
+     * The groups produced by a transform without group references, null otherwise.
+     */
+    private final String[] literalTerms;
+
+    /**
+     * Time budget of one match in milliseconds, 0 for no limit.
+     */
+    private final long timeoutMillis;
     private final static Log log = LogFactory.getLog(GroupMapper.class);
 
     /**
@@ -98,22 +121,49 @@ public class GroupMapper {
      *                  if this mapper should only use exact string in the input (provided the
      *                  match is successful). this has passthrough effect for matched regex.
      * @param sensitive should the matching be case sensitive
+     * @throws java.util.regex.PatternSyntaxException if match is not a valid regex
      */
     public GroupMapper(String name, String match, String transform, boolean sensitive) {
+        this(name, match, transform, sensitive, CompiledPattern.ENGINE_JDK);
+    }
+
+    /**
+     * Same as {@link #GroupMapper(String, String, String, boolean)}, compiling
+     * the match regex with the given regex engine.
+     *
+     * @param engine CompiledPattern.ENGINE_JDK or CompiledPattern.ENGINE_LINEAR
+     */
+    public GroupMapper(String name, String match, String transform, boolean sensitive, String engine) {
+        this(name, match, transform, sensitive, engine, 0);
+    }
+
+    /**
+     * Same as {@link #GroupMapper(String, String, String, boolean, String)}, aborting
+     * any single match that takes longer than timeoutMillis.
+     *
+     * @param timeoutMillis time budget of one match in milliseconds, 0 for no limit
+     */
+    public GroupMapper(String name, String match, String transform, boolean sensitive, String engine,
+                       long timeoutMillis) {
         this.name = name;
-        setMatchRegex(match);
-        setTransform(transform);
+        this.timeoutMillis = timeoutMillis;
+        this.matchRegex = emptyToNull(match);
+        this.transform = emptyToNull(transform);
         this.sensitive = sensitive;
+
+        String regex = (matchRegex == null) ? ".*" : matchRegex;
+        this.pattern = CompiledPattern.compile(regex, sensitive ? 0 : Pattern.CASE_INSENSITIVE, engine,
+                "mapper " + name);
+        this.template = (this.transform == null) ? null : new TransformTemplate(this.transform, pattern.groupCount());
+        this.literalTerms = (template == null || !template.isLiteral()) ? null :
+                (String[]) StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(this.transform).toArray(
+                        new String[0]);
     }
 
     public boolean isCaseSensitive() {
         return sensitive;
     }
 
-    public void setCaseSensitive(boolean sensitive) {
-        this.sensitive = sensitive;
-    }
-
     /**
      * Go through the following processing logic:
      * <ul>
@@ -151,52 +201,109 @@ public class GroupMapper {
             }
         }
 
-        String regex = matchRegex;
-        //accept any input
-        if (matchRegex == null) {
-            regex = ".*";
+        StringBuilder out = new StringBuilder(value.length() + ((template == null) ? 0 : template.getLiteralLength()));
+        if (!process(value, out)) {
+            return null;
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * Same as {@link #process(String)}, but appends the output to the given
+     * builder instead of returning it, so that callers can reuse one builder
+     * for many values. The builder is left untouched if the value does not match.
+     *
+     * @param value non-null value to be processed
+     * @param out   builder receiving the output
+     * @return true if the value matched this mapper and output was appended
+     */
+    public boolean process(String value, StringBuilder out) {
+        MatchResult m = match(value);
+        if (m == null) {
+            return false;
         }
 
-        //perform matches first
-        Pattern p = null;
-        if (isCaseSensitive()) {
-            p = Pattern.compile(regex);
+        //perform transformation, without transform the output is the matched input
+        int start = out.length();
+        if (template == null) {
+            out.append(value);
         } else {
-            p = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+            template.appendTo(m, value, out);
         }
 
-        Matcher m = p.matcher(value);
-        if (!m.matches()) {
-            // this has been helpful for users that are debugging their regexp
-            if (log.isDebugEnabled()) {
-                log.debug("Regexp '" + regex + "' did not match value='" + value + "'");
-            }
-            return null;
+        if (log.isDebugEnabled()) {
+            log.debug("Converted: value=" + value + " to group=" + out.substring(start));
+        }
+
+        return true;
+    }
+
+    /**
+     * Same as {@link #process(String)}, but adds each group of the output to the
+     * given collection instead of returning them joined by comma or semicolon. The
+     * groups are the non-empty, trimmed terms that
+     * StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon would return
+     * for the output of {@link #process(String)}.
+     *
+     * @param initValue value to be processed, see {@link #process(String)}
+     * @param out       collection receiving the groups (Strings)
+     * @return true if the value matched this mapper
+     */
+    public boolean process(String initValue, Collection out) {
+        String value = (initValue == null) ? "" : initValue;
+        if (value.length() == 0 && matchRegex == null && transform == null) {
+            return false;
         }
 
-        //perform transformation replacements
-        //TODO: any better way of doing this??
-        String t = transform;
-        if (t == null) {
-            t = value;
+        MatchResult m = match(value);
+        if (m == null) {
+            return false;
         }
 
-        for (int i = m.groupCount(); i > 0; i--) {
-            if (log.isDebugEnabled()) {
-                log.debug("The group identified $" + i + "=" + m.group(i));
+        if (literalTerms != null) {
+            // the output doesn't depend on the value, it was split when this mapper was built
+            for (int i = 0; i < literalTerms.length; i++) {
+                out.add(literalTerms[i]);
             }
+        } else if (template == null) {
+            StringUtil.addNonEmptyStringsDelimitedByCommaOrSemicolon(value, out);
+        } else {
+            StringBuilder sb = new StringBuilder(value.length() + template.getLiteralLength());
+            template.appendTo(m, value, sb);
+            StringUtil.addNonEmptyStringsDelimitedByCommaOrSemicolon(sb, out);
+        }
 
-            t = t.replaceAll("\\$" + i, m.group(i));
+        if (log.isDebugEnabled()) {
+            log.debug("Converted: value=" + value + " to groups=" + out);
         }
 
-        //in case someone uses $0
-        t = t.replaceAll("\\$0", m.group(0));
+        return true;
+    }
 
-        if (log.isDebugEnabled()) {
-            log.debug("Converted: value=" + value + " to group=" + t);
+    /**
+     * Match value against the match regex (within the time budget).
+     *
+     * @return the match, or null if the value doesn't match or the match was aborted
+     */
+    private MatchResult match(String value) {
+        //perform matches first, the pattern was compiled when this mapper was built
+        MatchResult m;
+        try {
+            m = pattern.matches((timeoutMillis > 0) ? new DeadlineCharSequence(value, timeoutMillis) : value);
+        } catch (DeadlineCharSequence.TimeoutException e) {
+            ShibAuthStatistics.regexTimedOut();
+            log.warn("Mapper " + name + " gave up on regex '" + pattern.pattern() + "': " + e.getMessage() +
+                    ", treating the value as not matching.");
+            return null;
+        }
+
+        // this has been helpful for users that are debugging their regexp
+        if (m == null && log.isDebugEnabled()) {
+            log.debug("Regexp '" + pattern.pattern() + "' did not match value='" + value + "'");
         }
 
-        return t;
+        return m;
     }
 
     /**
@@ -214,19 +321,15 @@ public class GroupMapper {
         return transform;
     }
 
-    public void setMatchRegex(String regex) {
-        if (regex != null && regex.trim().length() == 0) {
-            regex = null;
-        }
-
-        matchRegex = regex;
+    public CompiledPattern getPattern() {
+        return pattern;
     }
 
-    public void setTransform(String transform) {
-        if (transform != null && transform.trim().length() == 0) {
-            transform = null;
+    private static String emptyToNull(String s) {
+        if (s != null && s.trim().length() == 0) {
+            return null;
         }
 
-        this.transform = transform;
+        return s;
     }
 }
@@ -0,0 +1,351 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dispatch index over the group mappers of one header, built when the configuration
+ * is loaded. Instead of running every mapper against every value, the index only
+ * hands out the mappers that can possibly match a value:
+ * <ul>
+ * <li>mappers whose match regex is a plain literal (e.g. "^staff$") are kept in a
+ * hash table keyed by that literal</li>
+ * <li>mappers whose match regex starts with a literal (e.g.
+ * "urn:mace:example.edu:groups:(.*)") are kept in a prefix trie, the regex is only
+ * evaluated for values starting with that prefix</li>
+ * <li>everything else (no match regex, alternation at the top level, leading
+ * character classes, inline flags, ...) is always a candidate</li>
+ * </ul>
+ * Case insensitive mappers are indexed by their ASCII lower cased literal, which is
+ * how java.util.regex folds case when UNICODE_CASE is not given.
+ * <p/>
+ * Candidates are always returned in configuration order, so callers get exactly the
+ * results of the linear scan over all mappers.
+ */
+public class GroupMapperIndex {
+
+    private final GroupMapper[] mappers;
+
+    /**
+     * Indexes of the mappers that have to be evaluated for every value.
+     */
+    private final int[] always;
+
+    private final Map exactSensitive = new HashMap();
+    private final Map exactInsensitive = new HashMap();
+    private final TrieNode prefixSensitive = new TrieNode();
+    private final TrieNode prefixInsensitive = new TrieNode();
+    private boolean hasInsensitive;
+
+    public GroupMapperIndex(Collection groupMappers) {
+        this.mappers = (GroupMapper[]) groupMappers.toArray(new GroupMapper[groupMappers.size()]);
+
+        int[] alwaysIds = new int[mappers.length];
+        int alwaysCount = 0;
+
+        for (int i = 0; i < mappers.length; i++) {
+            GroupMapper mapper = mappers[i];
+            String regex = mapper.getMatchRegex();
+            StringBuilder prefix = new StringBuilder();
+            boolean exact = (regex != null) && literalPrefix(regex, prefix);
+
+            if (prefix.length() == 0) {
+                alwaysIds[alwaysCount++] = i;
+                continue;
+            }
+
+            String key = prefix.toString();
+            if (!mapper.isCaseSensitive()) {
+                key = asciiLowerCase(key);
+                hasInsensitive = true;
+            }
+
+            if (exact) {
+                Map exactMap = mapper.isCaseSensitive() ? exactSensitive : exactInsensitive;
+                int[] ids = (int[]) exactMap.get(key);
+                exactMap.put(key, append(ids, i));
+            } else {
+                (mapper.isCaseSensitive() ? prefixSensitive : prefixInsensitive).insert(key, i);
+            }
+        }
+
+        this.always = Arrays.copyOf(alwaysIds, alwaysCount);
+    }
+
+    /**
+     * Return the mappers that may match the given value, in configuration order.
+     *
+     * @param value the (non-null) header value
+     * @return mappers to be evaluated against value, never null
+     */
+    public List candidates(String value) {
+        if (always.length == mappers.length) {
+            return Arrays.asList(mappers);
+        }
+
+        boolean[] selected = new boolean[mappers.length];
+        int count = 0;
+
+        for (int i = 0; i < always.length; i++) {
+            selected[always[i]] = true;
+        }
+        count += always.length;
+
+        count += select((int[]) exactSensitive.get(value), selected);
+        count += prefixSensitive.select(value, selected);
+
+        if (hasInsensitive) {
+            String folded = asciiLowerCase(value);
+            count += select((int[]) exactInsensitive.get(folded), selected);
+            count += prefixInsensitive.select(folded, selected);
+        }
+
+        if (count == 0) {
+            return Collections.EMPTY_LIST;
+        }
+
+        List result = new ArrayList(count);
+        for (int i = 0; i < mappers.length; i++) {
+            if (selected[i]) {
+                result.add(mappers[i]);
+            }
+        }
+
+        return result;
+    }
+
+    public List getMappers() {
+        return Collections.unmodifiableList(Arrays.asList(mappers));
+    }
+
+    private static int select(int[] ids, boolean[] selected) {
+        if (ids == null) {
+            return 0;
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            selected[ids[i]] = true;
+        }
+
+        return ids.length;
+    }
+
+    private static int[] append(int[] ids, int id) {
+        if (ids == null) {
+            return new int[]{id};
+        }
+
+        int[] result = Arrays.copyOf(ids, ids.length + 1);
+        result[ids.length] = id;
+        return result;
+    }
+
+    /**
+     * Lower case ASCII letters only, the way java.util.regex compares characters when
+     * CASE_INSENSITIVE is set without UNICODE_CASE.
+     */
+    static String asciiLowerCase(String s) {
+        int len = s.length();
+        int i = 0;
+        while (i < len) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                break;
+            }
+            i++;
+        }
+
+        if (i == len) {
+            return s;
+        }
+
+        char[] chars = s.toCharArray();
+        for (; i < len; i++) {
+            char c = chars[i];
+            if (c >= 'A' && c <= 'Z') {
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Find the literal text every match of regex has to start with.
+     *
+     * @param regex  the match regex
+     * @param prefix receives the literal prefix, left empty if there is none
+     * @return true if the whole regex is that literal (optionally anchored by ^ and $)
+     */
+    static boolean literalPrefix(String regex, StringBuilder prefix) {
+        if (hasTopLevelAlternation(regex)) {
+            return false;
+        }
+
+        int len = regex.length();
+        int i = 0;
+        if (i < len && regex.charAt(i) == '^') {
+            i++;
+        }
+
+        while (i < len) {
+            char c = regex.charAt(i);
+            int next;
+
+            if (c == '\\') {
+                if (i + 1 >= len) {
+                    return false;
+                }
+
+                c = regex.charAt(i + 1);
+                if (Character.isLetterOrDigit(c)) {
+                    // \w, \d, \Q, \1, \x41, \t, ... are not treated as literals
+                    return false;
+                }
+
+                next = i + 2;
+            } else if (c == '$') {
+                return i + 1 == len;
+            } else if ("^.|?*+()[]{}".indexOf(c) >= 0) {
+                return false;
+            } else {
+                next = i + 1;
+            }
+
+            if (next < len && "?*+{".indexOf(regex.charAt(next)) >= 0) {
+                // the last character is quantified, so it is not part of the prefix
+                return false;
+            }
+
+            prefix.append(c);
+            i = next;
+        }
+
+        return true;
+    }
+
+    private static boolean hasTopLevelAlternation(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                }
+            } else if (c == '[') {
+                inClass = true;
+                // a ']' right after '[' or '[^' is a literal
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth <= 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Minimal character trie, children are kept in small arrays sorted by character.
+     */
+    private static class TrieNode {
+        private char[] labels = new char[0];
+        private TrieNode[] children = new TrieNode[0];
+        private int[] ids;
+
+        void insert(String key, int id) {
+            TrieNode node = this;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.child(key.charAt(i), true);
+            }
+            node.ids = append(node.ids, id);
+        }
+
+        int select(String value, boolean[] selected) {
+            int count = 0;
+            TrieNode node = this;
+            for (int i = 0; i < value.length() && node != null; i++) {
+                node = node.child(value.charAt(i), false);
+                if (node != null) {
+                    count += GroupMapperIndex.select(node.ids, selected);
+                }
+            }
+
+            return count;
+        }
+
+        private TrieNode child(char c, boolean create) {
+            int pos = Arrays.binarySearch(labels, c);
+            if (pos >= 0) {
+                return children[pos];
+            }
+
+            if (!create) {
+                return null;
+            }
+
+            pos = -pos - 1;
+            TrieNode node = new TrieNode();
+
+            char[] newLabels = new char[labels.length + 1];
+            TrieNode[] newChildren = new TrieNode[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, pos);
+            System.arraycopy(children, 0, newChildren, 0, pos);
+            newLabels[pos] = c;
+            newChildren[pos] = node;
+            System.arraycopy(labels, pos, newLabels, pos + 1, labels.length - pos);
+            System.arraycopy(children, pos, newChildren, pos + 1, children.length - pos);
+
+            labels = newLabels;
+            children = newChildren;
+            return node;
+        }
+    }
+}
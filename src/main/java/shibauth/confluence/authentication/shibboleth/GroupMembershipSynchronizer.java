@@ -0,0 +1,264 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import com.atlassian.crowd.embedded.api.CrowdService;
+import com.atlassian.crowd.embedded.api.Group;
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.user.GroupManager;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Brings the group memberships of a user in line with the roles it gets from
+ * default.roles and the dynamicroles headers. The current memberships are read
+ * once; the roles to add and to purge are computed against them in memory, and
+ * Crowd is only asked for the groups that are actually added or removed.
+ * <p/>
+ * The writes themselves are left to addUserToGroup and removeUserFromGroup, so
+ * the authenticator can run them in its transactions.
+ */
+abstract class GroupMembershipSynchronizer {
+
+    private final static Log log = LogFactory.getLog(GroupMembershipSynchronizer.class);
+
+    private final ShibAuthConfiguration config;
+
+    private final CrowdService crowdService;
+
+    private final GroupManager groupManager;
+
+    GroupMembershipSynchronizer(ShibAuthConfiguration config, CrowdService crowdService, GroupManager groupManager) {
+        this.config = config;
+        this.crowdService = crowdService;
+        this.groupManager = groupManager;
+    }
+
+    protected abstract void addUserToGroup(User user, Group group);
+
+    protected abstract void removeUserFromGroup(User user, Group group);
+
+    /**
+     * Add the user to the default roles and to roles, then purge it from the
+     * roles matched by the purge mappings that are in neither.
+     *
+     * @param identity the accounts of the user of the request
+     * @param user     the Crowd user
+     * @param roles    the roles from the dynamicroles headers
+     * @return true if every change was made, false if one failed or purge.roles.limit left roles to purge
+     */
+    public boolean synchronize(IdentityContext identity, User user, Collection roles) {
+        if (crowdService == null) {
+            throw new RuntimeException("crowdService was not wired in RemoteUserAuthenticator");
+        }
+
+        // Group names are case insensitive in Confluence.
+        List groupNames = identity.getGroupNames();
+        Set memberships = new CaseInsensitiveStringSet(groupNames);
+
+        boolean complete = assignUserToRoles(user, config.getDefaultRoles(), memberships);
+        complete &= assignUserToRoles(user, roles, memberships);
+
+        // Make sure we don't purge default roles either
+        Set keep = new CaseInsensitiveStringSet(roles);
+        keep.addAll(config.getDefaultRoles());
+        complete &= purgeUserRoles(user, keep, groupNames);
+        return complete;
+    }
+
+    /**
+     * Assigns a user to the roles it is not a member of yet.
+     *
+     * @param memberships the current memberships of the user, roles the user is added to are added to it
+     * @return true if the user was added to every role it should be added to, false if that failed for one
+     */
+    boolean assignUserToRoles(User user, Collection roles, Set memberships) {
+        if (roles.size() == 0) {
+            if (log.isDebugEnabled()) {
+                log.debug("No roles specified, not adding any roles...");
+            }
+            return true;
+        }
+
+        boolean complete = true;
+        for (Iterator it = roles.iterator(); it.hasNext(); ) {
+            String role = it.next().toString().trim();
+
+            if (role.length() == 0) {
+                continue;
+            }
+
+            if (memberships.contains(role)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Skipping " + user.getName() + " to role " + role + " - already a member");
+                }
+                continue;
+            }
+
+            if (!user.isActive()) {
+                log.warn("User '" + user.getName() + "' was inactive, so did not add them to role '" + role + "'.");
+                continue;
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Assigning " + user.getName() + " to role " + role);
+            }
+
+            Group group;
+            try {
+                group = getGroup(role);
+            } catch (Throwable t) {
+                log.error("Cannot get or create role '" + role + "'.", t);
+                complete = false;
+                continue;
+            }
+            if (group == null) {
+                continue;
+            }
+
+            try {
+                addUserToGroup(user, group);
+                memberships.add(role);
+            } catch (Throwable t) {
+                log.error("Failed to add user " + user + " to role " + role + ".", t);
+                complete = false;
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * @return the group, created if it is missing and dynamicroles.auto_create_role is set, or null
+     * @throws Exception if the group could not be created
+     */
+    private Group getGroup(String role) throws Exception {
+        Group group = crowdService.getGroup(role);
+        if (group != null) {
+            return group;
+        }
+
+        if (!config.isAutoCreateGroup()) {
+            if (log.isDebugEnabled()) {
+                log.debug("Skipping autocreation of role '" + role + "'.");
+            }
+            return null;
+        }
+
+        if (groupManager == null) {
+            throw new RuntimeException("groupManager was not wired in RemoteUserAuthenticator");
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Creating missing role '" + role + "'.");
+        }
+        groupManager.createGroup(role);
+        group = crowdService.getGroup(role);
+
+        if (group == null && log.isDebugEnabled()) {
+            log.debug("Skipping role " + role + ", because crowdService.getGroup(\"" + role + "\") returned null.");
+        }
+        return group;
+    }
+
+    /**
+     * Purge user from roles it no longer should have (based on current Shibboleth attributes).
+     * Remove the user from its roles that are matched by a purge mapping and are not in rolesToKeep.
+     * Every purge mapping tried counts towards purge.roles.limit, later ones are not applied.
+     *
+     * @param rolesToKeep keep these roles, otherwise everything else
+     *                    mentioned in the purgeMappings can go.
+     * @param groupNames  the names of the groups the user is a member of
+     * @return true if the user was removed from every role to purge, false if that failed for one or
+     *         purge.roles.limit was reached before it
+     */
+    boolean purgeUserRoles(User user, Set rolesToKeep, List groupNames) {
+        Collection purgeMappers = config.getPurgeMappings();
+        if (purgeMappers.size() == 0) {
+            if (log.isDebugEnabled()) {
+                log.debug("No roles to purge specified, not purging any roles...");
+            }
+            return true;
+        }
+
+        // limit the number of roles purged
+        int counter = 0;
+        int rolesLimit = config.getPurgeRolesLimit();
+        log.debug("setting roles limit to " + rolesLimit);
+
+        boolean complete = true;
+        for (Iterator it = groupNames.iterator(); it.hasNext(); ) {
+            String role = (String) it.next();
+            if (rolesToKeep.contains(role)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Keeping role " + role + " for user " + user.getName());
+                }
+                continue;
+            }
+
+            //run through the purgeMappers for this role
+            for (Iterator it2 = purgeMappers.iterator(); it2.hasNext(); ) {
+                GroupMapper mapper = (GroupMapper) it2.next();
+                counter++;
+                log.debug("the counter is at " + counter);
+                //max only 1 group output
+                String output = mapper.process(role);
+                if (output != null & counter <= rolesLimit) {
+                    try {
+                        Group group = crowdService.getGroup(role);
+                        if (group != null) {
+                            if (log.isDebugEnabled()) {
+                                log.debug("Removing user " + user.getName() + " from role " + role);
+                            }
+
+                            removeUserFromGroup(user, group);
+
+                            // Only remove one group per login. Assuming this is to avoid massive delays in
+                            // login for a user removed from a lot of groups.
+                            break;
+                        }
+                    } catch (Throwable t) {
+                        log.error("Error encountered in removing user " + user.getName() + " from role " + role, t);
+                        complete = false;
+                    }
+                } else if (output != null) {
+                    // left for a later login
+                    complete = false;
+                }
+            }
+        }
+        return complete;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import com.atlassian.confluence.user.ConfluenceUser;
+import com.atlassian.confluence.user.UserAccessor;
+import com.atlassian.crowd.embedded.api.CrowdService;
+import com.atlassian.crowd.embedded.api.User;
+
+import java.security.Principal;
+import java.util.List;
+
+/**
+ * The accounts of the user of one request, looked up at most once per request
+ * and shared by all stages of the login: the Principal of the authenticator,
+ * the Crowd user, the Confluence user and its group names. Stages that change
+ * the user or its group memberships directly call userChanged or groupsChanged,
+ * so that the next stage sees the change. Writes that are only queued in a
+ * ProvisioningBatch do not, as the database would still return the old state.
+ * <p/>
+ * Not thread-safe, a context belongs to the thread of its request.
+ */
+abstract class IdentityContext {
+
+    private final String userid;
+
+    private final CrowdService crowdService;
+
+    private final UserAccessor userAccessor;
+
+    private Principal user;
+
+    private boolean userResolved;
+
+    private User crowdUser;
+
+    private boolean crowdUserResolved;
+
+    private ConfluenceUser confluenceUser;
+
+    private boolean confluenceUserResolved;
+
+    private List groupNames;
+
+    IdentityContext(String userid, CrowdService crowdService, UserAccessor userAccessor) {
+        this.userid = userid;
+        this.crowdService = crowdService;
+        this.userAccessor = userAccessor;
+    }
+
+    /**
+     * Look up the Principal of the user, e.g. with the getUser(String) of the authenticator.
+     */
+    protected abstract Principal lookupUser(String userid);
+
+    public String getUserid() {
+        return userid;
+    }
+
+    /**
+     * @return the Principal of the user, or null if there is no such user
+     */
+    public Principal getUser() {
+        if (!userResolved) {
+            user = lookupUser(userid);
+            userResolved = true;
+        }
+        return user;
+    }
+
+    /**
+     * @return the Crowd user, or null if there is no such user
+     */
+    public User getCrowdUser() {
+        if (!crowdUserResolved) {
+            if (crowdService == null) {
+                throw new RuntimeException("crowdService was not wired in RemoteUserAuthenticator");
+            }
+            crowdUser = crowdService.getUser(userid);
+            crowdUserResolved = true;
+        }
+        return crowdUser;
+    }
+
+    /**
+     * @return the Confluence user, or null if there is no such user
+     */
+    public ConfluenceUser getConfluenceUser() {
+        if (!confluenceUserResolved) {
+            if (userResolved && user instanceof ConfluenceUser) {
+                confluenceUser = (ConfluenceUser) user;
+            } else {
+                if (userAccessor == null) {
+                    throw new RuntimeException("userAccessor was not wired in RemoteUserAuthenticator");
+                }
+                confluenceUser = userAccessor.getUserByName(userid);
+            }
+            confluenceUserResolved = true;
+        }
+        return confluenceUser;
+    }
+
+    /**
+     * @return List&lt;String&gt; the names of the groups the user is a member of
+     */
+    public List getGroupNames() {
+        if (groupNames == null) {
+            if (userAccessor == null) {
+                throw new RuntimeException("userAccessor was not wired in RemoteUserAuthenticator");
+            }
+            groupNames = userAccessor.getGroupNames(getConfluenceUser());
+        }
+        return groupNames;
+    }
+
+    /**
+     * The user was created or its details were changed, look it up again.
+     */
+    public void userChanged() {
+        userResolved = false;
+        user = null;
+        crowdUserResolved = false;
+        crowdUser = null;
+        confluenceUserResolved = false;
+        confluenceUser = null;
+        groupNames = null;
+    }
+
+    /**
+     * The group memberships of the user were changed, look up its group names again.
+     */
+    public void groupsChanged() {
+        groupNames = null;
+    }
+}
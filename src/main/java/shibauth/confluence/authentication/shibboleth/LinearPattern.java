@@ -0,0 +1,1124 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+
+/**
+ * Regex engine that simulates all alternatives of a pattern at once (a Pike VM over
+ * a Thompson NFA), so matching takes time linear in the length of the input no matter
+ * how the pattern is written. Threads are kept in the priority order a backtracking
+ * matcher would try them in, so for the supported syntax the matches and groups are
+ * the same as the ones of java.util.regex.
+ * <p/>
+ * Supported syntax:
+ * <ul>
+ * <li>literals, escaped metacharacters, \t \n \r \f \a \e, \xhh, \x{h...h}, \\uhhhh</li>
+ * <li>., \d, \D, \w, \W, \s, \S and character classes with ranges and negation</li>
+ * <li>capturing groups, (?:...) groups and alternation</li>
+ * <li>*, +, ?, {n}, {n,}, {n,m} and their reluctant (?) forms</li>
+ * <li>^ and $ (without MULTILINE)</li>
+ * <li>the CASE_INSENSITIVE flag (US-ASCII only, like java.util.regex)</li>
+ * </ul>
+ * Anything else (back references, lookaround, possessive quantifiers, inline flags,
+ * named groups, \b, \p{...}, class intersections, repeating a sub-pattern that can match
+ * the empty string, ...) is rejected with UnsupportedSyntaxException.
+ */
+public class LinearPattern extends CompiledPattern {
+
+    /**
+     * Thrown when a (valid) regex uses syntax this engine doesn't support.
+     */
+    public static class UnsupportedSyntaxException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public UnsupportedSyntaxException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Upper bound for the number of instructions, to keep counted repetitions in check.
+     */
+    private final static int MAX_PROGRAM_SIZE = 10000;
+
+    private final static int OP_CHAR = 0;
+    private final static int OP_MATCH = 1;
+    private final static int OP_JMP = 2;
+    private final static int OP_SPLIT = 3;
+    private final static int OP_SAVE = 4;
+    private final static int OP_BEGIN = 5;
+    private final static int OP_END = 6;
+
+    private final String regex;
+    private final int groupCount;
+
+    // the program
+    private final int[] ops;
+    private final int[] arg1;
+    private final int[] arg2;
+    private final CharClass[] classes;
+
+    public LinearPattern(String regex, int flags) throws UnsupportedSyntaxException {
+        if ((flags & ~Pattern.CASE_INSENSITIVE) != 0) {
+            throw new UnsupportedSyntaxException("only the CASE_INSENSITIVE flag is supported");
+        }
+
+        this.regex = regex;
+
+        Parser parser = new Parser(regex, (flags & Pattern.CASE_INSENSITIVE) != 0);
+        Node root = parser.parse();
+        this.groupCount = parser.groups;
+
+        Compiler compiler = new Compiler();
+        compiler.emit(OP_SAVE, 0, 0, null);
+        compiler.compile(root);
+        compiler.emit(OP_SAVE, 1, 0, null);
+        compiler.emit(OP_MATCH, 0, 0, null);
+
+        int size = compiler.size;
+        this.ops = Arrays.copyOf(compiler.ops, size);
+        this.arg1 = Arrays.copyOf(compiler.arg1, size);
+        this.arg2 = Arrays.copyOf(compiler.arg2, size);
+        this.classes = Arrays.copyOf(compiler.classes, size);
+    }
+
+    public MatchResult matches(CharSequence input) {
+        int[] groups = run(input, 0, true);
+        return (groups == null) ? null : new Result(input, groups);
+    }
+
+    /**
+     * Find the next match in input, like Matcher#find(int).
+     *
+     * @return the match, or null if there is none
+     */
+    public MatchResult find(CharSequence input, int from) {
+        int[] groups = run(input, from, false);
+        return (groups == null) ? null : new Result(input, groups);
+    }
+
+    public String replaceAll(CharSequence input, String replacement) {
+        MatchResult m = find(input, 0);
+        if (m == null) {
+            return input.toString();
+        }
+
+        StringBuilder sb = new StringBuilder(input.length() + 16);
+        int last = 0;
+        while (m != null) {
+            sb.append(input, last, m.start());
+            appendReplacement(m, input, replacement, sb);
+            last = m.end();
+
+            // like Matcher#find(), step over empty matches
+            int next = (m.end() == m.start()) ? m.end() + 1 : m.end();
+            m = (next <= input.length()) ? find(input, next) : null;
+        }
+        sb.append(input, last, input.length());
+
+        return sb.toString();
+    }
+
+    /**
+     * Expand replacement the way Matcher#appendReplacement does.
+     */
+    private void appendReplacement(MatchResult m, CharSequence input, String replacement, StringBuilder sb) {
+        int i = 0;
+        while (i < replacement.length()) {
+            char c = replacement.charAt(i);
+            if (c == '\\') {
+                i++;
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("character to be escaped is missing");
+                }
+                sb.append(replacement.charAt(i++));
+            } else if (c == '$') {
+                i++;
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("Illegal group reference: group index is missing");
+                }
+
+                int ref = Character.digit(replacement.charAt(i), 10);
+                if (ref < 0 || replacement.charAt(i) > '9') {
+                    throw new IllegalArgumentException("Illegal group reference");
+                }
+                i++;
+
+                while (i < replacement.length()) {
+                    int digit = Character.digit(replacement.charAt(i), 10);
+                    if (digit < 0 || replacement.charAt(i) > '9' || ref * 10 + digit > groupCount) {
+                        break;
+                    }
+                    ref = ref * 10 + digit;
+                    i++;
+                }
+
+                if (ref > groupCount) {
+                    throw new IndexOutOfBoundsException("No group " + ref);
+                }
+
+                if (m.start(ref) >= 0) {
+                    sb.append(input, m.start(ref), m.end(ref));
+                }
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+    }
+
+    public int groupCount() {
+        return groupCount;
+    }
+
+    public String pattern() {
+        return regex;
+    }
+
+    public String getEngine() {
+        return ENGINE_LINEAR;
+    }
+
+    /**
+     * Run the program over input starting at from.
+     *
+     * @param full true to only accept a match of the whole input (anchored at from),
+     *             false to find the leftmost match starting at or after from
+     * @return group offsets of the match, or null
+     */
+    private int[] run(CharSequence input, int from, boolean full) {
+        int len = input.length();
+        int size = ops.length;
+
+        Threads current = new Threads(size);
+        Threads next = new Threads(size);
+        int[] matched = null;
+        int pos = from;
+
+        int[] initial = new int[2 * (groupCount + 1)];
+        Arrays.fill(initial, -1);
+
+        while (true) {
+            if (matched == null && (!full || pos == from)) {
+                // the lowest priority thread starts a new match at this position
+                add(current, 0, initial, input, pos);
+            }
+
+            if (current.count == 0) {
+                if (full || matched != null || pos >= len) {
+                    break;
+                }
+                pos += Character.charCount(Character.codePointAt(input, pos));
+                current.generation++;
+                continue;
+            }
+
+            int cp = (pos < len) ? Character.codePointAt(input, pos) : -1;
+            int nextPos = (cp < 0) ? pos : pos + Character.charCount(cp);
+            next.clear();
+
+            for (int i = 0; i < current.count; i++) {
+                int pc = current.pcs[i];
+
+                if (ops[pc] == OP_MATCH) {
+                    if (full && pos != len) {
+                        continue;
+                    }
+
+                    matched = current.groups[i];
+                    // lower priority threads can't win anymore
+                    break;
+                }
+
+                // OP_CHAR
+                if (cp >= 0 && classes[pc].matches(cp)) {
+                    add(next, pc + 1, current.groups[i], input, nextPos);
+                }
+            }
+
+            if (pos >= len) {
+                break;
+            }
+
+            Threads swap = current;
+            current = next;
+            next = swap;
+            pos = nextPos;
+        }
+
+        return matched;
+    }
+
+    /**
+     * Add a thread and everything reachable from it without consuming input,
+     * depth first so that the thread list stays in priority order.
+     */
+    private void add(Threads list, int startPc, int[] startGroups, CharSequence input, int pos) {
+        int[] pcStack = list.pcStack;
+        int[][] groupStack = list.groupStack;
+        int top = 0;
+
+        pcStack[top] = startPc;
+        groupStack[top] = startGroups;
+        top++;
+
+        while (top > 0) {
+            top--;
+            int pc = pcStack[top];
+            int[] groups = groupStack[top];
+            groupStack[top] = null;
+
+            if (list.marks[pc] == list.generation) {
+                continue;
+            }
+            list.marks[pc] = list.generation;
+
+            switch (ops[pc]) {
+                case OP_JMP:
+                    pcStack[top] = arg1[pc];
+                    groupStack[top++] = groups;
+                    break;
+                case OP_SPLIT:
+                    // push the lower priority branch first, so the preferred one is followed first
+                    pcStack[top] = arg2[pc];
+                    groupStack[top++] = groups;
+                    pcStack[top] = arg1[pc];
+                    groupStack[top++] = groups;
+                    break;
+                case OP_SAVE:
+                    int[] copy = groups.clone();
+                    copy[arg1[pc]] = pos;
+                    pcStack[top] = pc + 1;
+                    groupStack[top++] = copy;
+                    break;
+                case OP_BEGIN:
+                    if (pos == 0) {
+                        pcStack[top] = pc + 1;
+                        groupStack[top++] = groups;
+                    }
+                    break;
+                case OP_END:
+                    if (isEnd(input, pos)) {
+                        pcStack[top] = pc + 1;
+                        groupStack[top++] = groups;
+                    }
+                    break;
+                default:
+                    list.pcs[list.count] = pc;
+                    list.groups[list.count] = groups;
+                    list.count++;
+            }
+        }
+    }
+
+    /**
+     * '$' without MULTILINE: at the end of input, or before a line terminator at the end of input.
+     */
+    private static boolean isEnd(CharSequence input, int pos) {
+        int len = input.length();
+        if (pos == len) {
+            return true;
+        }
+
+        if (pos < len - 2) {
+            return false;
+        }
+
+        char c = input.charAt(pos);
+        if (pos == len - 2) {
+            return c == '\r' && input.charAt(pos + 1) == '\n';
+        }
+
+        if (c == '\n') {
+            return pos == 0 || input.charAt(pos - 1) != '\r';
+        }
+
+        return c == '\r' || c == '\u0085' || (c | 1) == '\u2029';
+    }
+
+    private static class Threads {
+        final int[] pcs;
+        final int[][] groups;
+        final int[] marks;
+        final int[] pcStack;
+        final int[][] groupStack;
+        int count;
+        int generation = 1;
+
+        Threads(int size) {
+            pcs = new int[size];
+            groups = new int[size][];
+            marks = new int[size];
+            // every instruction is pushed at most twice per generation (once per incoming edge in
+            // the worst case of a split), keep some headroom
+            pcStack = new int[2 * size + 2];
+            groupStack = new int[2 * size + 2][];
+        }
+
+        void clear() {
+            count = 0;
+            generation++;
+        }
+    }
+
+    private static class Result implements MatchResult {
+        private final CharSequence input;
+        private final int[] groups;
+
+        Result(CharSequence input, int[] groups) {
+            this.input = input;
+            this.groups = groups;
+        }
+
+        public int start() {
+            return groups[0];
+        }
+
+        public int start(int group) {
+            check(group);
+            return groups[2 * group];
+        }
+
+        public int end() {
+            return groups[1];
+        }
+
+        public int end(int group) {
+            check(group);
+            return groups[2 * group + 1];
+        }
+
+        public String group() {
+            return group(0);
+        }
+
+        public String group(int group) {
+            check(group);
+            int start = groups[2 * group];
+            return (start < 0) ? null : input.subSequence(start, groups[2 * group + 1]).toString();
+        }
+
+        public int groupCount() {
+            return groups.length / 2 - 1;
+        }
+
+        private void check(int group) {
+            if (group < 0 || group > groupCount()) {
+                throw new IndexOutOfBoundsException("No group " + group);
+            }
+        }
+    }
+
+    // ---- character classes ----
+
+    /**
+     * Set of code points as sorted, non overlapping [from, to] ranges.
+     */
+    private static class CharClass {
+        private final int[] ranges;
+
+        CharClass(int[] ranges) {
+            this.ranges = ranges;
+        }
+
+        boolean matches(int cp) {
+            // most classes are tiny, a linear scan is as fast as a binary search here
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (cp < ranges[i]) {
+                    return false;
+                }
+                if (cp <= ranges[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Mutable collection of ranges used while parsing.
+     */
+    private static class RangeSet {
+        private final List ranges = new ArrayList();
+
+        void add(int from, int to) {
+            ranges.add(new int[]{from, to});
+        }
+
+        void addAll(RangeSet other) {
+            ranges.addAll(other.ranges);
+        }
+
+        /**
+         * Add the other case of every ASCII letter in the set, like CASE_INSENSITIVE does.
+         */
+        void foldAsciiCase() {
+            int[][] current = (int[][]) ranges.toArray(new int[ranges.size()][]);
+            for (int c = 'A'; c <= 'Z'; c++) {
+                boolean upper = contains(current, c);
+                boolean lower = contains(current, c + 32);
+                if (upper && !lower) {
+                    add(c + 32, c + 32);
+                } else if (lower && !upper) {
+                    add(c, c);
+                }
+            }
+        }
+
+        private static boolean contains(int[][] ranges, int c) {
+            for (int i = 0; i < ranges.length; i++) {
+                if (c >= ranges[i][0] && c <= ranges[i][1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int[] normalize(boolean negate) {
+            int[][] sorted = (int[][]) ranges.toArray(new int[ranges.size()][]);
+            Arrays.sort(sorted, new Comparator() {
+                public int compare(Object a, Object b) {
+                    return Integer.compare(((int[]) a)[0], ((int[]) b)[0]);
+                }
+            });
+
+            List merged = new ArrayList();
+            for (int i = 0; i < sorted.length; i++) {
+                int[] r = sorted[i];
+                if (!merged.isEmpty()) {
+                    int[] last = (int[]) merged.get(merged.size() - 1);
+                    if (r[0] <= last[1] + 1) {
+                        last[1] = Math.max(last[1], r[1]);
+                        continue;
+                    }
+                }
+                merged.add(new int[]{r[0], r[1]});
+            }
+
+            List result = new ArrayList();
+            if (!negate) {
+                for (int i = 0; i < merged.size(); i++) {
+                    int[] r = (int[]) merged.get(i);
+                    result.add(Integer.valueOf(r[0]));
+                    result.add(Integer.valueOf(r[1]));
+                }
+            } else {
+                int start = 0;
+                for (int i = 0; i < merged.size(); i++) {
+                    int[] r = (int[]) merged.get(i);
+                    if (r[0] > start) {
+                        result.add(Integer.valueOf(start));
+                        result.add(Integer.valueOf(r[0] - 1));
+                    }
+                    start = r[1] + 1;
+                }
+                if (start <= Character.MAX_CODE_POINT) {
+                    result.add(Integer.valueOf(start));
+                    result.add(Integer.valueOf(Character.MAX_CODE_POINT));
+                }
+            }
+
+            int[] array = new int[result.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = ((Integer) result.get(i)).intValue();
+            }
+            return array;
+        }
+    }
+
+    // ---- syntax tree ----
+
+    private static class Node {
+        final int type;
+        final CharClass charClass;
+        final Node[] children;
+        final int group;
+        final int min;
+        final int max;
+        final boolean greedy;
+
+        Node(int type, CharClass charClass, Node[] children, int group, int min, int max, boolean greedy) {
+            this.type = type;
+            this.charClass = charClass;
+            this.children = children;
+            this.group = group;
+            this.min = min;
+            this.max = max;
+            this.greedy = greedy;
+        }
+
+        /**
+         * @return true if this node can match the empty string
+         */
+        boolean nullable() {
+            switch (type) {
+                case N_CHAR:
+                    return false;
+                case N_CONCAT:
+                    for (int i = 0; i < children.length; i++) {
+                        if (!children[i].nullable()) {
+                            return false;
+                        }
+                    }
+                    return true;
+                case N_ALT:
+                    for (int i = 0; i < children.length; i++) {
+                        if (children[i].nullable()) {
+                            return true;
+                        }
+                    }
+                    return false;
+                case N_GROUP:
+                    return children[0].nullable();
+                case N_REPEAT:
+                    return min == 0 || children[0].nullable();
+                default:
+                    return true;
+            }
+        }
+    }
+
+    private final static int N_CHAR = 0;
+    private final static int N_CONCAT = 1;
+    private final static int N_ALT = 2;
+    private final static int N_GROUP = 3;
+    private final static int N_REPEAT = 4;
+    private final static int N_BEGIN = 5;
+    private final static int N_END = 6;
+
+    private static class Parser {
+        private final String s;
+        private final boolean caseInsensitive;
+        private int pos;
+        int groups;
+
+        Parser(String s, boolean caseInsensitive) {
+            this.s = s;
+            this.caseInsensitive = caseInsensitive;
+        }
+
+        Node parse() throws UnsupportedSyntaxException {
+            Node node = parseAlternation();
+            if (pos < s.length()) {
+                throw new UnsupportedSyntaxException("unexpected '" + s.charAt(pos) + "' at index " + pos);
+            }
+            return node;
+        }
+
+        private Node parseAlternation() throws UnsupportedSyntaxException {
+            List branches = new ArrayList();
+            branches.add(parseConcatenation());
+            while (pos < s.length() && s.charAt(pos) == '|') {
+                pos++;
+                branches.add(parseConcatenation());
+            }
+
+            if (branches.size() == 1) {
+                return (Node) branches.get(0);
+            }
+            return new Node(N_ALT, null, (Node[]) branches.toArray(new Node[branches.size()]), 0, 0, 0, true);
+        }
+
+        private Node parseConcatenation() throws UnsupportedSyntaxException {
+            List items = new ArrayList();
+            while (pos < s.length() && s.charAt(pos) != '|' && s.charAt(pos) != ')') {
+                items.add(parseRepetition());
+            }
+            return new Node(N_CONCAT, null, (Node[]) items.toArray(new Node[items.size()]), 0, 0, 0, true);
+        }
+
+        private Node parseRepetition() throws UnsupportedSyntaxException {
+            int atomStart = pos;
+            Node atom = parseAtom();
+
+            if (pos >= s.length()) {
+                return atom;
+            }
+
+            int min;
+            int max;
+            char c = s.charAt(pos);
+            if (c == '*') {
+                min = 0;
+                max = -1;
+                pos++;
+            } else if (c == '+') {
+                min = 1;
+                max = -1;
+                pos++;
+            } else if (c == '?') {
+                min = 0;
+                max = 1;
+                pos++;
+            } else if (c == '{') {
+                int close = s.indexOf('}', pos);
+                if (close < 0) {
+                    throw new UnsupportedSyntaxException("unclosed counted repetition at index " + pos);
+                }
+                String spec = s.substring(pos + 1, close);
+                int comma = spec.indexOf(',');
+                try {
+                    if (comma < 0) {
+                        min = Integer.parseInt(spec);
+                        max = min;
+                    } else {
+                        min = Integer.parseInt(spec.substring(0, comma));
+                        max = (comma == spec.length() - 1) ? -1 : Integer.parseInt(spec.substring(comma + 1));
+                    }
+                } catch (NumberFormatException e) {
+                    throw new UnsupportedSyntaxException("invalid counted repetition at index " + pos);
+                }
+                if (min > 1000 || max > 1000) {
+                    throw new UnsupportedSyntaxException("counted repetition too large at index " + pos);
+                }
+                pos = close + 1;
+            } else {
+                return atom;
+            }
+
+            boolean greedy = true;
+            if (pos < s.length()) {
+                char modifier = s.charAt(pos);
+                if (modifier == '?') {
+                    greedy = false;
+                    pos++;
+                } else if (modifier == '+') {
+                    throw new UnsupportedSyntaxException("possessive quantifier at index " + pos);
+                }
+            }
+
+            if (atom.type == N_BEGIN || atom.type == N_END) {
+                throw new UnsupportedSyntaxException("quantified anchor at index " + atomStart);
+            }
+
+            if ((max < 0 || max > 1) && atom.nullable()) {
+                // java.util.regex has its own rules for empty iterations, don't try to imitate them
+                throw new UnsupportedSyntaxException("repetition of an expression that can match the empty string" +
+                        " at index " + atomStart);
+            }
+
+            return new Node(N_REPEAT, null, new Node[]{atom}, 0, min, max, greedy);
+        }
+
+        private Node parseAtom() throws UnsupportedSyntaxException {
+            char c = s.charAt(pos);
+            switch (c) {
+                case '(':
+                    pos++;
+                    int group = -1;
+                    if (pos < s.length() && s.charAt(pos) == '?') {
+                        if (pos + 1 < s.length() && s.charAt(pos + 1) == ':') {
+                            pos += 2;
+                        } else {
+                            throw new UnsupportedSyntaxException("special group construct at index " + (pos - 1));
+                        }
+                    } else {
+                        group = ++groups;
+                    }
+
+                    Node inner = parseAlternation();
+                    if (pos >= s.length() || s.charAt(pos) != ')') {
+                        throw new UnsupportedSyntaxException("unclosed group");
+                    }
+                    pos++;
+                    return new Node(N_GROUP, null, new Node[]{inner}, group, 0, 0, true);
+                case '[':
+                    return charNode(parseClass());
+                case '.':
+                    pos++;
+                    RangeSet dot = new RangeSet();
+                    dot.add('\n', '\n');
+                    dot.add('\r', '\r');
+                    dot.add('\u0085', '\u0085');
+                    dot.add('\u2028', '\u2029');
+                    return new Node(N_CHAR, new CharClass(dot.normalize(true)), null, 0, 0, 0, true);
+                case '^':
+                    pos++;
+                    return new Node(N_BEGIN, null, null, 0, 0, 0, true);
+                case '$':
+                    pos++;
+                    return new Node(N_END, null, null, 0, 0, 0, true);
+                case '\\':
+                    return charNode(parseEscape(false));
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw new UnsupportedSyntaxException("dangling '" + c + "' at index " + pos);
+                default:
+                    int cp = s.codePointAt(pos);
+                    pos += Character.charCount(cp);
+                    RangeSet literal = new RangeSet();
+                    literal.add(cp, cp);
+                    return charNode(literal);
+            }
+        }
+
+        private Node charNode(RangeSet set) {
+            return charNode(set, false);
+        }
+
+        private Node charNode(RangeSet set, boolean negate) {
+            if (caseInsensitive) {
+                set.foldAsciiCase();
+            }
+            return new Node(N_CHAR, new CharClass(set.normalize(negate)), null, 0, 0, 0, true);
+        }
+
+        /**
+         * Parse [...], pos is at the '['.
+         */
+        private RangeSet parseClass() throws UnsupportedSyntaxException {
+            int start = pos;
+            pos++;
+            boolean negate = false;
+            if (pos < s.length() && s.charAt(pos) == '^') {
+                negate = true;
+                pos++;
+            }
+
+            if (pos < s.length() && s.charAt(pos) == ']') {
+                throw new UnsupportedSyntaxException("']' at the start of a character class at index " + pos);
+            }
+
+            RangeSet set = new RangeSet();
+            while (true) {
+                if (pos >= s.length()) {
+                    throw new UnsupportedSyntaxException("unclosed character class at index " + start);
+                }
+
+                char c = s.charAt(pos);
+                if (c == ']') {
+                    pos++;
+                    break;
+                }
+                if (c == '[' || (c == '&' && pos + 1 < s.length() && s.charAt(pos + 1) == '&')) {
+                    throw new UnsupportedSyntaxException("nested character class or intersection at index " + pos);
+                }
+
+                int from;
+                if (c == '\\') {
+                    RangeSet escaped = parseEscape(true);
+                    if (escaped.ranges.size() != 1 || ((int[]) escaped.ranges.get(0))[0] != ((int[]) escaped.ranges.get(0))[1]) {
+                        // predefined class such as \d inside the class
+                        if (pos < s.length() && s.charAt(pos) == '-' && pos + 1 < s.length() && s.charAt(pos + 1) != ']') {
+                            throw new UnsupportedSyntaxException("range with a predefined class at index " + pos);
+                        }
+                        set.addAll(escaped);
+                        continue;
+                    }
+                    from = ((int[]) escaped.ranges.get(0))[0];
+                } else {
+                    from = s.codePointAt(pos);
+                    pos += Character.charCount(from);
+                }
+
+                if (pos + 1 < s.length() && s.charAt(pos) == '-' && s.charAt(pos + 1) != ']') {
+                    pos++;
+                    int to;
+                    char d = s.charAt(pos);
+                    if (d == '[') {
+                        throw new UnsupportedSyntaxException("nested character class at index " + pos);
+                    }
+                    if (d == '\\') {
+                        RangeSet escaped = parseEscape(true);
+                        if (escaped.ranges.size() != 1 || ((int[]) escaped.ranges.get(0))[0] != ((int[]) escaped.ranges.get(0))[1]) {
+                            throw new UnsupportedSyntaxException("range with a predefined class at index " + pos);
+                        }
+                        to = ((int[]) escaped.ranges.get(0))[0];
+                    } else {
+                        to = s.codePointAt(pos);
+                        pos += Character.charCount(to);
+                    }
+                    set.add(from, to);
+                } else {
+                    set.add(from, from);
+                }
+            }
+
+            if (!negate) {
+                return set;
+            }
+
+            // negate after folding case, like java.util.regex does
+            if (caseInsensitive) {
+                set.foldAsciiCase();
+            }
+            int[] negated = set.normalize(true);
+            RangeSet result = new RangeSet();
+            for (int i = 0; i < negated.length; i += 2) {
+                result.add(negated[i], negated[i + 1]);
+            }
+            return result;
+        }
+
+        /**
+         * Parse an escape sequence, pos is at the backslash.
+         */
+        private RangeSet parseEscape(boolean inClass) throws UnsupportedSyntaxException {
+            int start = pos;
+            pos++;
+            if (pos >= s.length()) {
+                throw new UnsupportedSyntaxException("trailing backslash");
+            }
+
+            int c = s.codePointAt(pos);
+            pos += Character.charCount(c);
+            RangeSet set = new RangeSet();
+
+            switch (c) {
+                case 'd':
+                    set.add('0', '9');
+                    return set;
+                case 'D':
+                    return negated(digitSet());
+                case 'w':
+                    return wordSet();
+                case 'W':
+                    return negated(wordSet());
+                case 's':
+                    return spaceSet();
+                case 'S':
+                    return negated(spaceSet());
+                case 't':
+                    c = '\t';
+                    break;
+                case 'n':
+                    c = '\n';
+                    break;
+                case 'r':
+                    c = '\r';
+                    break;
+                case 'f':
+                    c = '\f';
+                    break;
+                case 'a':
+                    c = '\u0007';
+                    break;
+                case 'e':
+                    c = '\u001B';
+                    break;
+                case 'x':
+                    c = parseHex();
+                    break;
+                case 'u':
+                    c = parseHexDigits(4);
+                    break;
+                default:
+                    if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+                        throw new UnsupportedSyntaxException("escape sequence \\" + (char) c + " at index " + start);
+                    }
+            }
+
+            set.add(c, c);
+            return set;
+        }
+
+        private int parseHex() throws UnsupportedSyntaxException {
+            if (pos < s.length() && s.charAt(pos) == '{') {
+                int close = s.indexOf('}', pos);
+                if (close < 0) {
+                    throw new UnsupportedSyntaxException("unclosed hexadecimal escape");
+                }
+                try {
+                    int cp = Integer.parseInt(s.substring(pos + 1, close), 16);
+                    pos = close + 1;
+                    return cp;
+                } catch (NumberFormatException e) {
+                    throw new UnsupportedSyntaxException("invalid hexadecimal escape");
+                }
+            }
+            return parseHexDigits(2);
+        }
+
+        private int parseHexDigits(int count) throws UnsupportedSyntaxException {
+            if (pos + count > s.length()) {
+                throw new UnsupportedSyntaxException("invalid hexadecimal escape");
+            }
+            try {
+                int value = Integer.parseInt(s.substring(pos, pos + count), 16);
+                pos += count;
+                return value;
+            } catch (NumberFormatException e) {
+                throw new UnsupportedSyntaxException("invalid hexadecimal escape");
+            }
+        }
+
+        private static RangeSet digitSet() {
+            RangeSet set = new RangeSet();
+            set.add('0', '9');
+            return set;
+        }
+
+        private static RangeSet wordSet() {
+            RangeSet set = new RangeSet();
+            set.add('a', 'z');
+            set.add('A', 'Z');
+            set.add('_', '_');
+            set.add('0', '9');
+            return set;
+        }
+
+        private static RangeSet spaceSet() {
+            RangeSet set = new RangeSet();
+            set.add(' ', ' ');
+            set.add('\t', '\n');
+            set.add('\u000B', '\r');
+            return set;
+        }
+
+        private static RangeSet negated(RangeSet set) {
+            int[] ranges = set.normalize(true);
+            RangeSet result = new RangeSet();
+            for (int i = 0; i < ranges.length; i += 2) {
+                result.add(ranges[i], ranges[i + 1]);
+            }
+            return result;
+        }
+    }
+
+    // ---- program generation ----
+
+    private static class Compiler {
+        int[] ops = new int[64];
+        int[] arg1 = new int[64];
+        int[] arg2 = new int[64];
+        CharClass[] classes = new CharClass[64];
+        int size;
+
+        int emit(int op, int a1, int a2, CharClass charClass) throws UnsupportedSyntaxException {
+            if (size == MAX_PROGRAM_SIZE) {
+                throw new UnsupportedSyntaxException("pattern is too large");
+            }
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                arg1 = Arrays.copyOf(arg1, size * 2);
+                arg2 = Arrays.copyOf(arg2, size * 2);
+                classes = Arrays.copyOf(classes, size * 2);
+            }
+            ops[size] = op;
+            arg1[size] = a1;
+            arg2[size] = a2;
+            classes[size] = charClass;
+            return size++;
+        }
+
+        void compile(Node node) throws UnsupportedSyntaxException {
+            switch (node.type) {
+                case N_CHAR:
+                    emit(OP_CHAR, 0, 0, node.charClass);
+                    break;
+                case N_BEGIN:
+                    emit(OP_BEGIN, 0, 0, null);
+                    break;
+                case N_END:
+                    emit(OP_END, 0, 0, null);
+                    break;
+                case N_CONCAT:
+                    for (int i = 0; i < node.children.length; i++) {
+                        compile(node.children[i]);
+                    }
+                    break;
+                case N_GROUP:
+                    if (node.group > 0) {
+                        emit(OP_SAVE, 2 * node.group, 0, null);
+                    }
+                    compile(node.children[0]);
+                    if (node.group > 0) {
+                        emit(OP_SAVE, 2 * node.group + 1, 0, null);
+                    }
+                    break;
+                case N_ALT:
+                    compileAlternation(node.children, 0);
+                    break;
+                case N_REPEAT:
+                    compileRepetition(node);
+                    break;
+                default:
+                    throw new UnsupportedSyntaxException("unknown node");
+            }
+        }
+
+        private void compileAlternation(Node[] branches, int from) throws UnsupportedSyntaxException {
+            if (from == branches.length - 1) {
+                compile(branches[from]);
+                return;
+            }
+
+            int split = emit(OP_SPLIT, 0, 0, null);
+            arg1[split] = size;
+            compile(branches[from]);
+            int jump = emit(OP_JMP, 0, 0, null);
+            arg2[split] = size;
+            compileAlternation(branches, from + 1);
+            arg1[jump] = size;
+        }
+
+        private void compileRepetition(Node node) throws UnsupportedSyntaxException {
+            Node body = node.children[0];
+            for (int i = 0; i < node.min; i++) {
+                compile(body);
+            }
+
+            if (node.max < 0) {
+                int split = emit(OP_SPLIT, 0, 0, null);
+                int bodyStart = size;
+                compile(body);
+                emit(OP_JMP, split, 0, null);
+                setSplit(split, bodyStart, size, node.greedy);
+                return;
+            }
+
+            List splits = new ArrayList();
+            for (int i = node.min; i < node.max; i++) {
+                int split = emit(OP_SPLIT, 0, 0, null);
+                splits.add(Integer.valueOf(split));
+                arg1[split] = size;
+                compile(body);
+            }
+
+            for (int i = 0; i < splits.size(); i++) {
+                int split = ((Integer) splits.get(i)).intValue();
+                setSplit(split, split + 1, size, node.greedy);
+            }
+        }
+
+        private void setSplit(int split, int body, int exit, boolean greedy) {
+            arg1[split] = greedy ? body : exit;
+            arg2[split] = greedy ? exit : body;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of mapper results, keyed by what was mapped (a dynamicroles header,
+ * remote user or full name) and the raw value. Mapping only depends on the
+ * configuration, so each ShibAuthConfiguration owns its cache and a reload starts
+ * with an empty one.
+ * <p/>
+ * The cache is split into segments, each a small LRU map with its own lock, so
+ * request threads rarely wait on each other. Hits, misses and evictions are counted
+ * in ShibAuthStatistics.
+ */
+public class MappingCache {
+
+    private final static int MAX_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final int mask;
+
+    /**
+     * @param maxSize maximum number of entries, at least 1
+     */
+    public MappingCache(int maxSize) {
+        // a power of two number of segments, each holding at least 64 entries
+        int count = 1;
+        while (count < MAX_SEGMENTS && count * 2 * 64 <= maxSize) {
+            count *= 2;
+        }
+
+        segments = new Segment[count];
+        mask = count - 1;
+        int perSegment = (maxSize + count - 1) / count;
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * @param namespace what is mapped, e.g. the dynamicroles header
+     * @param value     the raw value
+     * @return the cached result or null
+     */
+    public Object get(String namespace, String value) {
+        Key key = new Key(namespace, value);
+        Segment segment = segmentFor(key);
+        Object result;
+        synchronized (segment) {
+            result = segment.get(key);
+        }
+
+        if (result == null) {
+            ShibAuthStatistics.mappingCacheMissed();
+        } else {
+            ShibAuthStatistics.mappingCacheHit();
+        }
+
+        return result;
+    }
+
+    /**
+     * Cache a result. Results must not be modified once cached.
+     */
+    public void put(String namespace, String value, Object result) {
+        Key key = new Key(namespace, value);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, result);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                size += segments[i].size();
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentFor(Key key) {
+        int h = key.hash;
+        return segments[(h ^ (h >>> 16)) & mask];
+    }
+
+    private static class Key {
+        private final String namespace;
+        private final String value;
+        private final int hash;
+
+        Key(String namespace, String value) {
+            this.namespace = namespace;
+            this.value = value;
+            this.hash = namespace.hashCode() * 31 + value.hashCode();
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            return hash == other.hash && value.equals(other.value) && namespace.equals(other.namespace);
+        }
+    }
+
+    private static class Segment extends LinkedHashMap {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            if (size() > maxSize) {
+                ShibAuthStatistics.mappingCacheEvicted();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The mapping part of the configuration properties, indexed in one pass over all
+ * properties: the dynamicroles.header.* entries, and the .match, .transform and
+ * .casesensitive parts of every mapper grouped by mapper prefix and label. Generated
+ * configurations can have many thousands of mappers, so the loader looks them up
+ * here instead of scanning all property keys for each prefix.
+ */
+class MappingProperties {
+
+    private final static String[] MAPPER_PREFIXES = {
+            ShibAuthConstants.ROLES_ATTRIB_PREFIX,
+            ShibAuthConstants.REMOTEUSER_MAP_PREFIX,
+            ShibAuthConstants.FULL_NAME_MAP_PREFIX
+    };
+
+    /**
+     * Map<header, mapper labels> of the dynamicroles.header.* properties
+     */
+    private final Map roleHeaders = new LinkedHashMap();
+
+    /**
+     * Map<mapper prefix, Map<label, MapperDefinition>>
+     */
+    private final Map mappers = new HashMap();
+
+    MappingProperties(Properties configProps) {
+        for (int i = 0; i < MAPPER_PREFIXES.length; i++) {
+            mappers.put(MAPPER_PREFIXES[i], new HashMap());
+        }
+
+        for (Iterator it = configProps.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String key = entry.getKey().toString();
+            String value = entry.getValue().toString();
+
+            if (key.startsWith(ShibAuthConstants.ROLES_HEADER_PREFIX)) {
+                String header = key.substring(ShibAuthConstants.ROLES_HEADER_PREFIX.length());
+                if (header.length() != 0) {
+                    roleHeaders.put(header, value);
+                }
+                continue;
+            }
+
+            for (int i = 0; i < MAPPER_PREFIXES.length; i++) {
+                if (key.startsWith(MAPPER_PREFIXES[i])) {
+                    addMapperPart((Map) mappers.get(MAPPER_PREFIXES[i]), key.substring(MAPPER_PREFIXES[i].length()),
+                            value);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void addMapperPart(Map definitions, String labelAndPart, String value) {
+        int dot = labelAndPart.lastIndexOf('.');
+        if (dot <= 0) {
+            return;
+        }
+
+        String label = labelAndPart.substring(0, dot);
+        String part = labelAndPart.substring(dot);
+        if (!part.equals(ShibAuthConstants.PART_MATCH) && !part.equals(ShibAuthConstants.PART_TRANSFORM) &&
+                !part.equals(ShibAuthConstants.PART_SENSITIVE)) {
+            return;
+        }
+
+        MapperDefinition definition = (MapperDefinition) definitions.get(label);
+        if (definition == null) {
+            definition = new MapperDefinition();
+            definitions.put(label, definition);
+        }
+
+        if (part.equals(ShibAuthConstants.PART_MATCH)) {
+            definition.match = value;
+        } else if (part.equals(ShibAuthConstants.PART_TRANSFORM)) {
+            definition.transform = value;
+        } else {
+            definition.sensitive = value;
+        }
+    }
+
+    /**
+     * @return the headers of the dynamicroles.header.* properties
+     */
+    List getRoleHeaders() {
+        return new ArrayList(roleHeaders.keySet());
+    }
+
+    /**
+     * @return the value of dynamicroles.header.[header], i.e. its mapper labels
+     */
+    String getRoleHeaderMappers(String header) {
+        return (String) roleHeaders.get(header);
+    }
+
+    /**
+     * @param mapperPrefix one of ROLES_ATTRIB_PREFIX, REMOTEUSER_MAP_PREFIX and FULL_NAME_MAP_PREFIX
+     * @return the parts of the mapper, or null if none of them is defined
+     */
+    MapperDefinition getMapper(String mapperPrefix, String label) {
+        return (MapperDefinition) ((Map) mappers.get(mapperPrefix)).get(label);
+    }
+
+    static class MapperDefinition {
+        String match;
+        String transform;
+        String sensitive;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.interceptor.DefaultTransactionAttribute;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The provisioning writes of one login (user updates and group membership
+ * changes), collected while the login is processed and applied together by
+ * flush: in one transaction, or in transactions of provisioning.batch.size
+ * writes when there are more.
+ * <p/>
+ * If a write or the commit fails, the transaction is rolled back and its writes
+ * are applied again one transaction each, so a failed write does not keep the
+ * others from being applied, the same as without batching. Savepoints are not
+ * used: Confluence's transaction manager does not allow nested transactions, and
+ * failed Crowd writes often only show when the session is flushed at commit.
+ * With a ProvisioningJournal, the writes of a transaction are journaled before
+ * it starts and marked as applied after it committed.
+ */
+public class ProvisioningBatch {
+
+    private final static Log log = LogFactory.getLog(ProvisioningBatch.class);
+
+    /**
+     * One write of a batch.
+     */
+    public static abstract class Operation {
+
+        private final String description;
+
+        private final ProvisioningJournal.Entry entry;
+
+        /**
+         * Set once the write was committed or failed by itself, as opposed to being lost with a transaction
+         * that could not be committed. Only then is it marked as applied in the journal.
+         */
+        private boolean settled;
+
+        public Operation(String description) {
+            this(description, null);
+        }
+
+        /**
+         * @param entry the write as recorded in the provisioning journal, or null to not journal it
+         */
+        public Operation(String description, ProvisioningJournal.Entry entry) {
+            this.description = description;
+            this.entry = entry;
+        }
+
+        public abstract void run() throws Exception;
+
+        public String toString() {
+            return description;
+        }
+    }
+
+    private final PlatformTransactionManager transactionManager;
+
+    private final int batchSize;
+
+    private final ProvisioningJournal journal;
+
+    private final List operations = new ArrayList();
+
+    /**
+     * @param batchSize the most writes in one transaction, 0 for no limit
+     */
+    public ProvisioningBatch(PlatformTransactionManager transactionManager, int batchSize) {
+        this(transactionManager, batchSize, null);
+    }
+
+    /**
+     * @param batchSize the most writes in one transaction, 0 for no limit
+     * @param journal   the journal the writes are recorded in before they are applied, or null
+     */
+    public ProvisioningBatch(PlatformTransactionManager transactionManager, int batchSize,
+                             ProvisioningJournal journal) {
+        this.transactionManager = transactionManager;
+        this.batchSize = batchSize;
+        this.journal = journal;
+    }
+
+    public void add(Operation operation) {
+        operations.add(operation);
+    }
+
+    /**
+     * @return the number of writes that have not been flushed
+     */
+    public int size() {
+        return operations.size();
+    }
+
+    /**
+     * Apply the collected writes and clear the batch.
+     *
+     * @return true if every write was applied, false if one of them failed
+     */
+    public boolean flush() {
+        int size = operations.size();
+        int chunkSize = (batchSize > 0) ? batchSize : Math.max(size, 1);
+        boolean applied = true;
+
+        for (int start = 0; start < size; start += chunkSize) {
+            List chunk = operations.subList(start, Math.min(start + chunkSize, size));
+
+            if (log.isDebugEnabled()) {
+                log.debug("Applying " + chunk.size() + " provisioning writes in one transaction");
+            }
+
+            // journaled writes are on disk before any of them is applied, with one force for the chunk
+            if (journal != null) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    ProvisioningJournal.Entry entry = ((Operation) chunk.get(i)).entry;
+                    if (entry != null && entry.seq == 0) {
+                        journal.append(entry);
+                    }
+                }
+                journal.sync();
+            }
+
+            if (!apply(chunk)) {
+                applied = false;
+            }
+
+            // only once the transaction is committed
+            if (journal != null) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    Operation operation = (Operation) chunk.get(i);
+                    if (operation.entry != null && operation.settled) {
+                        journal.applied(operation.entry);
+                    }
+                }
+            }
+        }
+
+        operations.clear();
+        return applied;
+    }
+
+    /**
+     * Apply a chunk in one transaction. If a write fails, or the transaction cannot be committed, the
+     * transaction is rolled back and the writes of the chunk are applied again one transaction each.
+     *
+     * @return true if every write of the chunk was applied
+     */
+    private boolean apply(final List chunk) {
+        try {
+            execute(new TransactionCallback() {
+                public Object doInTransaction(TransactionStatus status) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        runInTransaction((Operation) chunk.get(i));
+                    }
+                    return null;
+                }
+            });
+            for (int i = 0; i < chunk.size(); i++) {
+                ((Operation) chunk.get(i)).settled = true;
+            }
+            return true;
+        } catch (RuntimeException e) {
+            if (chunk.size() == 1) {
+                failed((Operation) chunk.get(0), e);
+                return false;
+            }
+            log.warn("Failed to apply " + chunk.size() + " provisioning writes in one transaction, " +
+                    "applying them one at a time: " + ((e instanceof OperationFailedException) ? e.getCause() : e));
+        }
+
+        boolean applied = true;
+        for (int i = 0; i < chunk.size(); i++) {
+            final Operation operation = (Operation) chunk.get(i);
+            try {
+                execute(new TransactionCallback() {
+                    public Object doInTransaction(TransactionStatus status) {
+                        runInTransaction(operation);
+                        return null;
+                    }
+                });
+                operation.settled = true;
+            } catch (RuntimeException e) {
+                failed(operation, e);
+                applied = false;
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Log a write that could not be applied in its own transaction. A write that failed by itself is
+     * settled; one whose transaction failed, e.g. at commit, is left to be replayed from the journal.
+     */
+    private static void failed(Operation operation, RuntimeException e) {
+        if (e instanceof OperationFailedException) {
+            operation.settled = true;
+            log.error("Failed to " + operation + "!", e.getCause());
+        } else {
+            log.error("Failed to " + operation + "!", e);
+        }
+    }
+
+    /**
+     * Run one write in the current transaction; a failure of the write is thrown as an
+     * OperationFailedException, which rolls the transaction back.
+     */
+    private static void runInTransaction(Operation operation) {
+        try {
+            operation.run();
+        } catch (Throwable t) {
+            throw new OperationFailedException(t);
+        }
+    }
+
+    /**
+     * A write that failed, as opposed to the transaction around it
+     */
+    private static class OperationFailedException extends RuntimeException {
+        OperationFailedException(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    // avoid "Write operations are not allowed in read-only mode" per Joseph Clark of Atlassian in
+    // https://answers.atlassian.com/questions/25160/crowdservice-updateuser-causes-write-operations-are-not-allowed-in-read-only-mode
+    // https://developer.atlassian.com/display/CONFDEV/Hibernate+Sessions+and+Transaction+Management+Guidelines
+    private Object execute(TransactionCallback callback) {
+        return new TransactionTemplate(transactionManager,
+                new DefaultTransactionAttribute(TransactionDefinition.PROPAGATION_REQUIRED)).execute(callback);
+    }
+}
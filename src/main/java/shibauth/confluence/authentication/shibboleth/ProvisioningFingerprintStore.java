@@ -0,0 +1,437 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of the provisioning fingerprints, so that users whose
+ * fingerprint has not changed are not updated again after a restart
+ * (update.skip.unchanged.store).
+ * <p/>
+ * The file starts with a MAGIC and FORMAT_VERSION header, followed by one record
+ * per update of a user:
+ * <pre>
+ * int length, byte[length] userid (UTF-8), byte[16] fingerprint, long syncedAt, int crc32
+ * </pre>
+ * The CRC covers the rest of the record. A later record of a user replaces the
+ * earlier ones. Records are not forced to disk one by one; after a crash the file
+ * is read up to the first torn or corrupt record and truncated there, the users
+ * of the lost records are simply updated again. When the file holds more than
+ * twice as many records as there are users, it is compacted in a background
+ * thread into a new file that replaces the old one with an atomic rename. Users
+ * whose last update is older than the max age are dropped then, from the file
+ * and from the entries, since they are updated at their next login anyway.
+ */
+public class ProvisioningFingerprintStore {
+
+    final static int MAGIC = 0x53484650; // "SHFP"
+
+    final static int FORMAT_VERSION = 1;
+
+    final static int HEADER_LENGTH = 8;
+
+    /**
+     * Files with fewer records are not compacted
+     */
+    final static int COMPACT_MIN_RECORDS = 1024;
+
+    /**
+     * Upper bound of the userid length, a larger length means a corrupt record
+     */
+    private final static int MAX_USERID_LENGTH = 4096;
+
+    private final static Log log = LogFactory.getLog(ProvisioningFingerprintStore.class);
+
+    private final File file;
+
+    /**
+     * Map<userid, ProvisioningFingerprints.Entry>, the entries the store belongs to
+     */
+    private final Map entries;
+
+    private FileChannel channel;
+
+    private int records;
+
+    private boolean loaded;
+
+    private boolean failed;
+
+    private boolean closed;
+
+    /**
+     * Records appended before the file was loaded, written once it is
+     */
+    private List pending = new ArrayList();
+
+    /**
+     * Max age of update.skip.unchanged in milliseconds, 0 for no limit
+     */
+    private volatile long maxAgeMillis;
+
+    private boolean compacting;
+
+    /**
+     * Records appended while a compaction writes the new file, added to it before it replaces the old one
+     */
+    private List appendedDuringCompaction;
+
+    /**
+     * The thread of the last compaction
+     */
+    private Thread compactor;
+
+    public ProvisioningFingerprintStore(File file, Map entries) {
+        this.file = file;
+        this.entries = entries;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param maxAgeMillis entries older than this are dropped when the file is compacted, 0 for no limit
+     */
+    public void setMaxAge(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Read the records of the file into the entries, keeping entries that were
+     * synced more recently, and open the file for appending. Until this is done,
+     * appended records are kept in memory.
+     */
+    public void load() throws IOException {
+        long validLength = HEADER_LENGTH;
+        int count = 0;
+
+        new File(file.getPath() + ".tmp").delete();
+        if (file.length() >= HEADER_LENGTH) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    log.warn("Provisioning fingerprint store " + file + " has an unknown format, starting a new one");
+                    validLength = 0;
+                } else {
+                    CRC32 crc = new CRC32();
+                    byte[] fingerprint = new byte[ProvisioningFingerprints.FINGERPRINT_LENGTH];
+                    try {
+                        while (true) {
+                            int length = in.readInt();
+                            if (length < 0 || length > MAX_USERID_LENGTH) {
+                                break;
+                            }
+                            byte[] userid = new byte[length];
+                            in.readFully(userid);
+                            in.readFully(fingerprint);
+                            long syncedAt = in.readLong();
+
+                            ByteBuffer record = encode(userid, fingerprint, syncedAt);
+                            crc.reset();
+                            crc.update(record.array(), 0, record.limit() - 4);
+                            if (in.readInt() != (int) crc.getValue()) {
+                                break;
+                            }
+
+                            ProvisioningFingerprints.putNewer(entries, new String(userid, StandardCharsets.UTF_8),
+                                    new ProvisioningFingerprints.Entry(fingerprint.clone(), syncedAt));
+                            validLength += record.limit();
+                            count++;
+                        }
+                    } catch (EOFException e) {
+                        // torn record at the end of the file
+                    }
+                }
+            }
+        } else {
+            validLength = 0;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            if (validLength > 0 && validLength < file.length()) {
+                log.warn("Provisioning fingerprint store " + file + " has a torn or corrupt record at offset " +
+                        validLength + ", truncating it");
+            }
+
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null) {
+                dir.mkdirs();
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.truncate(validLength);
+            channel.position(validLength);
+            if (validLength == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+                write(header);
+            }
+
+            records = count;
+            loaded = true;
+
+            if (log.isDebugEnabled()) {
+                log.debug("Loaded " + count + " records from provisioning fingerprint store " + file);
+            }
+
+            for (Iterator it = pending.iterator(); it.hasNext(); ) {
+                write((ByteBuffer) it.next());
+                records++;
+            }
+            pending = null;
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Append the latest update of a user. Failures are logged and stop further
+     * writes, the fingerprints are still kept in memory.
+     */
+    public synchronized void append(String userid, ProvisioningFingerprints.Entry entry) {
+        if (failed || closed) {
+            return;
+        }
+
+        ByteBuffer record = encode(userid.getBytes(StandardCharsets.UTF_8), entry.fingerprint, entry.syncedAt);
+        if (!loaded) {
+            pending.add(record);
+            return;
+        }
+
+        try {
+            if (appendedDuringCompaction != null) {
+                appendedDuringCompaction.add(record.duplicate());
+            }
+            write(record);
+            records++;
+            compactIfNeeded();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Start a compaction in a daemon thread if the file holds too many records, so that the login that
+     * appended the last one does not wait for it.
+     */
+    private void compactIfNeeded() {
+        if (compacting || records < COMPACT_MIN_RECORDS || records <= 2 * entries.size()) {
+            return;
+        }
+
+        compacting = true;
+        compactor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // already logged, and the store no longer written
+                }
+            }
+        }, "shibauth-fingerprint-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Wait for the compactions started in the background to finish.
+     */
+    void awaitCompaction() throws InterruptedException {
+        while (true) {
+            Thread thread;
+            synchronized (this) {
+                thread = compactor;
+            }
+            if (thread == null) {
+                return;
+            }
+            thread.join();
+            synchronized (this) {
+                if (compactor == thread) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the current entries that are not older than the max age to a new file and rename it over the
+     * old one. The entries are written and forced to disk without holding the lock of the store, so
+     * appends go on meanwhile; they are added to the new file before the rename. A failure stops
+     * further writes of the store.
+     */
+    void compact() throws IOException {
+        synchronized (this) {
+            if (closed || failed) {
+                compacting = false;
+                return;
+            }
+            compacting = true;
+            appendedDuringCompaction = new ArrayList();
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        long maxAge = maxAgeMillis;
+        long expiredBefore = (maxAge > 0) ? System.currentTimeMillis() - maxAge : Long.MIN_VALUE;
+        int count = 0;
+        int expired = 0;
+        boolean completed = false;
+
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+            write(out, header);
+
+            for (Iterator it = entries.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry mapEntry = (Map.Entry) it.next();
+                ProvisioningFingerprints.Entry entry = (ProvisioningFingerprints.Entry) mapEntry.getValue();
+                if (entry.syncedAt < expiredBefore) {
+                    // unless the user was updated again meanwhile
+                    ((ConcurrentHashMap) entries).remove(mapEntry.getKey(), entry);
+                    expired++;
+                    continue;
+                }
+                write(out, encode(((String) mapEntry.getKey()).getBytes(StandardCharsets.UTF_8),
+                        entry.fingerprint, entry.syncedAt));
+                count++;
+            }
+            out.force(true);
+
+            synchronized (this) {
+                if (closed || failed) {
+                    return;
+                }
+
+                // not forced, like any other append
+                for (Iterator it = appendedDuringCompaction.iterator(); it.hasNext(); ) {
+                    write(out, (ByteBuffer) it.next());
+                    count++;
+                }
+                out.close();
+
+                channel.close();
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+                channel.position(channel.size());
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Compacted provisioning fingerprint store " + file + " from " + records + " to " +
+                            count + " records, dropping " + expired + " expired users");
+                }
+                records = count;
+                completed = true;
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                fail(e);
+            }
+            throw e;
+        } finally {
+            synchronized (this) {
+                compacting = false;
+                appendedDuringCompaction = null;
+                // the records appended meanwhile can be enough for the next one; not after a failure,
+                // which would only fail again
+                if (completed && !closed && !failed) {
+                    compactIfNeeded();
+                }
+            }
+        }
+    }
+
+    public synchronized void close() {
+        closed = true;
+        pending = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Unable to close provisioning fingerprint store " + file, e);
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        log.error("Unable to write provisioning fingerprint store " + file +
+                ", no longer persisting provisioning fingerprints", e);
+        failed = true;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        write(channel, buffer);
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * @return the record, ready to be written
+     */
+    private static ByteBuffer encode(byte[] userid, byte[] fingerprint, long syncedAt) {
+        ByteBuffer record = ByteBuffer.allocate(4 + userid.length + fingerprint.length + 8 + 4);
+        record.putInt(userid.length).put(userid).put(fingerprint).putLong(syncedAt);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fingerprints of the users whose user information and group memberships were
+ * last updated, with the time of that update. When a user logs in again with the
+ * same fingerprint, nothing the update is based on has changed and the Crowd reads
+ * and writes of the update can be skipped (update.skip.unchanged).
+ * <p/>
+ * A fingerprint is the first FINGERPRINT_LENGTH bytes of a SHA-256 digest. With a
+ * store file (update.skip.unchanged.store) the fingerprints survive restarts; the
+ * file is read in a background thread, users that log in before it has been read
+ * are updated as if they had no fingerprint.
+ */
+public class ProvisioningFingerprints {
+
+    final static int FINGERPRINT_LENGTH = 16;
+
+    /**
+     * Map<userid, Entry>
+     */
+    private final ConcurrentHashMap entries = new ConcurrentHashMap();
+
+    private final static Log log = LogFactory.getLog(ProvisioningFingerprints.class);
+
+    /**
+     * File the fingerprints are persisted to, or null to keep them in memory only
+     */
+    private final ProvisioningFingerprintStore store;
+
+    /**
+     * Keep the fingerprints in memory only.
+     */
+    public ProvisioningFingerprints() {
+        this.store = null;
+    }
+
+    /**
+     * Persist the fingerprints to storeFile, call loadInBackground to read the
+     * fingerprints already in it.
+     */
+    public ProvisioningFingerprints(File storeFile) {
+        this.store = new ProvisioningFingerprintStore(storeFile, entries);
+    }
+
+    /**
+     * @return the file the fingerprints are persisted to, or null
+     */
+    public File getStoreFile() {
+        return (store == null) ? null : store.getFile();
+    }
+
+    /**
+     * @param maxAgeMillis update.skip.unchanged.max.age, the store file drops older entries when it is
+     *                     compacted
+     */
+    public void setMaxAge(long maxAgeMillis) {
+        if (store != null) {
+            store.setMaxAge(maxAgeMillis);
+        }
+    }
+
+    /**
+     * Read the store file in a daemon thread, so that startup does not wait for it.
+     *
+     * @return the started thread, or null if there is no store file
+     */
+    public Thread loadInBackground() {
+        if (store == null) {
+            return null;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                load();
+            }
+        }, "shibauth-fingerprint-loader");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Read the store file, if there is one. A file that can not be read is logged
+     * and no longer written, the fingerprints are then kept in memory only.
+     */
+    void load() {
+        if (store == null) {
+            return;
+        }
+
+        try {
+            store.load();
+        } catch (IOException e) {
+            log.error("Unable to read provisioning fingerprint store " + store.getFile() +
+                    ", keeping provisioning fingerprints in memory only", e);
+            store.close();
+        }
+    }
+
+    /**
+     * Wait for a compaction of the store file started in the background to finish.
+     */
+    void awaitCompaction() throws InterruptedException {
+        if (store != null) {
+            store.awaitCompaction();
+        }
+    }
+
+    /**
+     * Stop writing the store file.
+     */
+    public void close() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * @param parts the values the fingerprint is based on, null is allowed
+     * @return the fingerprint of parts
+     */
+    public static byte[] fingerprint(String[] parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        for (int i = 0; i < parts.length; i++) {
+            // length prefixed, so that ("ab", "c") and ("a", "bc") differ
+            byte[] bytes = (parts[i] == null) ? null : parts[i].getBytes(StandardCharsets.UTF_8);
+            int length = (bytes == null) ? -1 : bytes.length;
+            digest.update((byte) (length >>> 24));
+            digest.update((byte) (length >>> 16));
+            digest.update((byte) (length >>> 8));
+            digest.update((byte) length);
+            if (bytes != null) {
+                digest.update(bytes);
+            }
+        }
+
+        return Arrays.copyOf(digest.digest(), FINGERPRINT_LENGTH);
+    }
+
+    /**
+     * @param maxAgeMillis how long ago the last update may be, 0 for no limit
+     * @return true if the last update of the user had the same fingerprint and is recent enough
+     */
+    public boolean isUnchanged(String userid, byte[] fingerprint, long maxAgeMillis) {
+        Entry entry = (Entry) entries.get(userid);
+        if (entry == null || !Arrays.equals(entry.fingerprint, fingerprint)) {
+            return false;
+        }
+
+        return maxAgeMillis <= 0 || System.currentTimeMillis() - entry.syncedAt < maxAgeMillis;
+    }
+
+    /**
+     * Remember that the user has been updated with the given fingerprint.
+     */
+    public void synced(String userid, byte[] fingerprint) {
+        Entry entry = new Entry(fingerprint, System.currentTimeMillis());
+        entries.put(userid, entry);
+        if (store != null) {
+            store.append(userid, entry);
+        }
+    }
+
+    /**
+     * Put entry into entries, unless there is an entry of the user that was synced later.
+     */
+    static void putNewer(Map entries, String userid, Entry entry) {
+        ConcurrentHashMap map = (ConcurrentHashMap) entries;
+        while (true) {
+            Entry old = (Entry) map.putIfAbsent(userid, entry);
+            if (old == null || old.syncedAt > entry.syncedAt || map.replace(userid, old, entry)) {
+                return;
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    static class Entry {
+        final byte[] fingerprint;
+        final long syncedAt;
+
+        Entry(byte[] fingerprint, long syncedAt) {
+            this.fingerprint = fingerprint;
+            this.syncedAt = syncedAt;
+        }
+    }
+}
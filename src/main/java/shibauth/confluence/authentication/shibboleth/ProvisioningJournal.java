@@ -0,0 +1,690 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the provisioning writes that have not been applied yet
+ * (provisioning.journal). A ProvisioningBatch appends its writes and forces them
+ * to disk once, before its transactions run, and marks each write as applied
+ * after it ran. Forcing is a group commit: one thread forces the file outside of
+ * the lock of the journal, for every record appended until then, while threads
+ * appending meanwhile wait for it or for the next force. A group synchronization of provisioning.async is journaled as a
+ * SYNC_GROUPS entry with the roles of its request when it is queued, and marked
+ * as applied once it ran or a newer one of the user replaced it. Writes that
+ * were never marked as applied, e.g. because the node stopped in between, are
+ * replayed after a restart. Replaying is idempotent: a user is only added to a
+ * group it is not a member of, and so on.
+ * <p/>
+ * The file starts with a MAGIC and FORMAT_VERSION header, followed by records:
+ * <pre>
+ * int length, byte[length] payload, int crc32 of the payload
+ * </pre>
+ * A payload is a type, a sequence number and, for writes, the userid and the
+ * arguments of the write. Reading stops at the first torn or corrupt record, the
+ * file is truncated there. Once the file has grown past COMPACT_THRESHOLD bytes
+ * and to twice its size after the last compaction, it is rewritten with the
+ * pending writes only in a background thread, so it stays bounded while writes
+ * are always pending.
+ */
+public class ProvisioningJournal {
+
+    final static int MAGIC = 0x5348504a; // "SHPJ"
+
+    final static int FORMAT_VERSION = 1;
+
+    final static int HEADER_LENGTH = 8;
+
+    /**
+     * Files smaller than this are not compacted
+     */
+    final static long COMPACT_THRESHOLD = 1024 * 1024;
+
+    private final static int MAX_RECORD_LENGTH = 64 * 1024;
+
+    public final static byte ADD_GROUP = 1;
+
+    public final static byte REMOVE_GROUP = 2;
+
+    public final static byte UPDATE_USER = 3;
+
+    private final static byte APPLIED = 4;
+
+    public final static byte SYNC_GROUPS = 5;
+
+    private final static Log log = LogFactory.getLog(ProvisioningJournal.class);
+
+    /**
+     * A write of the journal.
+     */
+    public static class Entry {
+
+        final byte type;
+
+        final String userid;
+
+        /**
+         * Group name of ADD_GROUP and REMOVE_GROUP, display name of UPDATE_USER, roles of SYNC_GROUPS one
+         * per line
+         */
+        final String value;
+
+        /**
+         * Email address of UPDATE_USER
+         */
+        final String value2;
+
+        /**
+         * Sequence number in the journal, 0 until appended
+         */
+        long seq;
+
+        Entry(byte type, String userid, String value, String value2) {
+            this.type = type;
+            this.userid = userid;
+            this.value = value;
+            this.value2 = value2;
+        }
+
+        public static Entry addGroup(String userid, String group) {
+            return new Entry(ADD_GROUP, userid, group, null);
+        }
+
+        public static Entry removeGroup(String userid, String group) {
+            return new Entry(REMOVE_GROUP, userid, group, null);
+        }
+
+        public static Entry updateUser(String userid, String displayName, String emailAddress) {
+            return new Entry(UPDATE_USER, userid, displayName, emailAddress);
+        }
+
+        /**
+         * @param roles the roles from the dynamicroles headers the user is synchronized with
+         */
+        public static Entry syncGroups(String userid, Collection roles) {
+            StringBuilder value = new StringBuilder();
+            for (Iterator it = roles.iterator(); it.hasNext(); ) {
+                if (value.length() > 0) {
+                    value.append('\n');
+                }
+                value.append(it.next());
+            }
+            return new Entry(SYNC_GROUPS, userid, value.toString(), null);
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public String getUserid() {
+            return userid;
+        }
+
+        public String getGroup() {
+            return value;
+        }
+
+        public String getDisplayName() {
+            return value;
+        }
+
+        public String getEmailAddress() {
+            return value2;
+        }
+
+        /**
+         * @return List&lt;String&gt; the roles of SYNC_GROUPS
+         */
+        public List getRoles() {
+            List roles = new ArrayList();
+            if (value != null && value.length() > 0) {
+                roles.addAll(Arrays.asList(value.split("\n")));
+            }
+            return roles;
+        }
+
+        public String toString() {
+            return "#" + seq + " " + type + " " + userid + " " + value + " " + value2;
+        }
+    }
+
+    private final File file;
+
+    private FileChannel channel;
+
+    private long nextSeq = 1;
+
+    /**
+     * Map<Long, Entry> the writes that have been appended but not applied, in order
+     */
+    private final Map pending = new LinkedHashMap();
+
+    /**
+     * List&lt;Entry&gt; the writes that were pending when the journal was opened, until they are taken
+     */
+    private List recovered;
+
+    /**
+     * Number of records written to the file, and of those known to be forced to disk
+     */
+    private long written;
+
+    private long forced;
+
+    /**
+     * Set while a thread forces the file
+     */
+    private boolean forcing;
+
+    private boolean failed;
+
+    private boolean compacting;
+
+    /**
+     * Records written while a compaction writes the new file, added to it before it replaces the old one
+     */
+    private List appendedDuringCompaction;
+
+    /**
+     * The thread of the last compaction
+     */
+    private Thread compactor;
+
+    /**
+     * Size of the file after the last compaction
+     */
+    private long compactedSize;
+
+    /**
+     * Open the journal, reading the writes that are still pending.
+     */
+    public ProvisioningJournal(File file) throws IOException {
+        this.file = file;
+        load();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return List&lt;Entry&gt; the writes that were appended but not marked as applied, in order
+     */
+    public synchronized List getPending() {
+        return new ArrayList(pending.values());
+    }
+
+    /**
+     * @return List&lt;Entry&gt; the writes that were pending when the journal was opened, to be replayed.
+     *         Returned once, empty after that.
+     */
+    public synchronized List takeRecovered() {
+        List taken = recovered;
+        recovered = new ArrayList();
+        return taken;
+    }
+
+    /**
+     * Append a write. It is not forced to disk until sync is called. A write too large for a record is
+     * not journaled.
+     */
+    public synchronized void append(Entry entry) {
+        entry.seq = nextSeq;
+        ByteBuffer record;
+        try {
+            record = encode(entry);
+        } catch (IOException e) {
+            log.warn("Unable to journal " + entry + ", it is applied without being journaled: " + e);
+            entry.seq = 0;
+            return;
+        }
+
+        nextSeq++;
+        pending.put(Long.valueOf(entry.seq), entry);
+        write(record);
+    }
+
+    /**
+     * Force the records appended so far to disk. If another thread is forcing the file, wait for it, and
+     * force once more only if it did not cover the records of this thread; concurrent callers share one
+     * force.
+     */
+    public void sync() {
+        FileChannel current;
+        long target;
+        synchronized (this) {
+            long needed = written;
+            boolean interrupted = false;
+            while (forcing && forced < needed && !failed) {
+                interrupted = waitForForce(interrupted);
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failed || forced >= needed) {
+                return;
+            }
+
+            forcing = true;
+            target = written;
+            current = channel;
+        }
+
+        try {
+            current.force(false);
+            synchronized (this) {
+                forced = Math.max(forced, target);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                fail(e);
+            }
+        } finally {
+            synchronized (this) {
+                forcing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Mark a write as applied, it is not replayed after this. The mark is forced
+     * to disk with the next sync; a write whose mark is lost is replayed, which
+     * is harmless.
+     */
+    public synchronized void applied(Entry entry) {
+        if (pending.remove(Long.valueOf(entry.seq)) == null) {
+            return;
+        }
+
+        ByteBuffer record;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(APPLIED);
+            out.writeLong(entry.seq);
+            record = frame(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        write(record);
+        compactIfNeeded();
+    }
+
+    public void close() {
+        sync();
+        synchronized (this) {
+            boolean interrupted = false;
+            while (forcing) {
+                interrupted = waitForForce(interrupted);
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Unable to close provisioning journal " + file, e);
+            }
+            failed = true;
+        }
+    }
+
+    /**
+     * Wait until notified, e.g. by the thread forcing the file. Must hold the lock of the journal.
+     *
+     * @return true if the thread was interrupted, now or before
+     */
+    private boolean waitForForce(boolean interrupted) {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            return true;
+        }
+        return interrupted;
+    }
+
+    private void load() throws IOException {
+        long validLength = 0;
+
+        new File(file.getPath() + ".tmp").delete();
+        if (file.length() >= HEADER_LENGTH) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    throw new IOException("Provisioning journal " + file + " has an unknown format");
+                }
+                validLength = HEADER_LENGTH;
+
+                CRC32 crc = new CRC32();
+                try {
+                    while (true) {
+                        int length = in.readInt();
+                        if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                            break;
+                        }
+                        byte[] payload = new byte[length];
+                        in.readFully(payload);
+                        crc.reset();
+                        crc.update(payload);
+                        if (in.readInt() != (int) crc.getValue()) {
+                            break;
+                        }
+
+                        decode(payload);
+                        validLength += 4 + length + 4;
+                    }
+                } catch (EOFException e) {
+                    // torn record at the end of the file
+                }
+            }
+
+            if (validLength < file.length()) {
+                log.warn("Provisioning journal " + file + " has a torn or corrupt record at offset " +
+                        validLength + ", truncating it");
+            }
+        }
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            dir.mkdirs();
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(validLength);
+        channel.position(validLength);
+        if (validLength == 0) {
+            write(header());
+        }
+        sync();
+
+        recovered = new ArrayList(pending.values());
+        if (!pending.isEmpty()) {
+            log.info("Provisioning journal " + file + " has " + pending.size() + " writes that were not applied");
+        }
+    }
+
+    private void decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        long seq = in.readLong();
+        nextSeq = Math.max(nextSeq, seq + 1);
+
+        if (type == APPLIED) {
+            pending.remove(Long.valueOf(seq));
+        } else {
+            Entry entry = new Entry(type, in.readUTF(), readString(in), readString(in));
+            entry.seq = seq;
+            pending.put(Long.valueOf(seq), entry);
+        }
+    }
+
+    /**
+     * Start a compaction in a daemon thread if the file has grown enough, so that the thread that wrote the
+     * last record does not wait for it.
+     */
+    private void compactIfNeeded() {
+        if (failed || compacting) {
+            return;
+        }
+
+        try {
+            long size = channel.size();
+            if (size <= COMPACT_THRESHOLD || size <= 2 * compactedSize) {
+                return;
+            }
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+
+        compacting = true;
+        compactor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // already logged, and the journal no longer written
+                }
+            }
+        }, "shibauth-journal-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Wait for the compactions started in the background to finish.
+     */
+    void awaitCompaction() throws InterruptedException {
+        while (true) {
+            Thread thread;
+            synchronized (this) {
+                thread = compactor;
+            }
+            if (thread == null) {
+                return;
+            }
+            thread.join();
+            synchronized (this) {
+                if (compactor == thread) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrite the file with the pending writes only, replacing it with an atomic rename. The pending
+     * writes are written and forced to disk without holding the lock of the journal, then the records
+     * written meanwhile are added. Only the few written while catching up with those are forced with the
+     * lock held, just before the rename, so that no record that was synced is lost with the old file. A
+     * failure stops further writes of the journal.
+     */
+    void compact() throws IOException {
+        List entries;
+        synchronized (this) {
+            if (failed) {
+                compacting = false;
+                return;
+            }
+            compacting = true;
+            entries = new ArrayList(pending.values());
+            appendedDuringCompaction = new ArrayList();
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean completed = false;
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(out, header());
+            for (Iterator it = entries.iterator(); it.hasNext(); ) {
+                write(out, encode((Entry) it.next()));
+            }
+            out.force(true);
+
+            List tail;
+            synchronized (this) {
+                tail = appendedDuringCompaction;
+                appendedDuringCompaction = new ArrayList();
+            }
+            for (Iterator it = tail.iterator(); it.hasNext(); ) {
+                write(out, (ByteBuffer) it.next());
+            }
+            out.force(false);
+
+            synchronized (this) {
+                boolean interrupted = false;
+                while (forcing && !failed) {
+                    interrupted = waitForForce(interrupted);
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (failed) {
+                    return;
+                }
+
+                if (!appendedDuringCompaction.isEmpty()) {
+                    for (Iterator it = appendedDuringCompaction.iterator(); it.hasNext(); ) {
+                        write(out, (ByteBuffer) it.next());
+                    }
+                    out.force(false);
+                }
+                out.close();
+
+                channel.close();
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+                channel.position(channel.size());
+                compactedSize = channel.size();
+                forced = written;
+                completed = true;
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Compacted provisioning journal " + file + " to " + compactedSize + " bytes");
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                fail(e);
+            }
+            throw e;
+        } finally {
+            synchronized (this) {
+                compacting = false;
+                appendedDuringCompaction = null;
+                // the records written meanwhile can be enough for the next one; not after a failure,
+                // which would only fail again
+                if (completed) {
+                    compactIfNeeded();
+                }
+            }
+        }
+    }
+
+    private void write(ByteBuffer buffer) {
+        if (failed) {
+            return;
+        }
+
+        try {
+            if (appendedDuringCompaction != null) {
+                appendedDuringCompaction.add(buffer.duplicate());
+            }
+            write(channel, buffer);
+            written++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        log.error("Unable to write provisioning journal " + file +
+                ", provisioning writes are no longer journaled", e);
+        failed = true;
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+        return header;
+    }
+
+    /**
+     * @throws IOException if the entry does not fit in a record
+     */
+    private static ByteBuffer encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(entry.type);
+        out.writeLong(entry.seq);
+        out.writeUTF(entry.userid);
+        writeString(out, entry.value);
+        writeString(out, entry.value2);
+        return frame(bytes.toByteArray());
+    }
+
+    private static ByteBuffer frame(byte[] payload) throws IOException {
+        // longer records would be taken for corrupt ones when the journal is read
+        if (payload.length > MAX_RECORD_LENGTH) {
+            throw new IOException("Record of " + payload.length + " bytes is longer than " + MAX_RECORD_LENGTH);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer record = ByteBuffer.allocate(4 + payload.length + 4);
+        record.putInt(payload.length).put(payload).putInt((int) crc.getValue()).flip();
+        return record;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -42,14 +42,20 @@
 package shibauth.confluence.authentication.shibboleth;
 
 import java.io.File;
+import java.io.IOException;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.ServletRequestWrapper;
 import javax.servlet.http.HttpServletRequest;
@@ -78,6 +84,7 @@ import com.atlassian.crowd.embedded.api.User;
 import com.atlassian.crowd.embedded.impl.ImmutableUser;
 import com.atlassian.seraph.auth.AuthenticatorException;
 import com.atlassian.seraph.auth.LoginReason;
+import com.atlassian.seraph.config.SecurityConfig;
 import com.atlassian.seraph.util.RedirectUtils;
 import com.atlassian.spring.container.ContainerManager;
 import com.atlassian.user.GroupManager;
@@ -94,195 +101,90 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
 
     private static final long serialVersionUID = -5608187140008286795L;
     private final static Log log = LogFactory.getLog(RemoteUserAuthenticator.class);
-    private static ShibAuthConfiguration config;
-
-    // Initialize properties from property file
-    static {
-        config = ShibAuthConfigLoader.getShibAuthConfiguration(null);
-    }
 
     /**
-     * Check if the configuration file should be reloaded and reload the configuration.
+     * The active configuration. Each snapshot is frozen before it is published, so request threads can
+     * read it without locking; ConfigReloader builds a new snapshot and swaps it in.
      */
-    private void checkReloadConfig() {
-
-        if (config.isReloadConfig() && (config.getConfigFile() != null)) {
-            if (System.currentTimeMillis() < config.getConfigFileLastChecked() +
-                    config.getReloadConfigCheckInterval()) {
-                return;
-            }
-
-            long configFileLastModified = new File(config.getConfigFile()).lastModified();
-
-            if (configFileLastModified != config.getConfigFileLastModified()) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Config file has been changed, reloading");
-                }
-
-                config = ShibAuthConfigLoader.getShibAuthConfiguration(config);
-            } else {
-                if (log.isDebugEnabled()) {
-                    log.debug("Config file has not been changed, not reloading");
-                }
-
-                config.setConfigFileLastChecked(System.currentTimeMillis());
-            }
-        }
-    }
+    private final static AtomicReference configReference = new AtomicReference();
 
     /**
-     * Assigns a user to the roles.
-     *
-     * @param user the user to assign to the roles.
+     * Fingerprints of the users that were updated, see update.skip.unchanged. Replaced when a reload
+     * changes update.skip.unchanged.store.
      */
-    private void assignUserToRoles(User user, Collection roles, User crowdUser) {
-        if (user == null) {
-            if (log.isDebugEnabled()) {
-                log.debug("User was null, not adding any roles...");
-            }
-        } else if (roles.size() == 0) {
-            if (log.isDebugEnabled()) {
-                log.debug("No roles specified, not adding any roles...");
-            }
-        } else {
-            GroupManager groupManager = getGroupManager();
-            if (groupManager == null) {
-                throw new RuntimeException("groupManager was not wired in RemoteUserAuthenticator");
-            }
+    private static volatile ProvisioningFingerprints fingerprints = new ProvisioningFingerprints();
 
-            for (Iterator it = roles.iterator(); it.hasNext(); ) {
-                String role = it.next().toString().trim();
+    /**
+     * Journal of provisioning.journal, with the file it was opened for. Replaced when a reload changes
+     * provisioning.journal.
+     */
+    private static volatile JournalState journalState = new JournalState(null, null);
 
-                if (role.length() == 0) {
-                    continue;
-                }
+    /**
+     * How long parallel first requests of a new user wait for the request that creates it
+     */
+    private final static long USER_CREATION_WAIT_MILLIS = 10000;
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Assigning " + user.getName() + " to role " + role);
-                }
+    /**
+     * Userids being created, so parallel first requests of a new user create it only once
+     */
+    private final static SingleFlight userCreations = new SingleFlight();
 
-                Group group = getCrowdService().getGroup(role);
-                if (group == null) {
-                    if (config.isAutoCreateGroup()) {
-                        try {
-                            if (log.isDebugEnabled()) {
-                                log.debug("Creating missing role '" + role + "'.");
-                            }
-                            groupManager.createGroup(role);
-                            group = getCrowdService().getGroup(role);
-                        } catch (Throwable t) {
-                            log.error("Cannot create role '" + role + "'.", t);
-                            continue;
-                        }
-                    } else {
-                        if (log.isDebugEnabled()) {
-                            log.debug("Skipping autocreation of role '" + role + "'.");
-                        }
+    /**
+     * Map&lt;userid, ReplayJob&gt; the writes recovered from the journal for each user, until they are
+     * replayed or a login of the user wrote its current state
+     */
+    private final static ConcurrentHashMap recoveredUsers = new ConcurrentHashMap();
 
-                        continue; //no point of attempting to allocate user
-                    }
-                }
+    /**
+     * Background group synchronization of provisioning.async, created when first needed. Replaced when a
+     * reload changes provisioning.async.threads or provisioning.async.queue.size.
+     */
+    private static volatile AsyncProvisioner asyncProvisioner;
 
-                if (crowdUser == null) {
-                    log.warn("Could not find user '" + user.getName() + "' to add them to role '" + role + "'.");
-                } else if (!crowdUser.isActive()) {
-                    log.warn("User '" + user.getName() + "' was inactive, so did not add them to role '" + role + "'.");
-                } else if (group == null) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Skipping " + user.getName() + " to role " + role + ", because crowdService.getGroup(\"" + role + "\") returned null.");
-                    }
-                } else if (getCrowdService().isUserMemberOfGroup(crowdUser, group)) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Skipping " + user.getName() + " to role " + role + " - already a member");
-                    }
+    // Initialize properties from property file
+    static {
+        configReference.set(ShibAuthConfigLoader.getShibAuthConfiguration(null));
+        ConfigReloader.start(configReference);
+        getFingerprints(getConfiguration());
+    }
 
-                } else {
-                    try {
-                        addUserToGroup(crowdUser, group);
-                    } catch (Throwable t) {
-                        log.error("Failed to add user " + user + " to role " + role + ".", t);
-                    }
-                }
-            }
-        }
+    /**
+     * @return the active configuration snapshot. Callers should read it once per request and pass it on,
+     *         so a reload cannot mix two configurations within one request.
+     */
+    static ShibAuthConfiguration getConfiguration() {
+        return (ShibAuthConfiguration) configReference.get();
     }
 
     /**
-     * Purge user from roles it no longer should have (based on current Shibboleth attributes).
-     * Remove the user from all roles listed in purgeRoles that are not
-     * included in the current list of roles the user would get assigned to
-     * based on the Shibboleth attributes received.
-     *
-     * @param user        the user to assign to the roles.
-     * @param rolesToKeep keep these roles, otherwise everything else
-     *                    mentioned in the purgeMappings can go.
+     * Open the provisioning journal when Seraph starts the authenticator, so that the writes it recovers
+     * are replayed at startup rather than at the first login that needs the journal.
      */
-    private void purgeUserRoles(User user, Collection rolesToKeep) {
-        if ((config.getPurgeMappings().size() == 0)) {
-            if (log.isDebugEnabled()) {
-                log.debug("No roles to purge specified, not purging any roles...");
-            }
-        } else {
-            UserAccessor userAccessor = getUserAccessor();
-            if (userAccessor == null) {
-                throw new RuntimeException("userAccessor was not wired in RemoteUserAuthenticator");
-            }
+    public void init(Map params, SecurityConfig config) {
+        super.init(params, config);
+        getJournal(getConfiguration());
+    }
 
-            CrowdService crowdService = getCrowdService();
-            if (crowdService == null) {
-                throw new RuntimeException("crowdService was not wired in RemoteUserAuthenticator");
+    /**
+     * Stop the background threads and close the provisioning files when Seraph shuts the authenticator
+     * down, e.g. on undeploy.
+     */
+    public void destroy() {
+        ConfigReloader.stop();
+        synchronized (RemoteUserAuthenticator.class) {
+            if (asyncProvisioner != null) {
+                asyncProvisioner.shutdown();
+                asyncProvisioner = null;
             }
-
-            User crowdUser = crowdService.getUser(user.getName());
-            Collection purgeMappers = config.getPurgeMappings();
-
-            // limit the number of roles purged
-            // add a counter
-            int counter = 0;
-            // Load the value from the config
-            int rolesLimit = config.getPurgeRolesLimit();
-            log.debug("setting roles limit to " + rolesLimit);
-
-            List<String> roles = userAccessor.getGroupNames(userAccessor.getUserByName(user.getName()));
-
-            for (int i = 0; i < roles.size(); i++) {
-                String role = roles.get(i);
-                if (!StringUtil.containsStringIgnoreCase(rolesToKeep, role)) {
-                    //run through the purgeMappers for this role
-                    for (Iterator it2 = purgeMappers.iterator(); it2.hasNext(); ) {
-                        GroupMapper mapper = (GroupMapper) it2.next();
-                        // increment the counter
-                        counter++;
-                        log.debug("the counter is at " + counter);
-                        //max only 1 group output
-                        String output = mapper.process(role);
-                        if (output != null & counter <= rolesLimit) {
-                            try {
-                                Group group = crowdService.getGroup(role);
-                                if (crowdService.isUserMemberOfGroup(crowdUser, group)) {
-                                    if (log.isDebugEnabled()) {
-                                        log.debug("Removing user " + user.getName() + " from role " + role);
-                                    }
-
-                                    removeUserFromGroup(crowdService, crowdUser, group);
-
-                                    // Only remove one group per login. Assuming this is to avoid massive delays in
-                                    // login for a user removed from a lot of groups.
-                                    break;
-                                }
-                            } catch (Throwable t) {
-                                log.error("Error encountered in removing user " + user.getName() + " from role " + role,
-                                        t);
-                            }
-                        }
-                    }
-                } else {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Keeping role " + role + " for user " + user.getName());
-                    }
-                }
+            if (journalState.journal != null) {
+                journalState.journal.close();
             }
+            journalState = new JournalState(null, null);
+            fingerprints.close();
+            fingerprints = new ProvisioningFingerprints();
         }
+        super.destroy();
     }
 
     /**
@@ -302,16 +204,17 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
     /**
      * Creates a new user if the configuration allows it.
      *
+     * @param config   the configuration snapshot of the request
      * @param username user name for the new user
      * @return the new user
      */
-    private void createUser(String username, String fullName, String emailAddress) {
+    private void createUser(ShibAuthConfiguration config, String username, String fullName, String emailAddress) {
         if (log.isInfoEnabled()) {
             log.info("Creating user account for " + username);
         }
 
         try {
-            createUser(getUserAccessor(), username, fullName, emailAddress);
+            createUser(config, getUserAccessor(), username, fullName, emailAddress);
         } catch (Throwable t) {
             // Note: just catching EntityException like we used to do didn't
             // seem to cover Confluence massive with Oracle
@@ -322,9 +225,9 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         }
     }
 
-    private void updateUser(User user, String fullName, String emailAddress) {
+    private void updateUser(ProvisioningBatch batch, User crowdUser, String fullName, String emailAddress) {
         // If we have new values for name or email, update the user object
-        if (user == null) {
+        if (crowdUser == null) {
             if (log.isDebugEnabled()) {
                 log.debug("User is null, so can't update it.");
             }
@@ -335,7 +238,6 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
             if (crowdService == null) {
                 throw new RuntimeException("crowdService was not wired in RemoteUserAuthenticator");
             }
-            User crowdUser = crowdService.getUser(user.getName());
             ImmutableUser.Builder userBuilder = new ImmutableUser.Builder();
             // Have to clone the user before making mods.
             userBuilder.active(crowdUser.isActive());
@@ -376,15 +278,15 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
 
             if (updated) {
                 try {
-                    updateUser(crowdService, userBuilder.toUser());
+                    updateUser(batch, crowdService, userBuilder.toUser());
                 } catch (Throwable t) {
-                    log.error("Couldn't update user " + user.getName(), t);
+                    log.error("Couldn't update user " + crowdUser.getName(), t);
                 }
             }
         }
     }
 
-    private String getLoggedInUser(HttpServletRequest request) {
+    private String getLoggedInUser(ShibAuthConfiguration config, HttpServletRequest request) {
         String remoteUser = null;
 
         if (config.getRemoteUserHeaderName() != null) {
@@ -398,12 +300,21 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
                 remoteUser = (String) values.get(0);
 
                 if (config.getUsernameFilterStrategy() == 1) {
-                    List attributes = StringUtil.getLDAPRegexAttributeList(values, config.getUsernameRegexFilter());
+                    CompiledPattern filter = config.getUsernameRegexFilterPattern();
+                    List attributes = (filter != null) ? StringUtil.getLDAPRegexAttributeList(values, filter) :
+                            StringUtil.getLDAPRegexAttributeList(values, config.getUsernameRegexFilter());
 
                     if (attributes != null && attributes.size() > 0) {
                         // use the first attribute in the header, if attribute is defined multiple times.
                         remoteUser = (String) attributes.get(0);
                     }
+                } else if (config.getUsernameFilterStrategy() == 2) {
+                    // the raw header is a distinguished name such as SSL_CLIENT_S_DN, so it is not split
+                    String rdnValue = DistinguishedNameParser.getAttribute(headerValue, config.getUsernameFilterRdn());
+
+                    if (rdnValue != null) {
+                        remoteUser = rdnValue;
+                    }
                 }
 
                 if (log.isDebugEnabled()) {
@@ -438,7 +349,7 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         return request;
     }
 
-    private String getEmailAddress(HttpServletRequest request) {
+    private String getEmailAddress(ShibAuthConfiguration config, HttpServletRequest request) {
         String emailAddress = null;
 
         if (config.getEmailHeaderName() != null) {
@@ -480,7 +391,7 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         return emailAddress;
     }
 
-    private String getFullName(HttpServletRequest request, String userid) {
+    private String getFullName(ShibAuthConfiguration config, HttpServletRequest request, String userid) {
         String fullName = null;
 
         if (config.getFullNameHeaderName() != null) {
@@ -500,7 +411,7 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
                     // Default is to just use the first header value, if no fullname mappings.
                     fullName = (String) values.get(0);
                 } else {
-                    fullName = createFullNameUsingMapping(headerValue, values);
+                    fullName = createFullNameUsingMapping(config, headerValue, values);
                 }
 
                 if (log.isDebugEnabled()) {
@@ -538,9 +449,10 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
     /**
      * This will populate accumulated (containing all roles discovered).
      */
-    private void getRolesFromHeader(HttpServletRequest request,
+    private void getRolesFromHeader(ShibAuthConfiguration config, HttpServletRequest request,
                                     Set accumulatedRoles) {
-        Set attribHeaders = config.getGroupMappingKeys();
+        // Mappers and cache are taken from the same configuration, a reload replaces both.
+        Set attribHeaders = getRoleHeaders(config);
 
         // check if we're interested in headers
         if (attribHeaders.isEmpty()) {
@@ -563,25 +475,14 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         }
 
         //process the headers by looking up only those list of registered headers
+        List headerValues = new ArrayList();
         for (Iterator headerIt = attribHeaders.iterator(); headerIt.hasNext(); ) {
             String headerName = headerIt.next().toString();
-
-            String headerValuesString = null;
-
-            Object attr = request.getAttribute(headerName);
-            if (attr instanceof String) {
-                headerValuesString = (String) attr;
-            }
-
-            if (headerValuesString == null) {
-                headerValuesString = "";
-                for (Enumeration en = request.getHeaders(headerName); en.hasMoreElements(); ) {
-                    headerValuesString += en.nextElement().toString();
-                }
-            }
+            String headerValuesString = getRoleHeaderValue(request, headerName);
 
             //shib sends values in semicolon separated, so split it up too
-            List headerValues = StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(headerValuesString);
+            headerValues.clear();
+            StringUtil.addNonEmptyStringsDelimitedByCommaOrSemicolon(headerValuesString, headerValues);
             for (int j = 0; j < headerValues.size(); j++) {
                 String headerValue = (String) headerValues.get(j);
                 if (config.isConvertToUTF8()) {
@@ -595,33 +496,26 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
                     log.debug("Processing dynamicroles header=" + headerName + ", value=" + headerValue);
                 }
 
-                Collection mappers = config.getGroupMappings(headerName);
+                // We may get multiple groups returned by a single matched, e.g. matching "XXX" --> "A, B, C".
+                String[] results = mapRoleValue(config, headerName, headerValue);
                 boolean found = false;
 
-                for (Iterator mapperIt = mappers.iterator(); mapperIt.hasNext(); ) {
-                    GroupMapper mapper = (GroupMapper) mapperIt.next();
-
-                    // We may get multiple groups returned by a single matched, e.g. matching "XXX" --> "A, B, C".
-                    String[] results = (String[]) StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(
-                            mapper.process(headerValue)).toArray(new String[0]);
+                for (int i = 0; i < results.length; i++) {
+                    String result = results[i];
 
-                    for (int i = 0; i < results.length; i++) {
-                        String result = results[i];
-
-                        if (result.length() != 0) {
-                            if (!accumulatedRoles.contains(result)) {
-                                if (config.isOutputToLowerCase()) {
-                                    result = result.toLowerCase();
-                                }
+                    if (result.length() != 0) {
+                        if (!accumulatedRoles.contains(result)) {
+                            if (config.isOutputToLowerCase()) {
+                                result = result.toLowerCase();
+                            }
 
-                                accumulatedRoles.add(result);
+                            accumulatedRoles.add(result);
 
-                                if (log.isDebugEnabled()) {
-                                    log.debug("Found role mapping from '" + headerValue + "' to '" + result + "'");
-                                }
+                            if (log.isDebugEnabled()) {
+                                log.debug("Found role mapping from '" + headerValue + "' to '" + result + "'");
                             }
-                            found = true;
                         }
+                        found = true;
                     }
                 }
 
@@ -632,6 +526,183 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         }
     }
 
+    /**
+     * @return the dynamicroles headers: those with mappers and those with rows in dynamicroles.mapping.file
+     */
+    private Set getRoleHeaders(ShibAuthConfiguration config) {
+        Set attribHeaders = config.getGroupMappingKeys();
+        RoleMappingFile mappingFile = config.getRoleMappingFile();
+        if (mappingFile != null) {
+            attribHeaders = new HashSet(attribHeaders);
+            attribHeaders.addAll(mappingFile.getHeaders());
+        }
+        return attribHeaders;
+    }
+
+    /**
+     * @return the raw value of a dynamicroles header, taken from the request attribute or the request headers
+     */
+    private String getRoleHeaderValue(HttpServletRequest request, String headerName) {
+        Object attr = request.getAttribute(headerName);
+        if (attr instanceof String) {
+            return (String) attr;
+        }
+
+        String headerValuesString = "";
+        for (Enumeration en = request.getHeaders(headerName); en.hasMoreElements(); ) {
+            headerValuesString += en.nextElement().toString();
+        }
+        return headerValuesString;
+    }
+
+    /**
+     * Fingerprint of everything the user information and group memberships of a user are based on: the
+     * configuration, the user id, full name, email address and the raw values of the dynamicroles headers.
+     *
+     * @return the fingerprint, or null if update.skip.unchanged is off or there is nothing to update
+     */
+    private byte[] getProvisioningFingerprint(ShibAuthConfiguration config, HttpServletRequest request,
+                                              String userid, String fullName, String emailAddress) {
+        if (!config.isUpdateSkipUnchanged() || !(config.isUpdateInfo() || config.isUpdateRoles())) {
+            return null;
+        }
+
+        Object[] headers = getRoleHeaders(config).toArray();
+        Arrays.sort(headers);
+
+        String[] parts = new String[6 + headers.length * 2];
+        parts[0] = config.getVersion();
+        parts[1] = (config.getRoleMappingFile() != null) ? config.getRoleMappingFile().getVersion() : null;
+        parts[2] = userid;
+        parts[3] = fullName;
+        parts[4] = emailAddress;
+        parts[5] = Boolean.toString(config.isUpdateInfo()) + config.isUpdateRoles();
+        for (int i = 0; i < headers.length; i++) {
+            parts[6 + i * 2] = (String) headers[i];
+            parts[7 + i * 2] = getRoleHeaderValue(request, (String) headers[i]);
+        }
+
+        return ProvisioningFingerprints.fingerprint(parts);
+    }
+
+    /**
+     * @return true if the user was updated with the same fingerprint within update.skip.unchanged.max.age
+     */
+    private boolean isProvisioningUnchanged(ShibAuthConfiguration config, String userid, byte[] fingerprint) {
+        return (fingerprint != null) &&
+                getFingerprints(config).isUnchanged(userid, fingerprint, config.getUpdateSkipUnchangedMaxAge());
+    }
+
+    /**
+     * @return the fingerprints, persisted to the update.skip.unchanged.store of config. The store file is
+     *         read in the background, so the first requests after startup do not wait for it.
+     */
+    private static ProvisioningFingerprints getFingerprints(ShibAuthConfiguration config) {
+        ProvisioningFingerprints current = fingerprints;
+        String storeFile = config.isUpdateSkipUnchanged() ? config.getUpdateSkipUnchangedStore() : null;
+        File currentFile = current.getStoreFile();
+        if ((storeFile == null) ? currentFile == null : new File(storeFile).equals(currentFile)) {
+            // the max age can be reloaded without replacing the store
+            current.setMaxAge(config.getUpdateSkipUnchangedMaxAge());
+            return current;
+        }
+
+        synchronized (RemoteUserAuthenticator.class) {
+            current = fingerprints;
+            currentFile = current.getStoreFile();
+            if ((storeFile == null) ? currentFile == null : new File(storeFile).equals(currentFile)) {
+                return current;
+            }
+
+            log.info("Keeping provisioning fingerprints in " + ((storeFile == null) ? "memory" : storeFile));
+            current.close();
+            ProvisioningFingerprints replacement = (storeFile == null) ?
+                    new ProvisioningFingerprints() : new ProvisioningFingerprints(new File(storeFile));
+            replacement.setMaxAge(config.getUpdateSkipUnchangedMaxAge());
+            replacement.loadInBackground();
+            fingerprints = replacement;
+            return replacement;
+        }
+    }
+
+    /**
+     * Count the provisioning of a user and remember its fingerprint.
+     *
+     * @param unchanged true if the update was skipped because the fingerprint was unchanged
+     * @param applied   true if every change was applied. Otherwise the fingerprint is not remembered, so
+     *                  the next login of the user makes the missing changes.
+     */
+    private void recordProvisioning(ShibAuthConfiguration config, String userid, byte[] fingerprint,
+                                    boolean unchanged, boolean applied) {
+        if (fingerprint == null) {
+            return;
+        }
+
+        if (unchanged) {
+            ShibAuthStatistics.provisioningSkipped();
+            if (log.isDebugEnabled()) {
+                log.debug("Nothing changed for user " + userid + " since the last update, skipped updating it.");
+            }
+        } else {
+            if (applied) {
+                getFingerprints(config).synced(userid, fingerprint);
+            } else if (log.isDebugEnabled()) {
+                log.debug("Not every change to user " + userid + " was applied, it is updated again at its next login.");
+            }
+            ShibAuthStatistics.provisioningUpdated();
+        }
+    }
+
+    /**
+     * Look up one value of a header in dynamicroles.mapping.file, or run the dynamicroles mappers of
+     * the header over it, going through the mapping cache.
+     *
+     * @return the roles the value maps to, in mapper order. Must not be modified, it may be cached.
+     */
+    private String[] mapRoleValue(ShibAuthConfiguration config, String headerName, String headerValue) {
+        RoleMappingFile mappingFile = config.getRoleMappingFile();
+        if (mappingFile != null) {
+            String[] groups = mappingFile.getGroups(headerName, headerValue);
+            if (groups != null) {
+                return groups;
+            }
+        }
+
+        GroupMapperIndex index = config.getGroupMapperIndex(headerName);
+        if (index == null) {
+            // header only has rows in dynamicroles.mapping.file
+            return new String[0];
+        }
+
+        MappingCache cache = config.getMappingCache();
+        String namespace = ShibAuthConstants.ROLES_HEADER_PREFIX + headerName;
+        if (cache != null) {
+            String[] cached = (String[]) cache.get(namespace, headerValue);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        long timeouts = ShibAuthStatistics.getRegexTimeouts();
+        List roles = new ArrayList();
+
+        // Only the mappers that can possibly match this value, in configuration order.
+        Collection mappers = index.candidates(headerValue);
+        for (Iterator mapperIt = mappers.iterator(); mapperIt.hasNext(); ) {
+            GroupMapper mapper = (GroupMapper) mapperIt.next();
+            mapper.process(headerValue, roles);
+        }
+
+        String[] results = (String[]) roles.toArray(new String[roles.size()]);
+
+        // don't remember results of regexes that were cut short
+        if (cache != null && ShibAuthStatistics.getRegexTimeouts() == timeouts) {
+            cache.put(namespace, headerValue, results);
+        }
+
+        return results;
+    }
+
     private boolean isSecondTimeThroughLoginWithoutReturning(HttpServletRequest request) {
         return request.getAttribute("https://github.com/chauth/confluence_http_authenticator/issues/9") != null;
     }
@@ -699,7 +770,8 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         }
 
         // Since they aren't logged in, get the user name from the configured header (e.g. REMOTE_USER).
-        String userid = createSafeUserid(getLoggedInUser(request));
+        ShibAuthConfiguration config = getConfiguration();
+        String userid = createSafeUserid(config, getLoggedInUser(config, request));
 
         // Does the user have a "Remember Me" cookie set?
         final Principal cookieUser = getUserFromCookie(request, response);
@@ -723,7 +795,7 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
 
                 boolean localLoginSuccess = super.login(request, response, username, password, cookie);
                 if (localLoginSuccess) {
-                    User user = getCrowdUser(username, request, remoteHost, remoteIP);
+                    User user = getCrowdUser(newIdentityContext(username), request, remoteHost, remoteIP);
                     loginSuccessful(request, response, username, user, remoteHost, remoteIP);
                 } else {
                     loginFailed(request, username, remoteHost, remoteIP, "LocalUserLoginFailed");
@@ -750,64 +822,98 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
             }
         }
 
-        // Now that we know we will be trying to log the user in,
-        // let's see if we should reload the config file first
-        checkReloadConfig();
-
         // Convert username to all lowercase because of issues with case, at least in earlier versions of Confluence.
         if (config.isUsernameConvertCase()) {
             userid = convertUsername(userid);
         }
 
-        User crowdUser = getCrowdUser(userid, request, remoteHost, remoteIP);
+        // Users are looked up once for all of the stages below
+        IdentityContext identity = newIdentityContext(userid);
+        User crowdUser = getCrowdUser(identity, request, remoteHost, remoteIP);
 
         // Pull name and address from headers
-        String fullName = getFullName(request, userid);
-        String emailAddress = getEmailAddress(request);
+        String fullName = getFullName(config, request, userid);
+        String emailAddress = getEmailAddress(config, request);
 
         // Try to get the user's account based on the user name
-        Principal user = getUser(userid);
+        Principal user = identity.getUser();
         boolean newUser = false;
+        byte[] fingerprint = getProvisioningFingerprint(config, request, userid, fullName, emailAddress);
+        boolean unchanged = false;
+        // user updates and group membership changes are written together at the end
+        ProvisioningBatch batch = newProvisioningBatch(config);
+
+        // Parallel first requests of a new user: one of them creates and provisions it, the others wait for
+        // that and then let the user in as it is.
+        boolean creating = false;
+        boolean waited = false;
+        if (user == null && config.isCreateUsers()) {
+            creating = beginUserCreation(identity);
+            if (!creating) {
+                user = identity.getUser();
+                waited = (user != null);
+                crowdUser = getCrowdUser(identity, request, remoteHost, remoteIP);
+            }
+        }
 
-        // User didn't exist or was problem getting it. we'll try to create it if we can, otherwise will try to get it
-        // again.
-        if (user == null) {
-            if (config.isCreateUsers()) {
-                createUser(userid, fullName, emailAddress);
-                newUser = true;
-            } else {
-                if (log.isDebugEnabled()) {
-                    log.debug("Configuration does NOT allow creation of new user accounts, authentication will fail for " +
-                            username);
-                }
+        try {
+            // User didn't exist or was problem getting it. we'll try to create it if we can, otherwise will try to get it
+            // again.
+            if (user == null) {
+                if (creating) {
+                    createUser(config, userid, fullName, emailAddress);
+                    identity.userChanged();
+                    newUser = true;
+                } else if (config.isCreateUsers()) {
+                    log.warn("Interrupted while waiting for another request to create user " + userid +
+                            ", authentication will fail for " + username);
+
+                    loginFailed(request, username, remoteHost, remoteIP, "CreateUserInterrupted");
+                    readyToReturnFromLogin(request);
+                    return false;
+                } else {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Configuration does NOT allow creation of new user accounts, authentication will fail for " +
+                                username);
+                    }
 
-                loginFailed(request, username, remoteHost, remoteIP, "CreateUserDisabled");
+                    loginFailed(request, username, remoteHost, remoteIP, "CreateUserDisabled");
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Authenticator is returning false from call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
+                    if (log.isDebugEnabled()) {
+                        log.debug("Authenticator is returning false from call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
+                    }
+                    readyToReturnFromLogin(request);
+                    return false;
                 }
-                readyToReturnFromLogin(request);
-                return false;
-            }
 
-            user = getUser(userid);
-            if (user != null) {
-                // update the first time even if update not set, because we need to set full name and email
-                updateUser(crowdUser, fullName, emailAddress);
+                user = identity.getUser();
+                if (user != null) {
+                    // the user did not exist when crowdUser was looked up
+                    crowdUser = identity.getCrowdUser();
+                    // update the first time even if update not set, because we need to set full name and email
+                    updateUser(batch, crowdUser, fullName, emailAddress);
+                } else {
+                    // this could be a warning rather than debug, but in certain environments it might happen more often.
+                    if (log.isDebugEnabled()) {
+                        log.debug("Got null user after creating user " + username + " so could not update it to set its fullname or email.");
+                    }
+                }
             } else {
-                // this could be a warning rather than debug, but in certain environments it might happen more often.
-                if (log.isDebugEnabled()) {
-                    log.debug("Got null user after creating user " + username + " so could not update it to set its fullname or email.");
+                // the request that created the user has provisioned it, so a waiting one does not again
+                unchanged = waited || isProvisioningUnchanged(config, userid, fingerprint);
+                if (config.isUpdateInfo() && !unchanged) {
+                    updateUser(batch, crowdUser, fullName, emailAddress);
                 }
             }
-        } else {
-            if (config.isUpdateInfo()) {
-                updateUser(crowdUser, fullName, emailAddress);
-            }
-        }
 
-        if (config.isUpdateRoles() || newUser) {
-            updateGroupMemberships(request, crowdUser);
+            // nothing to record for a waiting request, it was neither updated nor skipped by its fingerprint
+            finishProvisioning(config, request, identity, batch, crowdUser,
+                    (config.isUpdateRoles() && !unchanged) || newUser, newUser, waited ? null : fingerprint,
+                    unchanged);
+        } finally {
+            if (creating) {
+                userCreations.finish(userid);
+            }
         }
 
         // kick off login related methods
@@ -865,77 +971,536 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
                 remoteHost, remoteIP));
     }
 
-    private void updateGroupMemberships(HttpServletRequest request, User user) {
-        if (user == null) {
+    /**
+     * Wait until the user of identity exists or no other request is creating it. A request whose wait
+     * timed out waits again while the other request is still creating the user, it does not create the
+     * user as well.
+     *
+     * @return true if this request creates the user and has to call userCreations.finish, false if the
+     *         user exists now or the request was interrupted
+     */
+    private boolean beginUserCreation(IdentityContext identity) {
+        String userid = identity.getUserid();
+        while (!userCreations.begin(userid, USER_CREATION_WAIT_MILLIS)) {
+            identity.userChanged();
+            if (identity.getUser() != null || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
             if (log.isDebugEnabled()) {
-                log.debug("User is null, so can't update group memberships.");
+                log.debug("User " + userid + " has not been created yet, waiting for it again");
             }
-        } else {
-            Set roles = new HashSet();
-
-            // Add user to groups.
-            getRolesFromHeader(request, roles);
-            assignUserToRoles(user, config.getDefaultRoles(), user);
-            assignUserToRoles(user, roles, user);
-
-            // Make sure we don't purge default roles either
-            roles.addAll(config.getDefaultRoles());
-            purgeUserRoles(user, roles);
         }
+        return true;
     }
 
-    private User getCrowdUser(String userid, HttpServletRequest request, String remoteHost, String remoteIP) {
-        CrowdService crowdService = getCrowdService();
-        if (crowdService == null) {
-            loginFailed(request, userid, remoteHost, remoteIP, "AuthenticatorConfigFailure");
-            if (log.isDebugEnabled()) {
-                log.debug("Authenticator is throwing RuntimeException from call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
-            }
-
-            throw new RuntimeException("crowdService was not wired in RemoteUserAuthenticator");
+    /**
+     * Update the group memberships if updateGroups is set, write the batch and remember the fingerprint
+     * of the update if every change was applied. With provisioning.async, the group memberships of existing users are updated in the
+     * background and the request does not wait for it; new users need their default roles right away.
+     */
+    private void finishProvisioning(ShibAuthConfiguration config, HttpServletRequest request,
+                                    IdentityContext identity, ProvisioningBatch batch, User crowdUser,
+                                    boolean updateGroups, boolean newUser, byte[] fingerprint,
+                                    boolean unchanged) {
+        String userid = identity.getUserid();
+
+        if (updateGroups) {
+            // this login writes the current state of the user, which makes the recovered writes obsolete
+            supersedeReplay(userid);
         }
 
-        // ensure user is active
-        User crowdUser = crowdService.getUser(userid);
-        if (crowdUser != null && !crowdUser.isActive()) {
-            log.info("Login failed for user '" + userid + "', because user is set as inactive. remoteIP=" + remoteIP + " remoteHost=" + remoteHost);
-
-            loginFailed(request, userid, remoteHost, remoteIP, "UserInactive");
+        if (updateGroups && !newUser && crowdUser != null && config.isProvisioningAsync()) {
+            boolean userApplied = flush(batch);
 
-            if (log.isDebugEnabled()) {
-                log.debug("Authenticator is returning null from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
+            // the request is gone by the time the job runs, so the roles are taken from it now
+            GroupSyncJob job = new GroupSyncJob(config, userid, crowdUser, getRoles(config, request), fingerprint,
+                    userApplied);
+            Runnable replaced = getAsyncProvisioner(config).submit(userid, job);
+            if (replaced instanceof GroupSyncJob) {
+                ((GroupSyncJob) replaced).done();
             }
-            return null;
+            return;
         }
 
-        return crowdUser;
+        boolean applied = true;
+        if (updateGroups) {
+            applied = updateGroupMemberships(config, request, identity, batch, crowdUser);
+        }
+        applied &= flush(batch);
+        recordProvisioning(config, userid, fingerprint, unchanged, applied);
     }
 
-    public Principal getUser(HttpServletRequest request, HttpServletResponse response) {
+    /**
+     * A group synchronization of provisioning.async. With a provisioning journal it is journaled when it is
+     * created, so that a job still waiting for a worker when the node stops is run after the restart.
+     */
+    private class GroupSyncJob implements Runnable {
+        private final ShibAuthConfiguration config;
 
-        String remoteIP = request.getRemoteAddr();
-        String remoteHost = request.getRemoteHost();
+        private final String userid;
 
-        if (log.isDebugEnabled()) {
-            log.debug("getUser(...) called. requestURL=" + request.getRequestURL() + ", remoteIP=" + remoteIP + ", remoteHost=" + remoteHost);
-        }
+        private final User crowdUser;
 
-        final Principal localUser = super.getUser(request, response);
-        if (localUser != null) {
-            if (log.isDebugEnabled()) {
-                log.debug(String.format("Login for user %s succeeded via local login", localUser.getName()));
+        private final Set roles;
+
+        private final byte[] fingerprint;
+
+        /**
+         * Whether the user update of the request was applied
+         */
+        private final boolean userApplied;
+
+        private final ProvisioningJournal journal;
+
+        private final ProvisioningJournal.Entry entry;
+
+        GroupSyncJob(ShibAuthConfiguration config, String userid, User crowdUser, Set roles, byte[] fingerprint,
+                     boolean userApplied) {
+            this.config = config;
+            this.userid = userid;
+            this.crowdUser = crowdUser;
+            this.roles = roles;
+            this.fingerprint = fingerprint;
+            this.userApplied = userApplied;
+
+            journal = getJournal(config);
+            if (journal != null) {
+                entry = ProvisioningJournal.Entry.syncGroups(userid, roles);
+                journal.append(entry);
+                journal.sync();
+            } else {
+                entry = null;
             }
-            return localUser;
         }
 
-        // Does the user have a "Remember Me" cookie set?
-        final Principal cookieUser = getUserFromCookie(request, response);
-        if (cookieUser != null) {
-            log.debug(String.format("Login for user %s succeeded via Remember Me cookie", cookieUser.getName()));
-            return cookieUser;
+        public void run() {
+            try {
+                boolean applied = synchronizeGroups(config, userid, crowdUser, roles);
+                recordProvisioning(config, userid, fingerprint, false, applied && userApplied);
+            } finally {
+                done();
+            }
         }
 
-        // Is the incoming request flagged with Basic Auth credentials?
+        /**
+         * The job ran, or will not run because a newer job of the user replaced it.
+         */
+        void done() {
+            if (entry != null) {
+                journal.applied(entry);
+            }
+        }
+    }
+
+    /**
+     * Synchronize the group memberships of a user with roles, in a batch of its own.
+     *
+     * @return true if every change was applied
+     */
+    private boolean synchronizeGroups(ShibAuthConfiguration config, String userid, User crowdUser,
+                                      Collection roles) {
+        ProvisioningBatch batch = newProvisioningBatch(config);
+        boolean applied = newGroupMembershipSynchronizer(config, batch).synchronize(
+                newIdentityContext(userid), crowdUser, roles);
+        return flush(batch) && applied;
+    }
+
+    /**
+     * Write a batch. A failure is logged and does not fail the login.
+     *
+     * @return true if every write of the batch was applied
+     */
+    private static boolean flush(ProvisioningBatch batch) {
+        try {
+            return batch.flush();
+        } catch (Throwable t) {
+            log.error("Failed to write provisioning changes!", t);
+            return false;
+        }
+    }
+
+    /**
+     * @return true if every group membership change was made
+     */
+    private boolean updateGroupMemberships(ShibAuthConfiguration config, HttpServletRequest request,
+                                           IdentityContext identity, ProvisioningBatch batch, User user) {
+        if (user == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("User is null, so can't update group memberships.");
+            }
+            return false;
+        } else {
+            // Add user to groups and purge it from the others, reading its memberships once.
+            return newGroupMembershipSynchronizer(config, batch).synchronize(identity, user,
+                    getRoles(config, request));
+        }
+    }
+
+    /**
+     * @return the roles from the dynamicroles headers of the request
+     */
+    private Set getRoles(ShibAuthConfiguration config, HttpServletRequest request) {
+        // Group names are case insensitive in Confluence.
+        Set roles = new CaseInsensitiveStringSet();
+        getRolesFromHeader(config, request, roles);
+        return roles;
+    }
+
+    /**
+     * @return a batch for the provisioning writes of a request, journaled if provisioning.journal is set
+     */
+    private ProvisioningBatch newProvisioningBatch(ShibAuthConfiguration config) {
+        return new ProvisioningBatch(getTransactionManager(), config.getProvisioningBatchSize(), getJournal(config));
+    }
+
+    /**
+     * The journal of provisioning.journal, null if it is not set or could not be opened, and its file, also
+     * when it could not be opened, so that it is not retried for every request
+     */
+    private static class JournalState {
+        final String file;
+
+        final ProvisioningJournal journal;
+
+        JournalState(String file, ProvisioningJournal journal) {
+            this.file = file;
+            this.journal = journal;
+        }
+    }
+
+    /**
+     * @return the journal of provisioning.journal, or null. It is opened by init, and again when a reload
+     *         changes provisioning.journal; the writes it recovers are replayed in the background.
+     */
+    private ProvisioningJournal getJournal(ShibAuthConfiguration config) {
+        String file = config.getProvisioningJournal();
+        JournalState current = journalState;
+        if ((file == null) ? current.file == null : file.equals(current.file)) {
+            return current.journal;
+        }
+
+        synchronized (RemoteUserAuthenticator.class) {
+            current = journalState;
+            if ((file == null) ? current.file == null : file.equals(current.file)) {
+                return current.journal;
+            }
+
+            if (current.journal != null) {
+                current.journal.close();
+            }
+            ProvisioningJournal opened = null;
+            if (file != null) {
+                try {
+                    opened = new ProvisioningJournal(new File(file));
+                    log.info("Journaling provisioning writes in " + file);
+                } catch (IOException e) {
+                    log.error("Unable to open provisioning journal " + file +
+                            ", provisioning writes are not journaled", e);
+                }
+            }
+            journalState = new JournalState(file, opened);
+
+            if (opened != null) {
+                replayInBackground(config, opened);
+            }
+            return opened;
+        }
+    }
+
+    /**
+     * Replay the writes that were journaled but not applied before the journal was opened, e.g. because
+     * the node was stopped. They are grouped per user right away, so that a login can supersede them, and
+     * submitted to the async provisioner from a daemon thread once Confluence is up, so that they run one
+     * user at a time like the group synchronizations of the logins and no request waits for them.
+     */
+    private void replayInBackground(final ShibAuthConfiguration config,
+                                    final ProvisioningJournal provisioningJournal) {
+        List recovered = provisioningJournal.takeRecovered();
+        if (recovered.isEmpty()) {
+            return;
+        }
+
+        log.info("Replaying " + recovered.size() + " provisioning writes from " + provisioningJournal.getFile());
+        // Map<userid, ReplayJob>
+        final Map jobs = new LinkedHashMap();
+        for (Iterator it = recovered.iterator(); it.hasNext(); ) {
+            ProvisioningJournal.Entry entry = (ProvisioningJournal.Entry) it.next();
+            ReplayJob job = (ReplayJob) jobs.get(entry.getUserid());
+            if (job == null) {
+                job = new ReplayJob(config, provisioningJournal, entry.getUserid());
+                jobs.put(entry.getUserid(), job);
+            }
+            job.add(entry);
+        }
+        recoveredUsers.putAll(jobs);
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (getCrowdService() == null || getTransactionManager() == null) {
+                        Thread.sleep(1000);
+                    }
+
+                    AsyncProvisioner provisioner = getAsyncProvisioner(config);
+                    for (Iterator it = jobs.values().iterator(); it.hasNext(); ) {
+                        ReplayJob job = (ReplayJob) it.next();
+                        Runnable replaced = provisioner.submit(job.userid, job);
+                        if (replaced != null) {
+                            // a login of the user queued a newer synchronization meanwhile
+                            provisioner.submit(job.userid, replaced);
+                            job.supersede();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    log.warn("Interrupted before replaying provisioning journal " + provisioningJournal.getFile() +
+                            ", its writes are replayed after the next restart");
+                } catch (Throwable t) {
+                    log.error("Failed to replay provisioning journal " + provisioningJournal.getFile() + "!", t);
+                }
+            }
+        }, "shibauth-journal-replay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Mark the recovered writes of a user as applied, because a login is writing the current state of the
+     * user. Waits if they are being replayed, so that the writes of the login land after them.
+     */
+    private static void supersedeReplay(String userid) {
+        if (recoveredUsers.isEmpty()) {
+            return;
+        }
+
+        ReplayJob job = (ReplayJob) recoveredUsers.get(userid);
+        if (job != null) {
+            job.supersede();
+        }
+    }
+
+    /**
+     * The recovered writes of one user. Each write checks the current state first, so applying one twice is
+     * harmless. Of the group synchronizations only the latest is run, the older ones were replaced by it.
+     */
+    private class ReplayJob implements Runnable {
+        private final ShibAuthConfiguration config;
+
+        private final ProvisioningJournal journal;
+
+        private final String userid;
+
+        /**
+         * List&lt;Entry&gt; the group additions and removals and the user updates, in order
+         */
+        private final List writes = new ArrayList();
+
+        private ProvisioningJournal.Entry synchronization;
+
+        /**
+         * Set once the job ran or was superseded, it does nothing after that
+         */
+        private boolean finished;
+
+        ReplayJob(ShibAuthConfiguration config, ProvisioningJournal journal, String userid) {
+            this.config = config;
+            this.journal = journal;
+            this.userid = userid;
+        }
+
+        void add(ProvisioningJournal.Entry entry) {
+            if (entry.getType() != ProvisioningJournal.SYNC_GROUPS) {
+                writes.add(entry);
+            } else {
+                if (synchronization != null) {
+                    journal.applied(synchronization);
+                }
+                synchronization = entry;
+            }
+        }
+
+        public synchronized void run() {
+            if (finished) {
+                return;
+            }
+
+            try {
+                ProvisioningBatch batch = new ProvisioningBatch(getTransactionManager(),
+                        config.getProvisioningBatchSize(), journal);
+                for (Iterator it = writes.iterator(); it.hasNext(); ) {
+                    final ProvisioningJournal.Entry entry = (ProvisioningJournal.Entry) it.next();
+                    batch.add(new ProvisioningBatch.Operation("replay " + entry, entry) {
+                        public void run() throws Exception {
+                            replay(entry);
+                        }
+                    });
+                }
+                flush(batch);
+
+                // against the state the writes above left behind
+                if (synchronization != null) {
+                    try {
+                        User crowdUser = getCrowdService().getUser(userid);
+                        if (crowdUser != null) {
+                            synchronizeGroups(config, userid, crowdUser, synchronization.getRoles());
+                        }
+                    } catch (Throwable t) {
+                        log.error("Failed to replay " + synchronization + "!", t);
+                    }
+                    journal.applied(synchronization);
+                }
+            } finally {
+                finished = true;
+                recoveredUsers.remove(userid, this);
+            }
+        }
+
+        synchronized void supersede() {
+            if (finished) {
+                return;
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Not replaying the recovered provisioning writes of user " + userid +
+                        ", a login wrote its current state");
+            }
+            for (Iterator it = writes.iterator(); it.hasNext(); ) {
+                journal.applied((ProvisioningJournal.Entry) it.next());
+            }
+            if (synchronization != null) {
+                journal.applied(synchronization);
+            }
+            finished = true;
+            recoveredUsers.remove(userid, this);
+        }
+    }
+
+    private void replay(ProvisioningJournal.Entry entry) throws Exception {
+        CrowdService crowdService = getCrowdService();
+        User crowdUser = crowdService.getUser(entry.getUserid());
+        if (crowdUser == null) {
+            return;
+        }
+
+        if (entry.getType() == ProvisioningJournal.UPDATE_USER) {
+            if (sameValue(entry.getDisplayName(), crowdUser.getDisplayName()) &&
+                    sameValue(entry.getEmailAddress(), crowdUser.getEmailAddress())) {
+                return;
+            }
+            ImmutableUser.Builder userBuilder = new ImmutableUser.Builder();
+            userBuilder.active(crowdUser.isActive());
+            userBuilder.directoryId(crowdUser.getDirectoryId());
+            userBuilder.name(crowdUser.getName());
+            userBuilder.displayName(entry.getDisplayName());
+            userBuilder.emailAddress(entry.getEmailAddress());
+            crowdService.updateUser(userBuilder.toUser());
+            return;
+        }
+
+        Group group = crowdService.getGroup(entry.getGroup());
+        if (group == null) {
+            return;
+        }
+        boolean member = crowdService.isUserMemberOfGroup(crowdUser, group);
+        if (entry.getType() == ProvisioningJournal.ADD_GROUP && !member) {
+            crowdService.addUserToGroup(crowdUser, group);
+        } else if (entry.getType() == ProvisioningJournal.REMOVE_GROUP && member) {
+            crowdService.removeUserFromGroup(crowdUser, group);
+        }
+    }
+
+    private static boolean sameValue(String a, String b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    /**
+     * @return the provisioner of provisioning.async with the thread and queue sizes of config, created the
+     *         first time it is needed. If a reload changed them, the old provisioner is shut down after
+     *         running the jobs it has queued.
+     */
+    private static AsyncProvisioner getAsyncProvisioner(ShibAuthConfiguration config) {
+        AsyncProvisioner current = asyncProvisioner;
+        if (isAsyncProvisionerFor(current, config)) {
+            return current;
+        }
+
+        synchronized (RemoteUserAuthenticator.class) {
+            current = asyncProvisioner;
+            if (isAsyncProvisionerFor(current, config)) {
+                return current;
+            }
+
+            log.info("Updating group memberships in the background with " +
+                    config.getProvisioningAsyncThreads() + " threads and a queue of " +
+                    config.getProvisioningAsyncQueueSize() + " users");
+            if (current != null) {
+                current.shutdown();
+            }
+            AsyncProvisioner replacement = new AsyncProvisioner(config.getProvisioningAsyncThreads(),
+                    config.getProvisioningAsyncQueueSize());
+            asyncProvisioner = replacement;
+            return replacement;
+        }
+    }
+
+    private static boolean isAsyncProvisionerFor(AsyncProvisioner provisioner, ShibAuthConfiguration config) {
+        return (provisioner != null) && provisioner.getThreads() == config.getProvisioningAsyncThreads() &&
+                provisioner.getQueueSize() == config.getProvisioningAsyncQueueSize();
+    }
+
+    private User getCrowdUser(IdentityContext identity, HttpServletRequest request, String remoteHost,
+                              String remoteIP) {
+        String userid = identity.getUserid();
+        CrowdService crowdService = getCrowdService();
+        if (crowdService == null) {
+            loginFailed(request, userid, remoteHost, remoteIP, "AuthenticatorConfigFailure");
+            if (log.isDebugEnabled()) {
+                log.debug("Authenticator is throwing RuntimeException from call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
+            }
+
+            throw new RuntimeException("crowdService was not wired in RemoteUserAuthenticator");
+        }
+
+        // ensure user is active
+        User crowdUser = identity.getCrowdUser();
+        if (crowdUser != null && !crowdUser.isActive()) {
+            log.info("Login failed for user '" + userid + "', because user is set as inactive. remoteIP=" + remoteIP + " remoteHost=" + remoteHost);
+
+            loginFailed(request, userid, remoteHost, remoteIP, "UserInactive");
+
+            if (log.isDebugEnabled()) {
+                log.debug("Authenticator is returning null from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
+            }
+            return null;
+        }
+
+        return crowdUser;
+    }
+
+    public Principal getUser(HttpServletRequest request, HttpServletResponse response) {
+
+        String remoteIP = request.getRemoteAddr();
+        String remoteHost = request.getRemoteHost();
+
+        if (log.isDebugEnabled()) {
+            log.debug("getUser(...) called. requestURL=" + request.getRequestURL() + ", remoteIP=" + remoteIP + ", remoteHost=" + remoteHost);
+        }
+
+        final Principal localUser = super.getUser(request, response);
+        if (localUser != null) {
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Login for user %s succeeded via local login", localUser.getName()));
+            }
+            return localUser;
+        }
+
+        // Does the user have a "Remember Me" cookie set?
+        final Principal cookieUser = getUserFromCookie(request, response);
+        if (cookieUser != null) {
+            log.debug(String.format("Login for user %s succeeded via Remember Me cookie", cookieUser.getName()));
+            return cookieUser;
+        }
+
+        // Is the incoming request flagged with Basic Auth credentials?
         if (RedirectUtils.isBasicAuthentication(request, getAuthType())) {
             final Principal basicAuthUser = getUserFromBasicAuthentication(request, response);
             if (basicAuthUser != null) {
@@ -948,7 +1513,8 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
 
         // Since they aren't logged in, get the user name from
         // the REMOTE_USER header
-        String userid = createSafeUserid(getLoggedInUser(request));
+        ShibAuthConfiguration config = getConfiguration();
+        String userid = createSafeUserid(config, getLoggedInUser(config, request));
 
         if ((userid == null) || (userid.length() <= 0)) {
             if (log.isDebugEnabled()) {
@@ -963,82 +1529,112 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
             return null;
         }
 
-        // Now that we know we will be trying to log the user in,
-        // let's see if we should reload the config file first
-        checkReloadConfig();
-
         // Convert username to all lowercase
         if (config.isUsernameConvertCase()) {
             userid = convertUsername(userid);
         }
 
         // Pull name and address from headers
-        String fullName = getFullName(request, userid);
-        String emailAddress = getEmailAddress(request);
+        String fullName = getFullName(config, request, userid);
+        String emailAddress = getEmailAddress(config, request);
 
-        // Try to get the user's account based on the user name
-        Principal user = getUser(userid);
+        // Try to get the user's account based on the user name. Users are looked up once for all of the
+        // stages below.
+        IdentityContext identity = newIdentityContext(userid);
+        Principal user = identity.getUser();
+        User crowdUser;
 
         boolean newUser = false;
+        byte[] fingerprint = getProvisioningFingerprint(config, request, userid, fullName, emailAddress);
+        boolean unchanged = false;
+        // user updates and group membership changes are written together at the end
+        ProvisioningBatch batch = newProvisioningBatch(config);
+
+        // Parallel first requests of a new user: one of them creates and provisions it, the others wait for
+        // that and then let the user in as it is.
+        boolean creating = false;
+        boolean waited = false;
+        if (user == null && config.isCreateUsers()) {
+            creating = beginUserCreation(identity);
+            if (!creating) {
+                user = identity.getUser();
+                waited = (user != null);
+            }
+        }
 
-        // User didn't exist or was problem getting it. we'll try to create it
-        // if we can, otherwise will try to get it again.
-        if (user == null) {
-            if (config.isCreateUsers()) {
-                createUser(userid, fullName, emailAddress);
-                newUser = true;
-            } else {
-                if (log.isDebugEnabled()) {
-                    log.debug("Configuration does NOT allow creation of new user accounts, authentication will fail for " +
-                            userid + ". Login attempt by '" + userid + "' failed.");
-                }
+        try {
+            // User didn't exist or was problem getting it. we'll try to create it
+            // if we can, otherwise will try to get it again.
+            if (user == null) {
+                if (creating) {
+                    createUser(config, userid, fullName, emailAddress);
+                    identity.userChanged();
+                    newUser = true;
+                } else if (config.isCreateUsers()) {
+                    log.warn("Interrupted while waiting for another request to create user " + userid +
+                            ". Login attempt by '" + userid + "' failed.");
+
+                    loginFailed(request, userid, remoteHost, remoteIP, "CreateUserInterrupted");
+                    return null;
+                } else {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Configuration does NOT allow creation of new user accounts, authentication will fail for " +
+                                userid + ". Login attempt by '" + userid + "' failed.");
+                    }
 
-                loginFailed(request, userid, remoteHost, remoteIP, "CreateUserDisabled");
+                    loginFailed(request, userid, remoteHost, remoteIP, "CreateUserDisabled");
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Authenticator is returning null from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
+                    if (log.isDebugEnabled()) {
+                        log.debug("Authenticator is returning null from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
+                    }
+                    return null;
                 }
-                return null;
-            }
 
-            user = getUser(userid);
-            User crowdUser = getCrowdUser(userid, request, remoteHost, remoteIP);
-            if (crowdUser == null) {
-                return null;
-            }
-
-            if (user != null) {
-                // update the first time even if update not set, because we need to set full name and email
-                updateUser(crowdUser, fullName, emailAddress);
-            } else {
-                // If user is still null, probably we're using an
-                // external user database like LDAP. Either REMOTE_USER
-                // isn't present there or is being filtered out, e.g.
-                // by userSearchFilter
-                if (log.isDebugEnabled()) {
-                    log.debug("User does not exist and cannot create it. Login attempt by '" + userid + "' failed.");
+                user = identity.getUser();
+                crowdUser = getCrowdUser(identity, request, remoteHost, remoteIP);
+                if (crowdUser == null) {
+                    return null;
                 }
 
-                loginFailed(request, userid, remoteHost, remoteIP, "CannotCreateUser");
+                if (user != null) {
+                    // update the first time even if update not set, because we need to set full name and email
+                    updateUser(batch, crowdUser, fullName, emailAddress);
+                } else {
+                    // If user is still null, probably we're using an
+                    // external user database like LDAP. Either REMOTE_USER
+                    // isn't present there or is being filtered out, e.g.
+                    // by userSearchFilter
+                    if (log.isDebugEnabled()) {
+                        log.debug("User does not exist and cannot create it. Login attempt by '" + userid + "' failed.");
+                    }
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Authenticator is returning null from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
+                    loginFailed(request, userid, remoteHost, remoteIP, "CannotCreateUser");
+
+                    if (log.isDebugEnabled()) {
+                        log.debug("Authenticator is returning null from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
+                    }
+                    return null;
+                }
+            } else {
+                crowdUser = getCrowdUser(identity, request, remoteHost, remoteIP);
+                if (crowdUser == null) {
+                    return null;
+                }
+                // the request that created the user has provisioned it, so a waiting one does not again
+                unchanged = waited || isProvisioningUnchanged(config, userid, fingerprint);
+                if (config.isUpdateInfo() && !unchanged) {
+                    updateUser(batch, crowdUser, fullName, emailAddress);
                 }
-                return null;
-            }
-        } else {
-            User crowdUser = getCrowdUser(userid, request, remoteHost, remoteIP);
-            if (crowdUser == null) {
-                return null;
-            }
-            if (config.isUpdateInfo()) {
-                updateUser(crowdUser, fullName, emailAddress);
             }
-        }
 
-        User crowdUser = getCrowdUser(userid, request, remoteHost, remoteIP);
-        if (config.isUpdateRoles() || newUser) {
-            updateGroupMemberships(request, crowdUser);
+            // nothing to record for a waiting request, it was neither updated nor skipped by its fingerprint
+            finishProvisioning(config, request, identity, batch, crowdUser,
+                    (config.isUpdateRoles() && !unchanged) || newUser, newUser, waited ? null : fingerprint,
+                    unchanged);
+        } finally {
+            if (creating) {
+                userCreations.finish(userid);
+            }
         }
 
         loginSuccessful(request, response, user.getName(), crowdUser, remoteHost, remoteIP);
@@ -1050,20 +1646,63 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         return user;
     }
 
-    private String createSafeUserid(String originalRemoteuser) {
+    /**
+     * @return a synchronizer that adds its group membership changes to batch
+     */
+    private GroupMembershipSynchronizer newGroupMembershipSynchronizer(ShibAuthConfiguration config,
+                                                                       final ProvisioningBatch batch) {
+        final CrowdService crowdService = getCrowdService();
+        return new GroupMembershipSynchronizer(config, crowdService, getGroupManager()) {
+            protected void addUserToGroup(User user, Group group) {
+                RemoteUserAuthenticator.this.addUserToGroup(batch, user, group);
+            }
+
+            protected void removeUserFromGroup(User user, Group group) {
+                RemoteUserAuthenticator.this.removeUserFromGroup(batch, crowdService, user, group);
+            }
+        };
+    }
+
+    /**
+     * @return a context that looks up the accounts of userid once for the current request
+     */
+    private IdentityContext newIdentityContext(String userid) {
+        return new IdentityContext(userid, getCrowdService(), getUserAccessor()) {
+            protected Principal lookupUser(String userid) {
+                return RemoteUserAuthenticator.this.getUser(userid);
+            }
+        };
+    }
+
+    private String createSafeUserid(ShibAuthConfiguration config, String originalRemoteuser) {
+        // Mappers and cache are taken from the same configuration, a reload replaces both.
+        MappingCache cache = config.getMappingCache();
+        if (cache == null || originalRemoteuser == null) {
+            return mapRemoteUser(config, originalRemoteuser);
+        }
+
+        String userid = (String) cache.get(ShibAuthConstants.REMOTEUSER_PREFIX, originalRemoteuser);
+        if (userid == null) {
+            long timeouts = ShibAuthStatistics.getRegexTimeouts();
+            userid = mapRemoteUser(config, originalRemoteuser);
+
+            // don't remember results of regexes that were cut short
+            if (userid != null && ShibAuthStatistics.getRegexTimeouts() == timeouts) {
+                cache.put(ShibAuthConstants.REMOTEUSER_PREFIX, originalRemoteuser, userid);
+            }
+        }
+
+        return userid;
+    }
+
+    private String mapRemoteUser(ShibAuthConfiguration config, String originalRemoteuser) {
         // Possible to have multiple mappers defined, but only 1 will produce the desired outcome.
         Set possibleRemoteUsers = new HashSet();
         Collection mappers = config.getRemoteUserMappings();
 
         for (Iterator mapperIt = mappers.iterator(); mapperIt.hasNext(); ) {
             GroupMapper mapper = (GroupMapper) mapperIt.next();
-
-            String[] results = (String[]) StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(
-                    mapper.process(originalRemoteuser)).toArray(new String[0]);
-
-            if (results.length != 0) {
-                possibleRemoteUsers.addAll(Arrays.asList(results));
-            }
+            mapper.process(originalRemoteuser, possibleRemoteUsers);
         }
 
         if (possibleRemoteUsers.isEmpty()) {
@@ -1081,66 +1720,45 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         // Try the next one.
         // TODO: Is this adequate?
         String output = possibleRemoteUsers.iterator().next().toString();
-        return remoteUserCharsReplacement(output);
+        return remoteUserCharsReplacement(config, output);
     }
 
-    private String remoteUserCharsReplacement(String remoteUser) {
+    private String remoteUserCharsReplacement(ShibAuthConfiguration config, String remoteUser) {
         // If remoteuser.replace is specified, process it. It has the format of pair-wise value, occurences of 1st entry
-        // regex is replaced with what specified on the second entry. The list is comma or semi-colon separated (which
-        // means it is pretty obvious a comma or semi-colon can't be used in the content replacement.
-        Iterator it = config.getRemoteUserReplacementChars();
-
-        while (it.hasNext()) {
-            String replaceFromRegex = it.next().toString();
-
-            // Someone didn't fill up pair-wise entry, ignore this regex.
-            if (!it.hasNext()) {
-                if (replaceFromRegex.length() != 0) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Character replacements specified for Remote User regex is incomplete, make sure the entries are pair-wise, skipping...");
-                    }
-                }
-                break;
-            }
-
-            String replacement = it.next().toString();
-
-            // We are not going to replace empty string, so skip it.
-            if (replaceFromRegex.length() == 0) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Empty string is found in Remote User replaceFrom regex, skipping...");
-                }
+        // regex is replaced with what specified on the second entry. The pairs have been compiled at load time.
+        ReplacementChain replacements = config.getRemoteUserReplacements();
+        return (replacements == null) ? remoteUser : replacements.apply(remoteUser);
+    }
 
-                continue;
-            }
+    private String createFullNameUsingMapping(ShibAuthConfiguration config, String originalFullNameHeaderValue, List values) {
+        // Mappers and cache are taken from the same configuration, a reload replaces both.
+        MappingCache cache = config.getMappingCache();
+        if (cache == null) {
+            return mapFullName(config, originalFullNameHeaderValue, values);
+        }
 
-            try {
-                remoteUser = remoteUser.replaceAll(replaceFromRegex, replacement);
-            } catch (Throwable t) {
-                log.warn("Failed to replace certain character entries in \"Remote User\" matching regex=\"" + replaceFromRegex + "\", ignoring...");
+        String fullName = (String) cache.get(ShibAuthConstants.FULL_NAME_PREFIX, originalFullNameHeaderValue);
+        if (fullName == null) {
+            long timeouts = ShibAuthStatistics.getRegexTimeouts();
+            fullName = mapFullName(config, originalFullNameHeaderValue, values);
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Failed to replace certain character entries in Remote User", t);
-                }
+            // don't remember results of regexes that were cut short
+            if (fullName != null && ShibAuthStatistics.getRegexTimeouts() == timeouts) {
+                cache.put(ShibAuthConstants.FULL_NAME_PREFIX, originalFullNameHeaderValue, fullName);
             }
         }
-        return remoteUser;
+
+        return fullName;
     }
 
-    private String createFullNameUsingMapping(String originalFullNameHeaderValue, List values) {
+    private String mapFullName(ShibAuthConfiguration config, String originalFullNameHeaderValue, List values) {
         // It is possible to have multiple mappers defined, but only one will produce the desired outcome.
         Set possibleFullNames = new HashSet();
         Collection mappers = config.getFullNameMappings();
 
         for (Iterator mapperIt = mappers.iterator(); mapperIt.hasNext(); ) {
             GroupMapper mapper = (GroupMapper) mapperIt.next();
-            String[] results = (String[]) StringUtil.
-                    toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(
-                            mapper.process(originalFullNameHeaderValue)).toArray(new String[0]);
-
-            if (results.length != 0) {
-                possibleFullNames.addAll(Arrays.asList(results));
-            }
+            mapper.process(originalFullNameHeaderValue, possibleFullNames);
         }
 
         if (possibleFullNames.isEmpty()) {
@@ -1157,93 +1775,43 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
 
         //just get a random one
         String output = possibleFullNames.iterator().next().toString();
-        return fullNameCharsReplacement(output);
+        return fullNameCharsReplacement(config, output);
     }
 
-    private String fullNameCharsReplacement(String fullName) {
+    private String fullNameCharsReplacement(ShibAuthConfiguration config, String fullName) {
         // If fullname.replace is specified, process it. It has the format of pair-wise value, occurences of 1st entry
-        // regex is replaced with what specified on the second entry. The list is comma or semi-colon separated (which
-        // means it is pretty obvious a comma or semi-colon can't be used in the content replacement.
-        Iterator it = config.getFullNameReplacementChars();
-
-        while (it.hasNext()) {
-            String replaceFromRegex = it.next().toString();
-
-            // Someone didn't fill up pair-wise entry, ignore this regex (which must be the last one).
-            if (!it.hasNext()) {
-                if (replaceFromRegex.length() != 0) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Character replacements specified for Full Name regex is incomplete, make sure the entries are pair-wise, skipping...");
-                    }
-                }
-
-                break;
-            }
-
-            String replacement = it.next().toString();
-
-            // We are not going to replace empty string, so skip it.
-            if (replaceFromRegex.length() == 0) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Empty string is found in Full Name replaceFrom regex, skipping...");
-                }
-
-                continue;
-            }
-
-            try {
-                fullName = fullName.replaceAll(replaceFromRegex, replacement);
-            } catch (Exception e) {
-                log.warn("Fail to replace certain character entries in username matching regex=\"" + replaceFromRegex +
-                        "\".");
-                if (log.isDebugEnabled()) {
-                    log.debug("Failed to replace certain character entries in Remote User", e);
-                }
-            }
-        }
-
-        return fullName;
+        // regex is replaced with what specified on the second entry. The pairs have been compiled at load time.
+        ReplacementChain replacements = config.getFullNameReplacements();
+        return (replacements == null) ? fullName : replacements.apply(fullName);
     }
 
-    // avoid "Write operations are not allowed in read-only mode" per Joseph Clark of Atlassian in
-    // https://answers.atlassian.com/questions/25160/crowdservice-updateuser-causes-write-operations-are-not-allowed-in-read-only-mode
-    // https://developer.atlassian.com/display/CONFDEV/Hibernate+Sessions+and+Transaction+Management+Guidelines
-    private void addUserToGroup(final User crowdUser, final Group group) {
+    // Applied in a transaction when the batch is flushed, see ProvisioningBatch
+    private void addUserToGroup(ProvisioningBatch batch, final User crowdUser, final Group group) {
         if (crowdUser == null) {
             log.warn("Cannot add null user to group!");
         } else if (group == null) {
             log.warn("Cannot add user to null group!");
         } else {
-            new TransactionTemplate(getTransactionManager(), new DefaultTransactionAttribute(TransactionDefinition.PROPAGATION_REQUIRED)).execute(new TransactionCallback() {
-                public Object doInTransaction(TransactionStatus status) {
-                    try {
-                        getCrowdService().addUserToGroup(crowdUser, group);
-                    } catch (Throwable t) {
-                        log.error("Failed to add user " + crowdUser.getName() + " to group '" + group.getName() + "'!", t);
-                    }
-                    return null;
+            batch.add(new ProvisioningBatch.Operation("add user " + crowdUser.getName() + " to group '" + group.getName() + "'",
+                    ProvisioningJournal.Entry.addGroup(crowdUser.getName(), group.getName())) {
+                public void run() throws Exception {
+                    getCrowdService().addUserToGroup(crowdUser, group);
                 }
             });
         }
     }
 
-    // avoid "Write operations are not allowed in read-only mode" per Joseph Clark of Atlassian in
-    // https://answers.atlassian.com/questions/25160/crowdservice-updateuser-causes-write-operations-are-not-allowed-in-read-only-mode
-    // https://developer.atlassian.com/display/CONFDEV/Hibernate+Sessions+and+Transaction+Management+Guidelines
-    private void removeUserFromGroup(final CrowdService crowdService, final User crowdUser, final Group group) {
+    // Applied in a transaction when the batch is flushed, see ProvisioningBatch
+    private void removeUserFromGroup(ProvisioningBatch batch, final CrowdService crowdService, final User crowdUser, final Group group) {
         if (crowdUser == null) {
             log.warn("Cannot remove null user from group!");
         } else if (group == null) {
             log.warn("Cannot remove user from null group!");
         } else {
-            new TransactionTemplate(getTransactionManager(), new DefaultTransactionAttribute(TransactionDefinition.PROPAGATION_REQUIRED)).execute(new TransactionCallback() {
-                public Object doInTransaction(TransactionStatus status) {
-                    try {
-                        crowdService.removeUserFromGroup(crowdUser, group);
-                    } catch (Throwable t) {
-                        log.error("Failed to remove user " + crowdUser.getName() + " from group '" + group.getName() + "'!", t);
-                    }
-                    return null;
+            batch.add(new ProvisioningBatch.Operation("remove user " + crowdUser.getName() + " from group '" + group.getName() + "'",
+                    ProvisioningJournal.Entry.removeGroup(crowdUser.getName(), group.getName())) {
+                public void run() throws Exception {
+                    crowdService.removeUserFromGroup(crowdUser, group);
                 }
             });
         }
@@ -1252,7 +1820,7 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
     // avoid "Write operations are not allowed in read-only mode" per Joseph Clark of Atlassian in
     // https://answers.atlassian.com/questions/25160/crowdservice-updateuser-causes-write-operations-are-not-allowed-in-read-only-mode
     // https://developer.atlassian.com/display/CONFDEV/Hibernate+Sessions+and+Transaction+Management+Guidelines
-    private void createUser(final UserAccessor userAccessor, final String username, final String fullName, final String emailAddress) {
+    private void createUser(final ShibAuthConfiguration config, final UserAccessor userAccessor, final String username, final String fullName, final String emailAddress) {
         if (username != null) {
             // will always return as getAdminUserId() is the string ADMIN_USER_ID if undefined
             ConfluenceUser user = userAccessor.getUserByName(config.getAdminUserId());
@@ -1278,19 +1846,14 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         }
     }
 
-    // avoid "Write operations are not allowed in read-only mode" per Joseph Clark of Atlassian in
-    // https://answers.atlassian.com/questions/25160/crowdservice-updateuser-causes-write-operations-are-not-allowed-in-read-only-mode
-    // https://developer.atlassian.com/display/CONFDEV/Hibernate+Sessions+and+Transaction+Management+Guidelines
-    private void updateUser(final CrowdService crowdService, final User crowdUser) {
+    // Applied in a transaction when the batch is flushed, see ProvisioningBatch
+    private void updateUser(ProvisioningBatch batch, final CrowdService crowdService, final User crowdUser) {
         if (crowdUser != null) {
-            new TransactionTemplate(getTransactionManager(), new DefaultTransactionAttribute(TransactionDefinition.PROPAGATION_REQUIRED)).execute(new TransactionCallback() {
-                public Object doInTransaction(TransactionStatus status) {
-                    try {
-                        crowdService.updateUser(crowdUser);
-                    } catch (Throwable t) {
-                        log.error("Failed to update user '" + crowdUser.getName() + "'!", t);
-                    }
-                    return null;
+            batch.add(new ProvisioningBatch.Operation("update user '" + crowdUser.getName() + "'",
+                    ProvisioningJournal.Entry.updateUser(crowdUser.getName(), crowdUser.getDisplayName(),
+                            crowdUser.getEmailAddress())) {
+                public void run() throws Exception {
+                    crowdService.updateUser(crowdUser);
                 }
             });
         } else {
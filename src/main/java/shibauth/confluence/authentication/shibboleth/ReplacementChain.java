@@ -0,0 +1,307 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The compiled form of a remoteuser.replace or fullname.replace list. The pairs
+ * are applied one after the other, like a chain of String#replaceAll calls.
+ * <p/>
+ * Consecutive pairs whose regex matches a single character (a literal, an
+ * escape like \d or a character class) and whose replacement has no group
+ * references are collapsed into one lookup table at load time, so that a run
+ * of such pairs takes a single pass over the value. Other pairs are matched
+ * with their precompiled pattern, within regex.timeout.ms.
+ * <p/>
+ * Instances are immutable and can be shared by all request threads.
+ */
+public class ReplacementChain {
+
+    private final static Log log = LogFactory.getLog(ReplacementChain.class);
+
+    /**
+     * Escapes that match exactly one character
+     */
+    private final static String SINGLE_CHAR_ESCAPES = "tnrfaedDsSwWhHvV";
+
+    private final String label;
+    private final long timeoutMillis;
+
+    /**
+     * CharTable or Replacement entries, in the order they have to be applied
+     */
+    private final Object[] steps;
+
+    /**
+     * @param label         what is replaced, used in log messages, e.g. "Remote User"
+     * @param patterns      the compiled "from" regexes
+     * @param replacements  the replacement for each regex, checked with CompiledPattern#checkReplacement
+     * @param timeoutMillis time budget of each regex replacement, 0 for none
+     */
+    public ReplacementChain(String label, List patterns, List replacements, long timeoutMillis) {
+        this.label = label;
+        this.timeoutMillis = timeoutMillis;
+
+        List steps = new ArrayList();
+        List run = new ArrayList();
+        List runChars = new ArrayList();
+
+        for (int i = 0; i < patterns.size(); i++) {
+            Replacement replacement = new Replacement((CompiledPattern) patterns.get(i), (String) replacements.get(i));
+            BitSet chars = singleChars(replacement);
+
+            if (chars != null) {
+                run.add(replacement);
+                runChars.add(chars);
+                continue;
+            }
+
+            if (!run.isEmpty()) {
+                steps.add(new CharTable(run, runChars));
+                run.clear();
+                runChars.clear();
+            }
+            steps.add(replacement);
+        }
+
+        if (!run.isEmpty()) {
+            steps.add(new CharTable(run, runChars));
+        }
+
+        this.steps = steps.toArray();
+    }
+
+    /**
+     * Apply every replacement to value. A replacement that fails or runs out of
+     * time is logged and skipped, the others are still applied.
+     */
+    public String apply(String value) {
+        for (int i = 0; i < steps.length; i++) {
+            if (steps[i] instanceof CharTable) {
+                CharTable table = (CharTable) steps[i];
+                String replaced = table.apply(value);
+                if (replaced != null) {
+                    value = replaced;
+                    continue;
+                }
+
+                // supplementary characters, leave them to the regexes
+                for (int j = 0; j < table.replacements.length; j++) {
+                    value = replace(table.replacements[j], value);
+                }
+            } else {
+                value = replace((Replacement) steps[i], value);
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * @return number of passes over the value apply() takes for a value without supplementary characters
+     */
+    int getPassCount() {
+        return steps.length;
+    }
+
+    private String replace(Replacement replacement, String value) {
+        try {
+            return replacement.pattern.replaceAll(
+                    (timeoutMillis > 0) ? new DeadlineCharSequence(value, timeoutMillis) : value,
+                    replacement.replacement);
+        } catch (DeadlineCharSequence.TimeoutException e) {
+            ShibAuthStatistics.regexTimedOut();
+            log.warn("Gave up replacing regex=\"" + replacement.pattern.pattern() + "\" in \"" + label + "\": " +
+                    e.getMessage() + ", ignoring...");
+        } catch (RuntimeException e) {
+            log.warn("Failed to replace certain character entries in \"" + label + "\" matching regex=\"" +
+                    replacement.pattern.pattern() + "\", ignoring...");
+
+            if (log.isDebugEnabled()) {
+                log.debug("Failed to replace certain character entries in " + label, e);
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * @return the characters the regex of replacement matches, or null if it can not be part of a lookup table
+     */
+    private static BitSet singleChars(Replacement replacement) {
+        if (replacement.replacement.indexOf('$') >= 0 || !isSingleCharRegex(replacement.pattern.pattern())) {
+            return null;
+        }
+
+        BitSet chars = new BitSet(Character.MAX_VALUE + 1);
+        for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++) {
+            if (!Character.isSurrogate((char) c) && replacement.pattern.matches(String.valueOf((char) c)) != null) {
+                chars.set(c);
+            }
+        }
+
+        return chars;
+    }
+
+    /**
+     * @return true if regex is a literal character, a single character escape or one character class
+     */
+    static boolean isSingleCharRegex(String regex) {
+        if (regex.length() == 1) {
+            return "\\[](){}.*+?^$|".indexOf(regex.charAt(0)) < 0;
+        }
+
+        if (regex.length() == 2 && regex.charAt(0) == '\\') {
+            char escaped = regex.charAt(1);
+            return !Character.isLetterOrDigit(escaped) || SINGLE_CHAR_ESCAPES.indexOf(escaped) >= 0;
+        }
+
+        if (regex.length() < 2 || regex.charAt(0) != '[') {
+            return false;
+        }
+
+        // the class opened by the first [ has to be closed by the last ]
+        int depth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']' && --depth == 0) {
+                return i == regex.length() - 1;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Expand a replacement without group references, i.e. drop the escaping backslashes.
+     */
+    private static String literal(String replacement) {
+        if (replacement.indexOf('\\') < 0) {
+            return replacement;
+        }
+
+        StringBuilder sb = new StringBuilder(replacement.length());
+        for (int i = 0; i < replacement.length(); i++) {
+            char c = replacement.charAt(i);
+            sb.append((c == '\\') ? replacement.charAt(++i) : c);
+        }
+        return sb.toString();
+    }
+
+    private static class Replacement {
+        final CompiledPattern pattern;
+        final String replacement;
+
+        Replacement(CompiledPattern pattern, String replacement) {
+            this.pattern = pattern;
+            this.replacement = replacement;
+        }
+    }
+
+    /**
+     * A run of single character replacements. Every character is looked up once: the first
+     * replacement matching it determines the output, which already has the later replacements
+     * of the run applied to it.
+     */
+    private static class CharTable {
+        final Replacement[] replacements;
+        final BitSet[] chars;
+        final String[] outputs;
+        final int[] ascii = new int[128];
+
+        CharTable(List replacements, List chars) {
+            this.replacements = (Replacement[]) replacements.toArray(new Replacement[replacements.size()]);
+            this.chars = (BitSet[]) chars.toArray(new BitSet[chars.size()]);
+            this.outputs = new String[this.replacements.length];
+
+            for (int k = 0; k < outputs.length; k++) {
+                String output = literal(this.replacements[k].replacement);
+                for (int j = k + 1; j < outputs.length; j++) {
+                    output = this.replacements[j].pattern.replaceAll(output, this.replacements[j].replacement);
+                }
+                outputs[k] = output;
+            }
+
+            for (int c = 0; c < ascii.length; c++) {
+                ascii[c] = find((char) c);
+            }
+        }
+
+        private int find(char c) {
+            for (int k = 0; k < chars.length; k++) {
+                if (chars[k].get(c)) {
+                    return k;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return value with the run applied, or null if value has supplementary characters
+         */
+        String apply(String value) {
+            StringBuilder sb = null;
+
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (Character.isSurrogate(c)) {
+                    return null;
+                }
+
+                int k = (c < ascii.length) ? ascii[c] : find(c);
+                if (k < 0) {
+                    if (sb != null) {
+                        sb.append(c);
+                    }
+                    continue;
+                }
+
+                if (sb == null) {
+                    sb = new StringBuilder(value.length() + 16);
+                    sb.append(value, 0, i);
+                }
+                sb.append(outputs[k]);
+            }
+
+            return (sb == null) ? value : sb.toString();
+        }
+    }
+}
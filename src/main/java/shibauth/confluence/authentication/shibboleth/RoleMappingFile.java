@@ -0,0 +1,288 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Exact-match dynamicroles mappings read from the file set with dynamicroles.mapping.file.
+ * Every line of the file is one comma or semicolon delimited row:
+ * <pre>
+ * header, value, group[, group...]
+ * </pre>
+ * Empty lines and lines starting with # are skipped. Values are matched exactly
+ * (case-sensitive) with a hash lookup, before the regex mappers of the header.
+ * <p/>
+ * Files of MAP_THRESHOLD bytes or more are memory-mapped while they are read. When
+ * the file changed only by rows appended to it, only the new rows are read; any
+ * other change reads the whole file again. Lookups never block: a (re)load builds a
+ * new table and then publishes it.
+ */
+public class RoleMappingFile {
+
+    /**
+     * Files at least this large are memory-mapped instead of read into the heap
+     */
+    final static long MAP_THRESHOLD = 1024 * 1024;
+
+    private final static Log log = LogFactory.getLog(RoleMappingFile.class);
+
+    private final File file;
+
+    /**
+     * Map<header, Map<value, String[] groups>>, not changed once published
+     */
+    private volatile Map headers = Collections.EMPTY_MAP;
+
+    /**
+     * Last modified stamp and length of the file as it was last read
+     */
+    private volatile String version = "";
+
+    // State of the file as it was last read, only used by the thread that (re)loads it.
+    private long lastModified = -1;
+    private long length;
+    private long checksum;
+    private int lineCount;
+
+    public RoleMappingFile(String fileName) {
+        this.file = new File(fileName);
+    }
+
+    public String getFileName() {
+        return file.getPath();
+    }
+
+    /**
+     * Look up the groups of a value of a header.
+     *
+     * @return the groups, or null if the file has no row for header and value. Must not be modified.
+     */
+    public String[] getGroups(String header, String value) {
+        Map values = (Map) headers.get(header);
+        return (values == null) ? null : (String[]) values.get(value);
+    }
+
+    /**
+     * @return identifies the content of the file that was read, changes whenever the file is read again
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the headers that have rows in the file
+     */
+    public Set getHeaders() {
+        return Collections.unmodifiableSet(headers.keySet());
+    }
+
+    /**
+     * Read the whole file.
+     *
+     * @return the errors found in the rows of the file; these rows have been skipped
+     * @throws IOException if the file can not be read
+     */
+    public synchronized List load() throws IOException {
+        List errors = new ArrayList();
+        readFile(false, errors);
+        return errors;
+    }
+
+    /**
+     * Read the file again if it has been changed since it was last read. Errors are logged,
+     * if the file can not be read the current mappings stay in use.
+     *
+     * @return true if the mappings were reloaded
+     */
+    public synchronized boolean reloadIfChanged() {
+        if (file.lastModified() == lastModified && file.length() == length) {
+            return false;
+        }
+
+        List errors = new ArrayList();
+        try {
+            readFile(true, errors);
+        } catch (IOException e) {
+            log.error("Unable to reload " + ShibAuthConstants.ROLES_MAPPING_FILE + " " + file +
+                    ", keeping the current mappings", e);
+            return false;
+        }
+
+        for (Iterator it = errors.iterator(); it.hasNext(); ) {
+            log.error(it.next());
+        }
+        return true;
+    }
+
+    private void readFile(boolean incremental, List errors) throws IOException {
+        long modified = file.lastModified();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer bytes = read(channel, size);
+
+            // appended rows only: the file grew and what was read before is unchanged
+            boolean append = incremental && length > 0 && size > length && lineCount > 0 &&
+                    bytes.get((int) length - 1) == '\n' && checksum(bytes, length) == checksum;
+
+            int from = append ? (int) length : 0;
+            bytes.position(from);
+            CharBuffer chars = StandardCharsets.UTF_8.newDecoder().decode(bytes);
+
+            Map newHeaders = append ? new HashMap(headers) : new HashMap();
+            int line = parse(chars, newHeaders, append ? lineCount : 0, !append, errors);
+
+            if (log.isDebugEnabled()) {
+                log.debug((append ? "Read " + (line - lineCount) + " appended" : "Read " + line) + " lines of " +
+                        ShibAuthConstants.ROLES_MAPPING_FILE + " " + file);
+            }
+
+            headers = newHeaders;
+            version = modified + ":" + size;
+            lastModified = modified;
+            length = size;
+            checksum = checksum(bytes, size);
+            lineCount = line;
+        } catch (CharacterCodingException e) {
+            throw new IOException(file + " is not UTF-8 encoded", e);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("File is too large: " + size + " bytes");
+        }
+
+        if (size >= MAP_THRESHOLD) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        ByteBuffer bytes = ByteBuffer.allocate((int) size);
+        while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+            // read until the buffer is full
+        }
+        bytes.flip();
+        return bytes;
+    }
+
+    private static long checksum(ByteBuffer bytes, long length) {
+        ByteBuffer prefix = bytes.duplicate();
+        prefix.position(0).limit((int) length);
+
+        CRC32 crc = new CRC32();
+        crc.update(prefix);
+        return crc.getValue();
+    }
+
+    /**
+     * Add the rows in chars to headers. The value maps of headers are copied before they are
+     * changed, unless copied is true, so that the published maps stay untouched.
+     *
+     * @return the number of the last line read
+     */
+    private static int parse(CharBuffer chars, Map headers, int line, boolean copied, List errors) {
+        Map changed = copied ? null : new HashMap();
+        List fields = new ArrayList();
+        int start = 0;
+
+        for (int i = 0; i <= chars.length(); i++) {
+            if (i < chars.length() && chars.charAt(i) != '\n') {
+                continue;
+            }
+
+            CharSequence row = chars.subSequence(start, i);
+            start = i + 1;
+            if (i == chars.length() && row.length() == 0) {
+                break;
+            }
+            line++;
+
+            fields.clear();
+            StringUtil.addNonEmptyStringsDelimitedByCommaOrSemicolon(row, fields);
+            if (fields.isEmpty() || ((String) fields.get(0)).startsWith("#")) {
+                continue;
+            }
+
+            if (fields.size() < 3) {
+                errors.add("Invalid " + ShibAuthConstants.ROLES_MAPPING_FILE + " row at line " + line +
+                        ": expected header, value, group[, group...]");
+                continue;
+            }
+
+            String header = (String) fields.get(0);
+            Map values = (Map) headers.get(header);
+            if (values == null) {
+                values = new HashMap();
+                headers.put(header, values);
+                if (changed != null) {
+                    changed.put(header, values);
+                }
+            } else if (changed != null && !changed.containsKey(header)) {
+                values = new HashMap(values);
+                headers.put(header, values);
+                changed.put(header, values);
+            }
+
+            String value = (String) fields.get(1);
+            String[] existing = (String[]) values.get(value);
+            int offset = (existing == null) ? 0 : existing.length;
+            String[] groups = new String[offset + fields.size() - 2];
+            if (existing != null) {
+                System.arraycopy(existing, 0, groups, 0, offset);
+            }
+            for (int f = 2; f < fields.size(); f++) {
+                groups[offset + f - 2] = (String) fields.get(f);
+            }
+            values.put(value, groups);
+        }
+
+        return line;
+    }
+}
@@ -29,6 +29,8 @@
 
 package shibauth.confluence.authentication.shibboleth;
 
+import com.atlassian.config.bootstrap.AtlassianBootstrapManager;
+import com.atlassian.config.util.BootstrapUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -38,6 +40,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.*;
+import java.util.regex.PatternSyntaxException;
 
 public class ShibAuthConfigLoader {
 
@@ -56,19 +59,11 @@ public class ShibAuthConfigLoader {
         ShibAuthConfiguration config = new ShibAuthConfiguration();
 
         try {
-            InputStream propsIn = null;
-            if (oldConfig == null) {
-                propsIn = RemoteUserAuthenticator.class.getResourceAsStream(ShibAuthConstants.PROPERTIES_FILE);
-                // getResourceAsStream silently returns null if there's a problem.
-                if (propsIn == null) {
-                    throw new IOException();
-                }
-            } else {
-                propsIn = new FileInputStream(oldConfig.getConfigFile());
-            }
-
             Properties configProps = new Properties();
-            configProps.load(propsIn);
+            try (InputStream propsIn = openProperties(oldConfig)) {
+                configProps.load(propsIn);
+            }
+            config.setVersion(version(configProps));
 
             // Load local.login.supported property.
             config.setLocalLoginSupported(
@@ -112,6 +107,61 @@ public class ShibAuthConfigLoader {
                 log.debug("Setting update user roles to " + config.isUpdateRoles());
             }
 
+            // Load provisioning.batch.size property.
+            config.setProvisioningBatchSize(Math.max(0,
+                    getIntProperty(config, configProps, ShibAuthConstants.PROVISIONING_BATCH_SIZE, 100)));
+
+            if (log.isDebugEnabled()) {
+                log.debug("Setting provisioning batch size to " + config.getProvisioningBatchSize());
+            }
+
+            // Load provisioning.async properties.
+            config.setProvisioningAsync(
+                    Boolean.valueOf(configProps.getProperty(ShibAuthConstants.PROVISIONING_ASYNC, "false")).booleanValue());
+            config.setProvisioningAsyncThreads(Math.max(1,
+                    getIntProperty(config, configProps, ShibAuthConstants.PROVISIONING_ASYNC_THREADS, 2)));
+            config.setProvisioningAsyncQueueSize(Math.max(1,
+                    getIntProperty(config, configProps, ShibAuthConstants.PROVISIONING_ASYNC_QUEUE_SIZE, 1000)));
+
+            if (log.isDebugEnabled()) {
+                log.debug("Setting asynchronous group updates to " + config.isProvisioningAsync() + " with " +
+                        config.getProvisioningAsyncThreads() + " threads and a queue of " +
+                        config.getProvisioningAsyncQueueSize());
+            }
+
+            // Load provisioning.journal property, journaling writes by default when they are made in the background.
+            String journal = configProps.getProperty(ShibAuthConstants.PROVISIONING_JOURNAL);
+            if (journal == null && config.isProvisioningAsync()) {
+                journal = getHomeFile(ShibAuthConstants.DEFAULT_PROVISIONING_JOURNAL,
+                        ShibAuthConstants.PROVISIONING_JOURNAL);
+            }
+            config.setProvisioningJournal((journal == null || journal.trim().length() == 0) ? null : journal.trim());
+
+            if (log.isDebugEnabled()) {
+                log.debug("Setting provisioning journal to " + config.getProvisioningJournal());
+            }
+
+            // Load update.skip.unchanged properties.
+            config.setUpdateSkipUnchanged(
+                    Boolean.valueOf(configProps.getProperty(ShibAuthConstants.UPDATE_SKIP_UNCHANGED, "false")).booleanValue());
+            config.setUpdateSkipUnchangedMaxAge(Math.max(0,
+                    getLongProperty(config, configProps, ShibAuthConstants.UPDATE_SKIP_UNCHANGED_MAX_AGE, 86400000)));
+
+            if (config.isUpdateSkipUnchanged()) {
+                String store = configProps.getProperty(ShibAuthConstants.UPDATE_SKIP_UNCHANGED_STORE);
+                if (store == null) {
+                    store = getHomeFile(ShibAuthConstants.DEFAULT_UPDATE_SKIP_UNCHANGED_STORE,
+                            ShibAuthConstants.UPDATE_SKIP_UNCHANGED_STORE);
+                }
+                config.setUpdateSkipUnchangedStore((store == null || store.trim().length() == 0) ? null : store.trim());
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Setting skip updates of unchanged users to " + config.isUpdateSkipUnchanged() +
+                        ", max age " + config.getUpdateSkipUnchangedMaxAge() + " ms, store " +
+                        config.getUpdateSkipUnchangedStore());
+            }
+
             // Load reload.config property.
             config.setReloadConfig(
                     Boolean.valueOf(configProps.getProperty(ShibAuthConstants.RELOAD_CONFIG, "false")).booleanValue());
@@ -121,13 +171,11 @@ public class ShibAuthConfigLoader {
             }
 
             // Load reload.config.check.interval property.
-            String reloadConfigCheckIntervalS = configProps.getProperty(ShibAuthConstants.RELOAD_CONFIG_CHECK_INTERVAL, "5000");
-            if (reloadConfigCheckIntervalS != null) {
-                config.setReloadConfigCheckInterval(Long.valueOf(reloadConfigCheckIntervalS).longValue());
+            config.setReloadConfigCheckInterval(
+                    getLongProperty(config, configProps, ShibAuthConstants.RELOAD_CONFIG_CHECK_INTERVAL, 5000));
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Setting reload config check interval to " + config.getReloadConfigCheckInterval());
-                }
+            if (log.isDebugEnabled()) {
+                log.debug("Setting reload config check interval to " + config.getReloadConfigCheckInterval());
             }
 
             // Load convert.to.utf8 property.
@@ -138,12 +186,41 @@ public class ShibAuthConfigLoader {
                 log.debug("Setting convert header values to UTF-8 to " + config.isConvertToUTF8());
             }
 
+            // Load regex.engine property, before anything that compiles regexes.
+            String regexEngine = configProps.getProperty(ShibAuthConstants.REGEX_ENGINE, CompiledPattern.ENGINE_JDK).trim();
+            if (!CompiledPattern.ENGINE_JDK.equals(regexEngine) && !CompiledPattern.ENGINE_LINEAR.equals(regexEngine)) {
+                invalid(config, ShibAuthConstants.REGEX_ENGINE, regexEngine, "unknown engine, using " +
+                        CompiledPattern.ENGINE_JDK);
+                regexEngine = CompiledPattern.ENGINE_JDK;
+            }
+            config.setRegexEngine(regexEngine);
+
+            if (log.isDebugEnabled()) {
+                log.debug("Setting regex engine to " + config.getRegexEngine());
+            }
+
+            // Load regex.timeout.ms property.
+            config.setRegexTimeoutMillis(
+                    Math.max(0, getLongProperty(config, configProps, ShibAuthConstants.REGEX_TIMEOUT_MS, 0)));
+
+            if (log.isDebugEnabled()) {
+                log.debug("Setting regex timeout to " + config.getRegexTimeoutMillis() + " ms");
+            }
+
+            // Load mapping.cache.size property.
+            int mappingCacheSize = getIntProperty(config, configProps, ShibAuthConstants.MAPPING_CACHE_SIZE, 10000);
+            if (mappingCacheSize > 0) {
+                config.setMappingCache(new MappingCache(mappingCacheSize));
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Setting mapping cache size to " + mappingCacheSize);
+            }
+
             // Load purge.roles.limit property
-            String purgeRolesLimit = configProps.getProperty(
-                    ShibAuthConstants.PURGE_ROLES_LIMIT);
-            if (purgeRolesLimit != null) {
-                config.setPurgeRolesLimit(Integer.valueOf(
-                        purgeRolesLimit).intValue());
+            if (configProps.getProperty(ShibAuthConstants.PURGE_ROLES_LIMIT) != null) {
+                config.setPurgeRolesLimit(Integer.valueOf(getIntProperty(config, configProps,
+                        ShibAuthConstants.PURGE_ROLES_LIMIT, Integer.MAX_VALUE)));
 
                 if (log.isDebugEnabled()) {
                     log.debug("Setting purge roles limit value to " +
@@ -188,7 +265,7 @@ public class ShibAuthConfigLoader {
                 log.debug("HTTP Header/attribute that may contain user's username set to: " + config.getRemoteUserHeaderName());
             }
 
-            config.setRemoteUserHeaderStrategy(Integer.parseInt(configProps.getProperty(ShibAuthConstants.REMOTE_USER_HEADER_STRATEGY_PROPERTY, "0")));
+            config.setRemoteUserHeaderStrategy(getIntProperty(config, configProps, ShibAuthConstants.REMOTE_USER_HEADER_STRATEGY_PROPERTY, 0));
 
             if (log.isDebugEnabled()) {
                 log.debug("Username header strategy set to: " + config.getRemoteUserHeaderStrategy());
@@ -200,19 +277,33 @@ public class ShibAuthConfigLoader {
                 log.debug("HTTP Header/attribute that may contain user's full name set to: " + config.getFullNameHeaderName());
             }
 
-            config.setUsernameFilterStrategy(Integer.parseInt(configProps.getProperty(ShibAuthConstants.USERNAME_FILTER_STRATEGY_PROPERTY, "0")));
+            config.setUsernameFilterStrategy(getIntProperty(config, configProps, ShibAuthConstants.USERNAME_FILTER_STRATEGY_PROPERTY, 0));
 
             if (log.isDebugEnabled()) {
                 log.debug("Username filter strategy set to: " + config.getUsernameFilterStrategy());
             }
 
+            config.setUsernameFilterRdn(configProps.getProperty(ShibAuthConstants.USERNAME_FILTER_RDN_PROPERTY, "CN").trim());
+
+            if (log.isDebugEnabled()) {
+                log.debug("RDN to extract user id from a distinguished name header is set to: " + config.getUsernameFilterRdn());
+            }
+
             config.setUsernameRegexFilter(configProps.getProperty(ShibAuthConstants.USERNAME_FILTER_REGEX_PROPERTY, "^CN=(.*)"));
 
             if (log.isDebugEnabled()) {
                 log.debug("Regex attribute to extract user id from header is set to: " + config.getUsernameRegexFilter());
             }
 
-            config.setFullNameHeaderStrategy(Integer.parseInt(configProps.getProperty(ShibAuthConstants.FULLNAME_HEADER_STRATEGY_PROPERTY, "0")));
+            try {
+                config.setUsernameRegexFilterPattern(CompiledPattern.compile(config.getUsernameRegexFilter(), 0,
+                        config.getRegexEngine(), ShibAuthConstants.USERNAME_FILTER_REGEX_PROPERTY));
+            } catch (PatternSyntaxException e) {
+                invalid(config, ShibAuthConstants.USERNAME_FILTER_REGEX_PROPERTY, config.getUsernameRegexFilter(),
+                        describe(e));
+            }
+
+            config.setFullNameHeaderStrategy(getIntProperty(config, configProps, ShibAuthConstants.FULLNAME_HEADER_STRATEGY_PROPERTY, 0));
 
             if (log.isDebugEnabled()) {
                 log.debug("Full name header strategy set to: " + config.getFullNameHeaderStrategy());
@@ -224,7 +315,7 @@ public class ShibAuthConfigLoader {
                 log.debug("HTTP Header/attribute that may contain user's email address set to: " + config.getEmailHeaderName());
             }
 
-            config.setEmailHeaderStrategy(Integer.parseInt(configProps.getProperty(ShibAuthConstants.EMAIL_HEADER_STRATEGY_PROPERTY, "0")));
+            config.setEmailHeaderStrategy(getIntProperty(config, configProps, ShibAuthConstants.EMAIL_HEADER_STRATEGY_PROPERTY, 0));
 
             if (log.isDebugEnabled()) {
                 log.debug("Email header strategy set to: " + config.getEmailHeaderStrategy());
@@ -243,10 +334,11 @@ public class ShibAuthConfigLoader {
                 log.warn("Note: using.shib.login.filter=true is no longer supported by Confluence HTTP Authenticator. Please remove using.shib.login.filter from remoteUserAuthenticator.properties.");
             }
 
-            loadGroupMapping(config, configProps);
+            MappingProperties mappingProps = new MappingProperties(configProps);
+            loadGroupMapping(config, configProps, mappingProps);
             loadPurgeGroupMapping(config, configProps);
-            loadRemoteUserMapping(config, configProps);
-            loadFullNameMapping(config, configProps);
+            loadRemoteUserMapping(config, configProps, mappingProps);
+            loadFullNameMapping(config, configProps, mappingProps);
 
             // Set the name of the config file for automatic reloading
             if (config.isReloadConfig()) {
@@ -262,20 +354,38 @@ public class ShibAuthConfigLoader {
 
                     config.setConfigFile(configFile);
                     config.setConfigFileLastModified(configFileLastModified);
-                    config.setConfigFileLastChecked(System.currentTimeMillis());
 
                     log.info("Setting config file name to " + configFile + " with a lastModified stamp of " +
-                            configFileLastModified + " and a last checked stamp of " +
-                            config.getConfigFileLastChecked());
+                            configFileLastModified);
                 }
             }
         } catch (IOException e) {
             log.warn("Unable to read properties file, using default properties", e);
+            config.addLoadError("Unable to read properties file: " + e);
         }
 
+        // published to request threads as an immutable snapshot
+        config.freeze();
         return config;
     }
 
+    /**
+     * Open the properties resource on the classpath for the initial load, or the
+     * config file of the previous configuration when reloading.
+     */
+    private static InputStream openProperties(ShibAuthConfiguration oldConfig) throws IOException {
+        if (oldConfig == null) {
+            InputStream propsIn = RemoteUserAuthenticator.class.getResourceAsStream(ShibAuthConstants.PROPERTIES_FILE);
+            // getResourceAsStream silently returns null if there's a problem.
+            if (propsIn == null) {
+                throw new IOException();
+            }
+            return propsIn;
+        }
+
+        return new FileInputStream(oldConfig.getConfigFile());
+    }
+
     private static void loadPurgeGroupMapping(ShibAuthConfiguration config,
                                               Properties configProps) {
         List purgeRolesRegex = StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(
@@ -298,7 +408,14 @@ public class ShibAuthConfigLoader {
         for (int i = 0; i < purgeRolesRegex.size(); i++) {
             String regex = purgeRolesRegex.get(i).toString();
 
-            purgeRolesGroups.add(new GroupMapper("purge-" + i, regex, null, false));
+            try {
+                purgeRolesGroups.add(new GroupMapper("purge-" + i, regex, null, false, config.getRegexEngine(),
+                        config.getRegexTimeoutMillis()));
+            } catch (PatternSyntaxException e) {
+                invalid(config, ShibAuthConstants.PURGE_ROLES, regex,
+                        describe(e) + ", roles matching it will not be purged");
+                continue;
+            }
 
             if (log.isDebugEnabled()) {
                 log.debug("Roles matching (" + regex + ") are to be purged.");
@@ -309,7 +426,7 @@ public class ShibAuthConfigLoader {
     }
 
     private static void loadRemoteUserMapping(ShibAuthConfiguration config,
-                                              Properties configProps) {
+                                              Properties configProps, MappingProperties mappingProps) {
         // remoteuser=remoteusermap
         // remoteuser.replace=\\#,A,\\%,c,-,,
         // remoteuser.remoteusermap.match=some-regex
@@ -327,10 +444,12 @@ public class ShibAuthConfigLoader {
         );
 
         config.setRemoteUserReplacementChars(replacements);
+        config.setRemoteUserReplacements(
+                compileReplacements(config, replacements, ShibAuthConstants.REMOTEUSER_REPLACEMENT, "Remote User"));
 
         List mappers = new ArrayList();
 
-        mappers.addAll(loadMappers(ShibAuthConstants.REMOTEUSER_MAP_PREFIX, configProps, remoteuserlabels));
+        mappers.addAll(loadMappers(ShibAuthConstants.REMOTEUSER_MAP_PREFIX, mappingProps, remoteuserlabels, config, null));
 
         if (mappers.isEmpty()) {
             if (log.isDebugEnabled()) {
@@ -351,7 +470,8 @@ public class ShibAuthConfigLoader {
         config.setRemoteUserMappings(mappers);
     }
 
-    private static void loadFullNameMapping(ShibAuthConfiguration config, Properties configProps) {
+    private static void loadFullNameMapping(ShibAuthConfiguration config, Properties configProps,
+                                            MappingProperties mappingProps) {
         // fullname=fullnamemap
         // fullname.replace=\\#,A,\\%,c,-,,
         // fullname.fullnamemap.match=some-regex
@@ -369,10 +489,12 @@ public class ShibAuthConfigLoader {
         );
 
         config.setFullNameReplacementChars(replacements);
+        config.setFullNameReplacements(
+                compileReplacements(config, replacements, ShibAuthConstants.FULL_NAME_REPLACEMENT, "Full Name"));
 
         List mappers = new ArrayList();
 
-        mappers.addAll(loadMappers(ShibAuthConstants.FULL_NAME_MAP_PREFIX, configProps, fullnamelabels));
+        mappers.addAll(loadMappers(ShibAuthConstants.FULL_NAME_MAP_PREFIX, mappingProps, fullnamelabels, config, null));
 
         if (mappers.isEmpty()) {
             if (log.isDebugEnabled()) {
@@ -393,7 +515,7 @@ public class ShibAuthConfigLoader {
     }
 
     private static void loadGroupMapping(ShibAuthConfiguration config,
-                                         Properties configProps) {
+                                         Properties configProps, MappingProperties mappingProps) {
 
         config.setAutoCreateGroup(Boolean.valueOf(
                 configProps.getProperty(ShibAuthConstants.AUTO_CREATE_GROUP, "false")).
@@ -403,16 +525,24 @@ public class ShibAuthConfigLoader {
             log.debug("Setting automatic creation of new group to " + config.isAutoCreateGroup());
         }
 
+        String mappingFile = configProps.getProperty(ShibAuthConstants.ROLES_MAPPING_FILE);
+        if (mappingFile != null && mappingFile.trim().length() != 0) {
+            loadRoleMappingFile(config, mappingFile.trim());
+        }
+
         // Load dynamic roles property
         // #header.dynamicroles.SHIB-EP-ENTITLEMENT=mapper1, mapper2
         // "headers" contains the list of entries such as "SHIB-EP-ENTITLEMENT"
-        List headers = config.listPostfixes((String[]) configProps.keySet().toArray(new String[0]),
-                ShibAuthConstants.ROLES_HEADER_PREFIX);
+        List headers = mappingProps.getRoleHeaders();
 
         if (headers.isEmpty()) {
             // No header is specified for dynamicgroup.
-            log.info(
-                    "No attribute header defined for dynamicroles, deactivating it.");
+            if (config.getRoleMappingFile() == null) {
+                log.info("No attribute header defined for dynamicroles, deactivating it.");
+            } else {
+                log.info("No attribute header defined for dynamicroles, only " +
+                        ShibAuthConstants.ROLES_MAPPING_FILE + " is used.");
+            }
             // Clear the headers, future processing wil bypass when empty.
             config.setGroupMappings(Collections.EMPTY_MAP);
             return;
@@ -426,21 +556,11 @@ public class ShibAuthConfigLoader {
         for (Iterator headerIt = headers.iterator(); headerIt.hasNext(); ) {
             String header = headerIt.next().toString();
             List definedMapperStrings = StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(
-                    configProps.getProperty(ShibAuthConstants.ROLES_HEADER_PREFIX + header));
-            List mappers = new ArrayList();
-
-            // Check if the definedMapperStrings already loaded previously. If so, just reuse the same definition.
-            for (Iterator definedIterator = definedMapperStrings.iterator(); definedIterator.hasNext(); ) {
-                GroupMapper gMapper = (GroupMapper) allMappers.get(definedIterator.next().toString());
-                if (gMapper != null) {
-                    mappers.add(gMapper);
-
-                    // Remove it from definedMapperStrings so that we don't load it twice.
-                    definedIterator.remove();
-                }
-            }
+                    mappingProps.getRoleHeaderMappers(header));
 
-            mappers.addAll(loadMappers(ShibAuthConstants.ROLES_ATTRIB_PREFIX, configProps, definedMapperStrings));
+            // Mappers already loaded for another header are reused, so each definition is loaded once.
+            Collection mappers = loadMappers(ShibAuthConstants.ROLES_ATTRIB_PREFIX, mappingProps,
+                    definedMapperStrings, config, allMappers);
 
             if (mappers.isEmpty()) {
                 if (log.isDebugEnabled()) {
@@ -451,23 +571,15 @@ public class ShibAuthConfigLoader {
                 continue;
             }
 
-            // Cache the mappers and print them.
-            StringBuffer sb = new StringBuffer();
-            for (Iterator it = mappers.iterator(); it.hasNext(); ) {
-                GroupMapper mapper = (GroupMapper) it.next();
-                String label = mapper.toString();
-                sb.append(label);
-                if (it.hasNext()) {
-                    sb.append(", ");
-                }
-
-                // Fill up allMappers, so that we dont need to reload existing mappers later.
-                if (!allMappers.containsKey(label)) {
-                    allMappers.put(label, mapper);
+            if (log.isDebugEnabled()) {
+                StringBuffer sb = new StringBuffer();
+                for (Iterator it = mappers.iterator(); it.hasNext(); ) {
+                    sb.append(it.next());
+                    if (it.hasNext()) {
+                        sb.append(", ");
+                    }
                 }
-            }
 
-            if (log.isDebugEnabled()) {
                 log.debug("Successfully loading mapper for header=" + header + ", handlers=" + sb.toString());
             }
 
@@ -477,33 +589,213 @@ public class ShibAuthConfigLoader {
         config.setGroupMappings(groupMappings);
     }
 
-    private static Collection loadMappers(String mapperPrefix, Properties configProps, List mapperStrings) {
+    private static void loadRoleMappingFile(ShibAuthConfiguration config, String mappingFile) {
+        RoleMappingFile file = new RoleMappingFile(mappingFile);
+
+        try {
+            List errors = file.load();
+            for (Iterator it = errors.iterator(); it.hasNext(); ) {
+                String error = (String) it.next();
+                log.error(error);
+                config.addLoadError(error);
+            }
+        } catch (IOException e) {
+            invalid(config, ShibAuthConstants.ROLES_MAPPING_FILE, mappingFile, "unable to read it (" + e + ")");
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded exact-match role mappings for headers " + file.getHeaders() + " from " + mappingFile);
+        }
+
+        config.setRoleMappingFile(file);
+    }
+
+    /**
+     * Compile a pair-wise replacement list, so that the regexes and replacements are
+     * validated once and not compiled again for every login.
+     *
+     * @param label what is replaced, used in log messages
+     * @return the replacements, without the pairs that are invalid
+     */
+    private static ReplacementChain compileReplacements(ShibAuthConfiguration config, List replacements,
+                                                        String property, String label) {
+        List patterns = new ArrayList();
+        List outputs = new ArrayList();
+
+        for (int i = 0; i < replacements.size(); i += 2) {
+            String regex = replacements.get(i).toString();
+
+            // Someone didn't fill up pair-wise entry, ignore this regex (which must be the last one).
+            if (i + 1 == replacements.size()) {
+                if (regex.length() != 0 && log.isDebugEnabled()) {
+                    log.debug("Character replacements specified for " + label +
+                            " regex is incomplete, make sure the entries are pair-wise, skipping...");
+                }
+                break;
+            }
+
+            // We are not going to replace empty string, so skip it.
+            if (regex.length() == 0) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Empty string is found in " + label + " replaceFrom regex, skipping...");
+                }
+                continue;
+            }
+
+            String replacement = replacements.get(i + 1).toString();
+            try {
+                CompiledPattern pattern = CompiledPattern.compile(regex, 0, config.getRegexEngine(), property);
+                pattern.checkReplacement(replacement);
+                patterns.add(pattern);
+                outputs.add(replacement);
+            } catch (PatternSyntaxException e) {
+                invalid(config, property, regex, describe(e) + ", ignoring this replacement");
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                invalid(config, property, regex + " -> " + replacement, e.getMessage() +
+                        ", ignoring this replacement");
+            }
+        }
+
+        return new ReplacementChain(label, patterns, outputs, config.getRegexTimeoutMillis());
+    }
+
+    /**
+     * Build the mappers with the given labels from their indexed definitions.
+     *
+     * @param loaded mappers already built for the same prefix, keyed by label, which are reused
+     *               and to which new mappers are added; null to always build new mappers
+     */
+    private static Collection loadMappers(String mapperPrefix, MappingProperties mappingProps, List mapperStrings,
+                                          ShibAuthConfiguration config, Map loaded) {
         if (mapperStrings == null || mapperStrings.isEmpty()) {
             return Collections.EMPTY_LIST;
         }
 
-        Collection mappers = new ArrayList();
+        Collection mappers = new ArrayList(mapperStrings.size());
 
         for (int i = 0; i < mapperStrings.size(); i++) {
             String name = (String) mapperStrings.get(i);
             String mapperStr = mapperPrefix + name;
-            String match = configProps.getProperty(
-                    mapperStr + ShibAuthConstants.PART_MATCH);
-            String transform = configProps.getProperty(
-                    mapperStr + ShibAuthConstants.PART_TRANSFORM);
-
-            if (match == null && transform == null) {
-                log.warn(
-                        "Fail to load group mapper with label=" + name + ", ignoring this mapper.");
+
+            GroupMapper mapper = (loaded == null) ? null : (GroupMapper) loaded.get(name);
+            if (mapper != null) {
+                mappers.add(mapper);
+                continue;
+            }
+
+            MappingProperties.MapperDefinition definition = mappingProps.getMapper(mapperPrefix, name);
+            if (definition == null || (definition.match == null && definition.transform == null)) {
+                invalid(config, mapperStr, name, "neither " + ShibAuthConstants.PART_MATCH + " nor " +
+                        ShibAuthConstants.PART_TRANSFORM + " is defined, ignoring this mapper");
+                continue;
+            }
+
+            boolean sensitive = (definition.sensitive == null) || Boolean.valueOf(definition.sensitive).booleanValue();
+            try {
+                mapper = new GroupMapper(name, definition.match, definition.transform, sensitive,
+                        config.getRegexEngine(), config.getRegexTimeoutMillis());
+            } catch (PatternSyntaxException e) {
+                invalid(config, mapperStr + ShibAuthConstants.PART_MATCH, definition.match,
+                        describe(e) + ", ignoring this mapper");
                 continue;
             }
 
-            boolean sensitive = Boolean.valueOf(configProps.getProperty(mapperStr + ShibAuthConstants.PART_SENSITIVE,
-                    "true")).booleanValue();
-            GroupMapper mapper = new GroupMapper(name, match, transform, sensitive);
             mappers.add(mapper);
+            if (loaded != null) {
+                loaded.put(name, mapper);
+            }
         }
 
         return mappers;
     }
+
+    /**
+     * @param path     path relative to the Confluence home directory
+     * @param property the property path is the default of
+     * @return path in the Confluence home directory, or null if there is no Confluence home (e.g. outside
+     *         of Confluence)
+     */
+    private static String getHomeFile(String path, String property) {
+        String home = null;
+        try {
+            AtlassianBootstrapManager bootstrapManager = BootstrapUtils.getBootstrapManager();
+            if (bootstrapManager != null) {
+                home = bootstrapManager.getApplicationHome();
+            }
+        } catch (RuntimeException | LinkageError e) {
+            log.debug("Unable to get the Confluence home directory", e);
+        }
+
+        if (home == null) {
+            log.warn("No Confluence home directory, " + property + " is not set. Set it to a file to use it.");
+            return null;
+        }
+        return new File(home, path).getPath();
+    }
+
+    /**
+     * @return a digest of all properties, which is the same whenever the properties are the same
+     */
+    private static String version(Properties configProps) {
+        Map sorted = new TreeMap(configProps);
+        String[] parts = new String[sorted.size() * 2];
+        int i = 0;
+        for (Iterator it = sorted.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            parts[i++] = entry.getKey().toString();
+            parts[i++] = entry.getValue().toString();
+        }
+
+        byte[] digest = ProvisioningFingerprints.fingerprint(parts);
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (int j = 0; j < digest.length; j++) {
+            hex.append(Character.forDigit((digest[j] >> 4) & 0xf, 16)).append(Character.forDigit(digest[j] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static long getLongProperty(ShibAuthConfiguration config, Properties configProps, String name,
+                                        long defaultValue) {
+        String value = configProps.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            invalid(config, name, value, "not a number, using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static int getIntProperty(ShibAuthConfiguration config, Properties configProps, String name,
+                                      int defaultValue) {
+        String value = configProps.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            invalid(config, name, value, "not a number, using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static String describe(PatternSyntaxException e) {
+        return e.getDescription() + ((e.getIndex() >= 0) ? " near index " + e.getIndex() : "");
+    }
+
+    /**
+     * Report an invalid property value. The error is kept in the configuration, so that a
+     * reload with invalid values does not replace the configuration in use.
+     */
+    private static void invalid(ShibAuthConfiguration config, String property, String value, String reason) {
+        String error = "Invalid " + property + " '" + value + "': " + reason;
+        log.error(error);
+        config.addLoadError(error);
+    }
 }
@@ -31,6 +31,11 @@ package shibauth.confluence.authentication.shibboleth;
 
 import java.util.*;
 
+/**
+ * Configuration of the authenticator. ShibAuthConfigLoader fills it in and then
+ * freezes it; a frozen configuration is an immutable snapshot that is shared by
+ * all request threads, and a reload builds a new one instead of changing it.
+ */
 public class ShibAuthConfiguration {
 
     /**
@@ -68,6 +73,12 @@ public class ShibAuthConfiguration {
      */
     private Map groupMappings = new HashMap();
 
+    /**
+     * Dispatch index for each header in groupMappings, format is
+     * Map<attribHeader, GroupMapperIndex>
+     */
+    private Map groupMapperIndexes = new HashMap();
+
     /**
      * list of all mappers that should be doing the purging
      */
@@ -110,11 +121,6 @@ public class ShibAuthConfiguration {
      */
     private long configFileLastModified;
 
-    /**
-     * System time at when the configuration file was checked the last time
-     */
-    private long configFileLastChecked;
-
     /**
      * HTTP Header or request attribute name that contains a user's username
      */
@@ -135,10 +141,16 @@ public class ShibAuthConfiguration {
      * <ul>
      * <li>0 - Get user id attribute value as first attribute from the header</li>
      * <li>1 - Use username.filter to get custom attribute</li>
+     * <li>2 - Parse the header as a distinguished name and use the value of the username.filter.rdn RDN</li>
      * </ul>
      */
     private int usernameFilterStrategy;
 
+    /**
+     * Attribute type of the RDN holding the user id for strategy 2
+     */
+    private String usernameFilterRdn;
+
     /**
      * Regex attribute to extract user id from header
      */
@@ -194,6 +206,80 @@ public class ShibAuthConfiguration {
      */
     private boolean convertToUTF8;
 
+    /**
+     * Regex engine used for the mapper, replacement and username filter regexes
+     */
+    private String regexEngine = CompiledPattern.ENGINE_JDK;
+
+    /**
+     * Time budget of a single mapper or replacement regex match in milliseconds, 0 for no limit
+     */
+    private long regexTimeoutMillis;
+
+    /**
+     * Cache of mapper results for this configuration, null if disabled
+     */
+    private MappingCache mappingCache;
+
+    /**
+     * The most provisioning writes of a login in one transaction, 0 for no limit
+     */
+    private int provisioningBatchSize;
+
+    /**
+     * Update the group memberships of existing users in the background
+     */
+    private boolean provisioningAsync;
+
+    private int provisioningAsyncThreads;
+
+    private int provisioningAsyncQueueSize;
+
+    /**
+     * File the provisioning writes are journaled in until they are applied, or null
+     */
+    private String provisioningJournal;
+
+    /**
+     * Skip updating users when nothing changed since their last update
+     */
+    private boolean updateSkipUnchanged;
+
+    /**
+     * Milliseconds after which unchanged users are updated anyway, 0 for never
+     */
+    private long updateSkipUnchangedMaxAge;
+
+    /**
+     * File the provisioning fingerprints are persisted to, or null to keep them in memory only
+     */
+    private String updateSkipUnchangedStore;
+
+    /**
+     * Digest of the properties this configuration was loaded from
+     */
+    private String version;
+
+    /**
+     * Exact-match role mappings from dynamicroles.mapping.file, or null
+     */
+    private RoleMappingFile roleMappingFile;
+
+    /**
+     * Compiled remoteuser.replace list
+     */
+    private ReplacementChain remoteUserReplacements;
+
+    /**
+     * Compiled fullname.replace list
+     */
+    private ReplacementChain fullNameReplacements;
+
+    /**
+     * Compiled username.filter.regex, null if it could not be compiled
+     */
+    private CompiledPattern usernameRegexFilterPattern;
+
     /**
      * Whether to convert the group output to lowercase
      */
@@ -224,11 +310,72 @@ public class ShibAuthConfiguration {
      */
     private String adminUserId;
 
+    /**
+     * Invalid property values found while loading; the entries they belong to
+     * have been left out of this configuration.
+     */
+    private List loadErrors = new ArrayList();
+
+    /**
+     * True once the configuration has been published, see freeze()
+     */
+    private boolean frozen;
+
+    /**
+     * Make this configuration immutable: setters throw IllegalStateException
+     * and the collections handed out can no longer be modified.
+     */
+    public void freeze() {
+        if (frozen) {
+            return;
+        }
+
+        remoteUserMappings = Collections.unmodifiableCollection(remoteUserMappings);
+        remoteUserReplacementChars = Collections.unmodifiableList(remoteUserReplacementChars);
+        fullNameMappings = Collections.unmodifiableCollection(fullNameMappings);
+        fullNameReplacementChars = Collections.unmodifiableList(fullNameReplacementChars);
+
+        for (Iterator it = groupMappings.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            entry.setValue(Collections.unmodifiableCollection((Collection) entry.getValue()));
+        }
+        groupMappings = Collections.unmodifiableMap(groupMappings);
+        groupMapperIndexes = Collections.unmodifiableMap(groupMapperIndexes);
+        purgeMappings = Collections.unmodifiableList(purgeMappings);
+        loadErrors = Collections.unmodifiableList(loadErrors);
+
+        if (defaultRoles != null) {
+            defaultRoles = Collections.unmodifiableList(defaultRoles);
+        }
+
+        frozen = true;
+    }
+
+    public List getLoadErrors() {
+        return loadErrors;
+    }
+
+    public void addLoadError(String error) {
+        checkNotFrozen();
+        loadErrors.add(error);
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("Configuration has been published and can not be changed");
+        }
+    }
+
     public String getAdminUserId() {
       return adminUserId;
     }
 
     public void setAdminUserId(String adminUserId) {
+      checkNotFrozen();
       this.adminUserId = adminUserId;
     }
 
@@ -240,6 +387,7 @@ public class ShibAuthConfiguration {
      *                        created in confluence, otherwise they will be ignored
      */
     public void setAutoCreateGroup(boolean autoCreateGroup) {
+        checkNotFrozen();
         this.autoCreateGroup = autoCreateGroup;
     }
 
@@ -259,6 +407,17 @@ public class ShibAuthConfiguration {
         return (Collection) groupMappings.get(key);
     }
 
+    /**
+     * Given the key (header, e.g. SHIB-EP-ENTITLEMENT), return the index
+     * over the group mappings that can handle the key
+     *
+     * @param key string to represent header
+     * @return index over the group mappers registered to handle the key
+     */
+    public GroupMapperIndex getGroupMapperIndex(String key) {
+        return (GroupMapperIndex) groupMapperIndexes.get(key);
+    }
+
     public Collection getGroupMappings() {
         return groupMappings.values();
     }
@@ -268,11 +427,19 @@ public class ShibAuthConfiguration {
     }
 
     public void setGroupMappings(Map mappings) {
+        checkNotFrozen();
         groupMappings.clear();
         groupMappings.putAll(mappings);
+
+        groupMapperIndexes.clear();
+        for (Iterator it = mappings.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            groupMapperIndexes.put(entry.getKey(), new GroupMapperIndex((Collection) entry.getValue()));
+        }
     }
 
     public void setPurgeMappings(Collection mappings) {
+        checkNotFrozen();
         purgeMappings.clear();
         purgeMappings.addAll(mappings);
     }
@@ -286,11 +453,13 @@ public class ShibAuthConfiguration {
     }
 
     public void setRemoteUserMappings(Collection mappings) {
+        checkNotFrozen();
         remoteUserMappings.clear();
         remoteUserMappings.addAll(mappings);
     }
 
     public void setRemoteUserReplacementChars(List replacements) {
+        checkNotFrozen();
         remoteUserReplacementChars.clear();
         remoteUserReplacementChars.addAll(replacements);
     }
@@ -312,11 +481,13 @@ public class ShibAuthConfiguration {
     }
 
     public void setFullNameMappings(Collection mappings) {
+        checkNotFrozen();
         fullNameMappings.clear();
         fullNameMappings.addAll(mappings);
     }
 
     public void setFullNameReplacementChars(List replacements) {
+        checkNotFrozen();
         fullNameReplacementChars.clear();
         fullNameReplacementChars.addAll(replacements);
     }
@@ -334,6 +505,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setOutputToLowerCase(boolean outputToLowerCase) {
+        checkNotFrozen();
         this.outputToLowerCase = outputToLowerCase;
     }
 
@@ -346,6 +518,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setCreateUsers(boolean createUsers) {
+        checkNotFrozen();
         this.createUsers = createUsers;
     }
 
@@ -354,6 +527,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setDefaultRoles(List defaultRoles) {
+        checkNotFrozen();
         this.defaultRoles = defaultRoles;
     }
 
@@ -362,6 +536,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setReloadConfig(boolean reloadConfig) {
+        checkNotFrozen();
         this.reloadConfig = reloadConfig;
     }
 
@@ -370,6 +545,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setPurgeRolesLimit(Integer purgeRolesLimit) {
+        checkNotFrozen();
         this.purgeRolesLimit = purgeRolesLimit;
     }
 
@@ -379,6 +555,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setReloadConfigCheckInterval(long reloadConfigCheckInterval) {
+        checkNotFrozen();
         this.reloadConfigCheckInterval = reloadConfigCheckInterval;
     }
 
@@ -387,6 +564,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setConfigFile(String configFile) {
+        checkNotFrozen();
         this.configFile = configFile;
     }
 
@@ -395,22 +573,16 @@ public class ShibAuthConfiguration {
     }
 
     public void setConfigFileLastModified(long configFileLastModified) {
+        checkNotFrozen();
         this.configFileLastModified = configFileLastModified;
     }
 
-    public long getConfigFileLastChecked() {
-        return configFileLastChecked;
-    }
-
-    public void setConfigFileLastChecked(long configFileLastChecked) {
-        this.configFileLastChecked = configFileLastChecked;
-    }
-
     public String getRemoteUserHeaderName() {
         return remoteUserHeaderName;
     }
 
     public void setRemoteUserHeaderName(String remoteUserHeaderName) {
+        checkNotFrozen();
         this.remoteUserHeaderName = remoteUserHeaderName;
     }
 
@@ -419,6 +591,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setRemoteUserHeaderStrategy(int remoteUserHeaderStrategy) {
+        checkNotFrozen();
         this.remoteUserHeaderStrategy = remoteUserHeaderStrategy;
     }
 
@@ -427,14 +600,25 @@ public class ShibAuthConfiguration {
     }
 
     public void setUsernameFilterStrategy(int usernameFilterStrategy) {
+        checkNotFrozen();
         this.usernameFilterStrategy = usernameFilterStrategy;
     }
 
+    public String getUsernameFilterRdn() {
+        return usernameFilterRdn;
+    }
+
+    public void setUsernameFilterRdn(String usernameFilterRdn) {
+        checkNotFrozen();
+        this.usernameFilterRdn = usernameFilterRdn;
+    }
+
     public String getUsernameRegexFilter() {
         return usernameRegexFilter;
     }
 
     public void setUsernameRegexFilter(String usernameRegexFilter) {
+        checkNotFrozen();
         this.usernameRegexFilter = usernameRegexFilter;
     }
 
@@ -443,6 +627,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setEmailHeaderName(String emailHeaderName) {
+        checkNotFrozen();
         this.emailHeaderName = emailHeaderName;
     }
 
@@ -451,6 +636,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setEmailHeaderStrategy(int emailHeaderStrategy) {
+        checkNotFrozen();
         this.emailHeaderStrategy = emailHeaderStrategy;
     }
 
@@ -459,6 +645,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setFullNameHeaderName(String fullNameHeaderName) {
+        checkNotFrozen();
         this.fullNameHeaderName = fullNameHeaderName;
     }
 
@@ -467,6 +654,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setFullNameHeaderStrategy(int fullNameHeaderStrategy) {
+        checkNotFrozen();
         this.fullNameHeaderStrategy = fullNameHeaderStrategy;
     }
 
@@ -475,6 +663,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setUpdateInfo(boolean updateInfo) {
+        checkNotFrozen();
         this.updateInfo = updateInfo;
     }
 
@@ -483,6 +672,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setUpdateRoles(boolean updateRoles) {
+        checkNotFrozen();
         this.updateRoles = updateRoles;
     }
 
@@ -491,14 +681,178 @@ public class ShibAuthConfiguration {
     }
 
     public void setConvertToUTF8(boolean convertToUTF8) {
+        checkNotFrozen();
         this.convertToUTF8 = convertToUTF8;
     }
 
+    public String getRegexEngine() {
+        return regexEngine;
+    }
+
+    public void setRegexEngine(String regexEngine) {
+        checkNotFrozen();
+        this.regexEngine = regexEngine;
+    }
+
+    public long getRegexTimeoutMillis() {
+        return regexTimeoutMillis;
+    }
+
+    public void setRegexTimeoutMillis(long regexTimeoutMillis) {
+        checkNotFrozen();
+        this.regexTimeoutMillis = regexTimeoutMillis;
+    }
+
+    public MappingCache getMappingCache() {
+        return mappingCache;
+    }
+
+    public void setMappingCache(MappingCache mappingCache) {
+        checkNotFrozen();
+        this.mappingCache = mappingCache;
+    }
+
+    public int getProvisioningBatchSize() {
+        return provisioningBatchSize;
+    }
+
+    public void setProvisioningBatchSize(int provisioningBatchSize) {
+        checkNotFrozen();
+        this.provisioningBatchSize = provisioningBatchSize;
+    }
+
+    public boolean isProvisioningAsync() {
+        return provisioningAsync;
+    }
+
+    public void setProvisioningAsync(boolean provisioningAsync) {
+        checkNotFrozen();
+        this.provisioningAsync = provisioningAsync;
+    }
+
+    public int getProvisioningAsyncThreads() {
+        return provisioningAsyncThreads;
+    }
+
+    public void setProvisioningAsyncThreads(int provisioningAsyncThreads) {
+        checkNotFrozen();
+        this.provisioningAsyncThreads = provisioningAsyncThreads;
+    }
+
+    public int getProvisioningAsyncQueueSize() {
+        return provisioningAsyncQueueSize;
+    }
+
+    public void setProvisioningAsyncQueueSize(int provisioningAsyncQueueSize) {
+        checkNotFrozen();
+        this.provisioningAsyncQueueSize = provisioningAsyncQueueSize;
+    }
+
+    /**
+     * @return the file the provisioning writes are journaled in until they are applied, or null
+     */
+    public String getProvisioningJournal() {
+        return provisioningJournal;
+    }
+
+    public void setProvisioningJournal(String provisioningJournal) {
+        checkNotFrozen();
+        this.provisioningJournal = provisioningJournal;
+    }
+
+    public boolean isUpdateSkipUnchanged() {
+        return updateSkipUnchanged;
+    }
+
+    public void setUpdateSkipUnchanged(boolean updateSkipUnchanged) {
+        checkNotFrozen();
+        this.updateSkipUnchanged = updateSkipUnchanged;
+    }
+
+    public long getUpdateSkipUnchangedMaxAge() {
+        return updateSkipUnchangedMaxAge;
+    }
+
+    public void setUpdateSkipUnchangedMaxAge(long updateSkipUnchangedMaxAge) {
+        checkNotFrozen();
+        this.updateSkipUnchangedMaxAge = updateSkipUnchangedMaxAge;
+    }
+
+    /**
+     * @return the file the provisioning fingerprints are persisted to, or null to keep them in memory only
+     */
+    public String getUpdateSkipUnchangedStore() {
+        return updateSkipUnchangedStore;
+    }
+
+    public void setUpdateSkipUnchangedStore(String updateSkipUnchangedStore) {
+        checkNotFrozen();
+        this.updateSkipUnchangedStore = updateSkipUnchangedStore;
+    }
+
+    /**
+     * @return digest of the properties this configuration was loaded from, the same for the same properties
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        checkNotFrozen();
+        this.version = version;
+    }
+
+    /**
+     * @return the mappings of dynamicroles.mapping.file, or null if it is not set
+     */
+    public RoleMappingFile getRoleMappingFile() {
+        return roleMappingFile;
+    }
+
+    public void setRoleMappingFile(RoleMappingFile roleMappingFile) {
+        checkNotFrozen();
+        this.roleMappingFile = roleMappingFile;
+    }
+
+    /**
+     * @return the compiled remoteuser.replace list, or null if there is none
+     */
+    public ReplacementChain getRemoteUserReplacements() {
+        return remoteUserReplacements;
+    }
+
+    public void setRemoteUserReplacements(ReplacementChain remoteUserReplacements) {
+        checkNotFrozen();
+        this.remoteUserReplacements = remoteUserReplacements;
+    }
+
+    /**
+     * @return the compiled fullname.replace list, or null if there is none
+     */
+    public ReplacementChain getFullNameReplacements() {
+        return fullNameReplacements;
+    }
+
+    public void setFullNameReplacements(ReplacementChain fullNameReplacements) {
+        checkNotFrozen();
+        this.fullNameReplacements = fullNameReplacements;
+    }
+
+    public CompiledPattern getUsernameRegexFilterPattern() {
+        return usernameRegexFilterPattern;
+    }
+
+    public void setUsernameRegexFilterPattern(CompiledPattern usernameRegexFilterPattern) {
+        checkNotFrozen();
+        this.usernameRegexFilterPattern = usernameRegexFilterPattern;
+    }
+
     public boolean isUpdateLastLogin() {
         return updateLastLogin;
     }
 
     public void setUpdateLastLogin(boolean updateLastLogin) {
+        checkNotFrozen();
         this.updateLastLogin = updateLastLogin;
     }
 
@@ -507,6 +861,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setUsernameConvertCase(boolean usernameConvertCase) {
+        checkNotFrozen();
         this.usernameConvertCase = usernameConvertCase;
     }
 
@@ -515,6 +870,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setUsingShibLoginFilter(boolean usingShibLoginFilter) {
+        checkNotFrozen();
         this.usingShibLoginFilter = usingShibLoginFilter;
     }
 
@@ -523,6 +879,7 @@ public class ShibAuthConfiguration {
     }
 
     public void setLocalLoginSupported(boolean localLoginSupported) {
+        checkNotFrozen();
         this.localLoginSupported = localLoginSupported;
     }
 
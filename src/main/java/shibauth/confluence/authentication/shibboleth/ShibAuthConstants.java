@@ -117,6 +117,11 @@ public class ShibAuthConstants {
      */
     public final static String USERNAME_FILTER_STRATEGY_PROPERTY = "username.filter.strategy";
 
+    /**
+     * Attribute type of the RDN holding the user id when username.filter.strategy is 2
+     */
+    public final static String USERNAME_FILTER_RDN_PROPERTY = "username.filter.rdn";
+
     /**
      * Name of username case conversion property
      */
@@ -166,6 +171,12 @@ public class ShibAuthConstants {
      */
     public final static String ROLES_ATTRIB_PREFIX = "dynamicroles.mapper.";
 
+    /**
+     * File with exact-match role mappings, one "header, value, group[, group...]" row per line.
+     * Consulted before the dynamicroles.mapper.* regexes of a header.
+     */
+    public final static String ROLES_MAPPING_FILE = "dynamicroles.mapping.file";
+
     /**
      * Label to represent indicate whether the group be automatically created
      * when the IdP provides new group non-existent in confluence.
@@ -198,6 +209,75 @@ public class ShibAuthConstants {
 
     public final static String USING_SHIB_LOGIN_FILTER = "using.shib.login.filter";
 
+    /**
+     * regex.engine init parameter name, selects the engine used for the mapper, replacement
+     * and username filter regexes (see CompiledPattern)
+     */
+    public final static String REGEX_ENGINE = "regex.engine";
+
+    /**
+     * regex.timeout.ms init parameter name, time budget of a single mapper or replacement
+     * regex match in milliseconds (0 for no limit)
+     */
+    public final static String REGEX_TIMEOUT_MS = "regex.timeout.ms";
+
+    /**
+     * mapping.cache.size init parameter name, maximum number of cached mapper results (0 disables the cache)
+     */
+    public final static String MAPPING_CACHE_SIZE = "mapping.cache.size";
+
+    /**
+     * provisioning.batch.size init parameter name, the most provisioning writes of a login in one transaction
+     */
+    public final static String PROVISIONING_BATCH_SIZE = "provisioning.batch.size";
+
+    /**
+     * provisioning.async init parameter name, update the group memberships of existing users in the background
+     */
+    public final static String PROVISIONING_ASYNC = "provisioning.async";
+
+    /**
+     * provisioning.async.threads init parameter name, number of background group synchronization threads
+     */
+    public final static String PROVISIONING_ASYNC_THREADS = "provisioning.async.threads";
+
+    /**
+     * provisioning.async.queue.size init parameter name, the most users waiting for a background group
+     * synchronization thread
+     */
+    public final static String PROVISIONING_ASYNC_QUEUE_SIZE = "provisioning.async.queue.size";
+
+    /**
+     * provisioning.journal init parameter name, file the provisioning writes are journaled in until applied
+     */
+    public final static String PROVISIONING_JOURNAL = "provisioning.journal";
+
+    /**
+     * Default provisioning.journal with provisioning.async, relative to the Confluence home directory
+     */
+    public final static String DEFAULT_PROVISIONING_JOURNAL = "shibauth/provisioning-journal.dat";
+
+    /**
+     * update.skip.unchanged init parameter name, skip updating users when nothing changed since their last update
+     */
+    public final static String UPDATE_SKIP_UNCHANGED = "update.skip.unchanged";
+
+    /**
+     * update.skip.unchanged.max.age init parameter name, milliseconds after which a user is updated even when
+     * nothing changed (0 for never)
+     */
+    public final static String UPDATE_SKIP_UNCHANGED_MAX_AGE = "update.skip.unchanged.max.age";
+
+    /**
+     * update.skip.unchanged.store init parameter name, file the provisioning fingerprints are persisted to
+     */
+    public final static String UPDATE_SKIP_UNCHANGED_STORE = "update.skip.unchanged.store";
+
+    /**
+     * Default update.skip.unchanged.store, relative to the Confluence home directory
+     */
+    public final static String DEFAULT_UPDATE_SKIP_UNCHANGED_STORE = "shibauth/provisioning-fingerprints.dat";
+
     /**
      * Prefix to be used for remote-user label
      * <p/>
@@ -0,0 +1,130 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the authenticator since it was started. They can be read from
+ * anywhere in the webapp, e.g. a monitoring page or a scripted JMX bean.
+ */
+public class ShibAuthStatistics {
+
+    private final static AtomicLong regexTimeouts = new AtomicLong();
+    private final static AtomicLong mappingCacheHits = new AtomicLong();
+    private final static AtomicLong mappingCacheMisses = new AtomicLong();
+    private final static AtomicLong mappingCacheEvictions = new AtomicLong();
+    private final static AtomicLong provisioningSkips = new AtomicLong();
+    private final static AtomicLong provisioningUpdates = new AtomicLong();
+    private final static AtomicLong provisioningCoalesced = new AtomicLong();
+
+    private ShibAuthStatistics() {
+    }
+
+    /**
+     * @return number of regex evaluations aborted because they exceeded regex.timeout.ms
+     */
+    public static long getRegexTimeouts() {
+        return regexTimeouts.get();
+    }
+
+    /**
+     * @return number of mapper results found in the mapping cache
+     */
+    public static long getMappingCacheHits() {
+        return mappingCacheHits.get();
+    }
+
+    /**
+     * @return number of mapper results not found in the mapping cache
+     */
+    public static long getMappingCacheMisses() {
+        return mappingCacheMisses.get();
+    }
+
+    /**
+     * @return number of least recently used entries dropped from a full mapping cache
+     */
+    public static long getMappingCacheEvictions() {
+        return mappingCacheEvictions.get();
+    }
+
+    /**
+     * @return number of logins of existing users whose user information and group memberships were not
+     *         updated, because nothing they are based on changed since the last update (update.skip.unchanged)
+     */
+    public static long getProvisioningSkips() {
+        return provisioningSkips.get();
+    }
+
+    /**
+     * @return number of logins of existing users whose user information or group memberships were updated
+     *         while update.skip.unchanged is on
+     */
+    public static long getProvisioningUpdates() {
+        return provisioningUpdates.get();
+    }
+
+    /**
+     * @return number of pending asynchronous group synchronizations replaced by a newer one of the same user
+     *         (provisioning.async)
+     */
+    public static long getProvisioningCoalesced() {
+        return provisioningCoalesced.get();
+    }
+
+    static void regexTimedOut() {
+        regexTimeouts.incrementAndGet();
+    }
+
+    static void mappingCacheHit() {
+        mappingCacheHits.incrementAndGet();
+    }
+
+    static void mappingCacheMissed() {
+        mappingCacheMisses.incrementAndGet();
+    }
+
+    static void mappingCacheEvicted() {
+        mappingCacheEvictions.incrementAndGet();
+    }
+
+    static void provisioningSkipped() {
+        provisioningSkips.incrementAndGet();
+    }
+
+    static void provisioningUpdated() {
+        provisioningUpdates.incrementAndGet();
+    }
+
+    static void provisioningCoalesced() {
+        provisioningCoalesced.incrementAndGet();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets one thread at a time do the work for a key while the other threads with
+ * the same key wait for it to finish, e.g. one of the parallel first requests of
+ * a new user creates and provisions it and the others then use that user.
+ * <pre>
+ * if (singleFlight.begin(key, timeout)) {
+ *     try {
+ *         // do the work
+ *     } finally {
+ *         singleFlight.finish(key);
+ *     }
+ * } else {
+ *     // use the result of the work, or do it anyway if it is not there
+ * }
+ * </pre>
+ */
+public class SingleFlight {
+
+    /**
+     * Map<key, CountDownLatch> keys whose work is in progress
+     */
+    private final ConcurrentHashMap inFlight = new ConcurrentHashMap();
+
+    /**
+     * @param timeoutMillis how long to wait for the work of another thread
+     * @return true if the caller does the work for key and has to call finish, false after the work of
+     *         another thread finished or timeoutMillis passed
+     */
+    public boolean begin(String key, long timeoutMillis) {
+        CountDownLatch latch = new CountDownLatch(1);
+        CountDownLatch running = (CountDownLatch) inFlight.putIfAbsent(key, latch);
+        if (running == null) {
+            return true;
+        }
+
+        try {
+            running.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * The work for key is done, release the threads waiting for it.
+     */
+    public void finish(String key) {
+        CountDownLatch latch = (CountDownLatch) inFlight.remove(key);
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
+    /**
+     * @return the number of keys whose work is in progress
+     */
+    public int size() {
+        return inFlight.size();
+    }
+}
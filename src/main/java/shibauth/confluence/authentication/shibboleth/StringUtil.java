@@ -32,11 +32,10 @@ package shibauth.confluence.authentication.shibboleth;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.regex.MatchResult;
 
 public class StringUtil {
 
@@ -47,21 +46,93 @@ public class StringUtil {
      */
     private final static String SEPARATOR = "[,;]";
 
+    /**
+     * Per thread buffer for convertToUTF8, buffers larger than MAX_UTF8_BUFFER are not kept.
+     */
+    private final static ThreadLocal utf8Buffer = new ThreadLocal() {
+        protected Object initialValue() {
+            return new byte[256];
+        }
+    };
+
+    private final static int MAX_UTF8_BUFFER = 8192;
+
+    /**
+     * Split s on comma and semicolon into trimmed, non-empty terms. A semicolon escaped
+     * with a backslash ("\;", the way the Shibboleth SP escapes semicolons inside
+     * attribute values) does not split, it becomes a plain ";" in the term.
+     *
+     * @param s input string delimited by comma or semicolon, may be null
+     * @return new (modifiable) list of the terms, empty if there are none
+     */
     public static List toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(String s) {
         if (s == null) return Collections.EMPTY_LIST;
 
         List results = new ArrayList();
+        addNonEmptyStringsDelimitedByCommaOrSemicolon(s, results);
 
-        String[] terms = s.split(SEPARATOR);
+        return results;
+    }
 
-        for (int i = 0; i < terms.length; i++) {
-            String term = terms[i].trim();
-            if (term.length() > 0) {
-                results.add(term);
+    /**
+     * Same as {@link #toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(String)}, but adds
+     * the terms to the given collection, so that callers splitting many values can reuse it.
+     *
+     * @param s   input delimited by comma or semicolon, may be null
+     * @param out collection receiving the terms (Strings)
+     */
+    public static void addNonEmptyStringsDelimitedByCommaOrSemicolon(CharSequence s, Collection out) {
+        if (s == null) {
+            return;
+        }
+
+        int len = s.length();
+        int start = 0;
+        boolean escaped = false;
+
+        for (int i = 0; i <= len; i++) {
+            char c = (i < len) ? s.charAt(i) : ';';
+
+            if (c == '\\' && i + 1 < len && s.charAt(i + 1) == ';') {
+                escaped = true;
+                i++;
+            } else if (c == ',' || c == ';') {
+                addTrimmedTerm(s, start, i, escaped, out);
+                start = i + 1;
+                escaped = false;
             }
         }
+    }
 
-        return results;
+    private static void addTrimmedTerm(CharSequence s, int start, int end, boolean escaped, Collection out) {
+        // trim like String.trim()
+        while (start < end && s.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && s.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        if (start == end) {
+            return;
+        }
+
+        if (escaped) {
+            StringBuilder term = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                if (c == '\\' && i + 1 < end && s.charAt(i + 1) == ';') {
+                    continue;
+                }
+                term.append(c);
+            }
+            out.add(term.toString());
+        } else if (start == 0 && end == s.length() && s instanceof String) {
+            // nothing to split or trim
+            out.add(s);
+        } else {
+            out.add(s.subSequence(start, end).toString());
+        }
     }
 
     /**
@@ -93,14 +164,20 @@ public class StringUtil {
      * Get user id attribute by Regex from List according to X.500 Directory Specification *
      */
     public static List getLDAPRegexAttributeList(List<String> list, String usernameRegexFilter) {
-        Pattern p = Pattern.compile(usernameRegexFilter);
+        return getLDAPRegexAttributeList(list, CompiledPattern.compile(usernameRegexFilter, 0,
+                CompiledPattern.ENGINE_JDK, null));
+    }
 
+    /**
+     * Same as {@link #getLDAPRegexAttributeList(List, String)} with an already compiled regex.
+     */
+    public static List getLDAPRegexAttributeList(List<String> list, CompiledPattern usernameRegexFilter) {
         List matches = new ArrayList();
 
         for (int i = 0; i < list.size(); i++) {
-            Matcher m = p.matcher(list.get(i));
+            MatchResult m = usernameRegexFilter.matches(list.get(i));
 
-            if (m.matches()) {
+            if (m != null) {
                 String tmpResult = m.group(1);
 
                 if (tmpResult != null && !tmpResult.equals("") ) {
@@ -114,26 +191,41 @@ public class StringUtil {
 
     // PLEASE DO NOT CHANGE THIS METHOD WITHOUT GETTING AGREEMENT FROM JUHA OJALUOMA AND ERKKI AALTO. THIS METHOD WAS
     // CONTRIBUTED BY HELSINKI IN BOTH SHBL-5 AND AGAIN IN SHBL-29.
+    // The ASCII fast path and the reused buffer don't change the result: every char is still truncated to its low
+    // byte and the bytes are decoded as UTF-8, which maps ASCII bytes to the same chars.
     public static String convertToUTF8(String s) {
-        String converted = null;
+        if (s == null) {
+            return null;
+        }
 
-        if (s != null) {
-            byte[] bytes = new byte[s.length()];
+        int len = s.length();
+        int i = 0;
+        while (i < len && s.charAt(i) < 0x80) {
+            i++;
+        }
 
-            for (int i = 0; i < s.length(); i++) {
-                bytes[i] = (byte) s.charAt(i);
-            }
+        if (i == len) {
+            // pure ASCII, decoding would give the same string
+            return s;
+        }
 
-            try {
-                converted = new String(bytes, "UTF-8");
-                if (log.isDebugEnabled()) {
-                    log.debug("Converted '" + s + "' to UTF-8 '" + converted + "'.");
-                }
-            } catch (UnsupportedEncodingException ue) {
-                log.error("Unable to set UTF-8 character encoding for string '" + s + "'!", ue);
+        byte[] bytes = (byte[]) utf8Buffer.get();
+        if (bytes.length < len) {
+            bytes = new byte[Math.max(len, bytes.length * 2)];
+            if (bytes.length <= MAX_UTF8_BUFFER) {
+                utf8Buffer.set(bytes);
             }
         }
 
+        for (int j = 0; j < len; j++) {
+            bytes[j] = (byte) s.charAt(j);
+        }
+
+        String converted = new String(bytes, 0, len, StandardCharsets.UTF_8);
+        if (log.isDebugEnabled()) {
+            log.debug("Converted '" + s + "' to UTF-8 '" + converted + "'.");
+        }
+
         return converted;
     }
 
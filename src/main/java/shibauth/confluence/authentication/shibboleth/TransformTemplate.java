@@ -0,0 +1,170 @@
+/*
+ Copyright (c) 2008-2016, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.MatchResult;
+
+/**
+ * Pre-parsed form of a GroupMapper "transform" string. The string is split once,
+ * at configuration load, into literal pieces and references to regex groups
+ * ($0..$N), so producing the output for a match is a single pass appending
+ * into a caller supplied StringBuilder.
+ * <p/>
+ * Group references follow the rules of java.util.regex.Matcher#appendReplacement:
+ * a '$' must be followed by a digit, and further digits are taken as long as the
+ * resulting number is a valid group of the match regex, so with less than 10
+ * groups "$10" means group 1 followed by a literal "0". A '$' that doesn't start
+ * a valid group reference is copied as is. Backslashes have no special meaning.
+ * A group that did not take part in the match expands to the empty string.
+ */
+public class TransformTemplate {
+
+    /**
+     * Literal pieces, with null entries in the places where a group is referenced.
+     */
+    private final String[] literals;
+
+    /**
+     * Group number for each null entry in literals, -1 for literal pieces.
+     */
+    private final int[] groups;
+
+    private final String source;
+
+    private final int literalLength;
+
+    /**
+     * @param transform  the transform string as configured
+     * @param groupCount number of capturing groups of the match regex
+     */
+    public TransformTemplate(String transform, int groupCount) {
+        this.source = transform;
+
+        List pieces = new ArrayList();
+        List refs = new ArrayList();
+        StringBuilder literal = new StringBuilder();
+        int length = 0;
+        int len = transform.length();
+        int i = 0;
+
+        while (i < len) {
+            char c = transform.charAt(i);
+            int ref = (c == '$' && i + 1 < len) ? Character.digit(transform.charAt(i + 1), 10) : -1;
+
+            if (ref < 0 || ref > groupCount) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+
+            i += 2;
+            // Take more digits as long as they still name an existing group.
+            while (i < len) {
+                int digit = Character.digit(transform.charAt(i), 10);
+                if (digit < 0 || ref * 10 + digit > groupCount) {
+                    break;
+                }
+
+                ref = ref * 10 + digit;
+                i++;
+            }
+
+            if (literal.length() > 0) {
+                pieces.add(literal.toString());
+                refs.add(Integer.valueOf(-1));
+                length += literal.length();
+                literal.setLength(0);
+            }
+
+            pieces.add(null);
+            refs.add(Integer.valueOf(ref));
+        }
+
+        if (literal.length() > 0) {
+            pieces.add(literal.toString());
+            refs.add(Integer.valueOf(-1));
+            length += literal.length();
+        }
+
+        this.literals = (String[]) pieces.toArray(new String[pieces.size()]);
+        this.groups = new int[refs.size()];
+        for (int j = 0; j < groups.length; j++) {
+            groups[j] = ((Integer) refs.get(j)).intValue();
+        }
+
+        this.literalLength = length;
+    }
+
+    /**
+     * Append the output of this template for the given match to out.
+     *
+     * @param match a successful match of the regex this template was built for
+     * @param input the string that was matched
+     * @param out   builder receiving the output
+     */
+    public void appendTo(MatchResult match, CharSequence input, StringBuilder out) {
+        for (int i = 0; i < literals.length; i++) {
+            if (groups[i] < 0) {
+                out.append(literals[i]);
+            } else {
+                int start = match.start(groups[i]);
+                if (start >= 0) {
+                    out.append(input, start, match.end(groups[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the template doesn't reference any group
+     */
+    public boolean isLiteral() {
+        for (int i = 0; i < groups.length; i++) {
+            if (groups[i] >= 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return combined length of the literal pieces, useful to size output buffers
+     */
+    public int getLiteralLength() {
+        return literalLength;
+    }
+
+    public String toString() {
+        return source;
+    }
+}
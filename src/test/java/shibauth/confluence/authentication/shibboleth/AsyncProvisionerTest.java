@@ -0,0 +1,106 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncProvisionerTest extends TestCase {
+
+    private final List ran = Collections.synchronizedList(new ArrayList());
+
+    public void testBurstIsCoalesced() throws Exception {
+        AsyncProvisioner provisioner = new AsyncProvisioner(2, 10);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        long coalesced = ShibAuthStatistics.getProvisioningCoalesced();
+
+        provisioner.submit("jdoe", new Job("1", started, release));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // the first job is running, the others wait and replace each other
+        provisioner.submit("jdoe", new Job("2", null, null));
+        provisioner.submit("jdoe", new Job("3", null, null));
+        CountDownLatch done = new CountDownLatch(1);
+        provisioner.submit("jdoe", new Job("4", done, null));
+        assertEquals(1, provisioner.getPendingCount());
+        assertEquals(coalesced + 2, ShibAuthStatistics.getProvisioningCoalesced());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(new String[]{"1", "4"}), ran);
+        provisioner.shutdown();
+    }
+
+    public void testFullQueueRunsInCaller() throws Exception {
+        AsyncProvisioner provisioner = new AsyncProvisioner(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        provisioner.submit("jdoe", new Job("jdoe", started, release));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        provisioner.submit("asmith", new Job("asmith", null, null));
+
+        final Thread caller = Thread.currentThread();
+        final boolean[] inCaller = new boolean[1];
+        provisioner.submit("bwayne", new Runnable() {
+            public void run() {
+                inCaller[0] = Thread.currentThread() == caller;
+            }
+        });
+        assertTrue(inCaller[0]);
+
+        release.countDown();
+        provisioner.shutdown();
+    }
+
+    public void testSubmitAfterShutdownRunsInCaller() throws Exception {
+        AsyncProvisioner provisioner = new AsyncProvisioner(1, 10);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        provisioner.submit("jdoe", new Job("jdoe", started, release));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        provisioner.submit("asmith", new Job("asmith", done, null));
+
+        // e.g. a login that got the provisioner just before a reload replaced it
+        provisioner.shutdown();
+        provisioner.submit("bwayne", new Job("bwayne", null, null));
+        assertEquals(Arrays.asList(new String[]{"jdoe", "bwayne"}), ran);
+
+        // the queued job still runs
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(3, ran.size());
+    }
+
+    private class Job implements Runnable {
+        private final String name;
+        private final CountDownLatch started;
+        private final CountDownLatch release;
+
+        Job(String name, CountDownLatch started, CountDownLatch release) {
+            this.name = name;
+            this.started = started;
+            this.release = release;
+        }
+
+        public void run() {
+            ran.add(name);
+            if (started != null) {
+                started.countDown();
+            }
+            if (release != null) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
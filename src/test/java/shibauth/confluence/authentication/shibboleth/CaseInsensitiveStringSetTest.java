@@ -0,0 +1,48 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class CaseInsensitiveStringSetTest extends TestCase {
+
+    public void testSameAsEqualsIgnoreCase() {
+        // includes letters whose case mapping is not one to one (dotted I, Kelvin sign, final sigma)
+        String alphabet = "aAkKzZ-\u00df\u0130\u0131iI\u212a\u03c3\u03c2\u03a3\u00e4\u00c4";
+        Random random = new Random(4711);
+
+        List strings = new ArrayList();
+        for (int i = 0; i < 300; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 1 + random.nextInt(3); j > 0; j--) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            strings.add(sb.toString());
+        }
+
+        CaseInsensitiveStringSet set = new CaseInsensitiveStringSet(strings.subList(0, 150));
+        for (int i = 0; i < strings.size(); i++) {
+            String s = (String) strings.get(i);
+            assertEquals(s, StringUtil.containsStringIgnoreCase(strings.subList(0, 150), s), set.contains(s));
+        }
+    }
+
+    public void testKeepsFirstSpelling() {
+        CaseInsensitiveStringSet set = new CaseInsensitiveStringSet(Arrays.asList(new String[]{"Staff", "STAFF", "faculty"}));
+        assertEquals(2, set.size());
+        assertTrue(set.contains("staff"));
+        assertTrue(set.contains("FACULTY"));
+        assertTrue(set.contains("Staff"));
+        assertFalse(set.contains("staff2"));
+
+        List values = new ArrayList(set);
+        assertTrue(values.contains("Staff"));
+        assertFalse(values.contains("STAFF"));
+
+        assertTrue(set.remove("STAFF"));
+        assertFalse(set.contains("Staff"));
+    }
+}
@@ -0,0 +1,115 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ConfigReloaderTest extends TestCase {
+
+    private File configFile;
+
+    protected void setUp() throws Exception {
+        configFile = File.createTempFile("remoteUserAuthenticator", ".properties");
+        write("reload.config=true\ncreate.users=true\n");
+    }
+
+    protected void tearDown() {
+        configFile.delete();
+    }
+
+    private void write(String properties) throws IOException {
+        Writer out = new FileWriter(configFile);
+        try {
+            out.write(properties);
+        } finally {
+            out.close();
+        }
+    }
+
+    private ShibAuthConfiguration watchedConfig() {
+        ShibAuthConfiguration config = new ShibAuthConfiguration();
+        config.setReloadConfig(true);
+        config.setReloadConfigCheckInterval(50);
+        config.setCreateUsers(true);
+        config.setConfigFile(configFile.getPath());
+        config.setConfigFileLastModified(configFile.lastModified());
+        config.freeze();
+        return config;
+    }
+
+    public void testReloadsChangedFileInBackground() throws Exception {
+        ShibAuthConfiguration config = watchedConfig();
+        AtomicReference reference = new AtomicReference(config);
+        Thread thread = ConfigReloader.start(reference);
+        assertNotNull(thread);
+        assertTrue(thread.isDaemon());
+
+        // the reloaded configuration turns reloading off, which also ends the thread
+        write("reload.config=false\ncreate.users=false\n");
+        configFile.setLastModified(config.getConfigFileLastModified() + 2000);
+        thread.join(10000);
+
+        assertFalse(thread.isAlive());
+        ShibAuthConfiguration reloaded = (ShibAuthConfiguration) reference.get();
+        assertNotSame(config, reloaded);
+        assertTrue(reloaded.isFrozen());
+        assertFalse(reloaded.isCreateUsers());
+    }
+
+    public void testUnchangedFileIsNotReloaded() throws Exception {
+        ShibAuthConfiguration config = watchedConfig();
+        AtomicReference reference = new AtomicReference(config);
+
+        new ConfigReloader(reference, 10).checkConfigFile(config);
+        assertSame(config, reference.get());
+    }
+
+    public void testSameLastModifiedWithOtherSizeIsReloaded() throws Exception {
+        ShibAuthConfiguration config = watchedConfig();
+        AtomicReference reference = new AtomicReference(config);
+        ConfigReloader reloader = new ConfigReloader(reference, 10);
+
+        // e.g. the rest of a file written in the same lastModified millisecond as the part that was loaded
+        write("reload.config=true\ncreate.users=false\n");
+        configFile.setLastModified(config.getConfigFileLastModified());
+
+        reloader.checkConfigFile(config);
+        ShibAuthConfiguration reloaded = (ShibAuthConfiguration) reference.get();
+        assertNotSame(config, reloaded);
+        assertFalse(reloaded.isCreateUsers());
+
+        reloader.checkConfigFile(config);
+        assertSame(reloaded, reference.get());
+    }
+
+    public void testStop() throws Exception {
+        AtomicReference reference = new AtomicReference(watchedConfig());
+        Thread thread = ConfigReloader.start(reference);
+        assertNotNull(thread);
+
+        ConfigReloader.stop();
+        assertFalse(thread.isAlive());
+    }
+
+    public void testInvalidFileKeepsCurrentConfig() throws Exception {
+        ShibAuthConfiguration config = watchedConfig();
+        AtomicReference reference = new AtomicReference(config);
+
+        write("reload.config=true\ncreate.users=false\nregex.timeout.ms=soon\n" +
+                "remoteuser=map\nremoteuser.map.match=(unclosed\n");
+        configFile.setLastModified(config.getConfigFileLastModified() + 2000);
+
+        new ConfigReloader(reference, 10).checkConfigFile(config);
+        assertSame(config, reference.get());
+    }
+
+    public void testNoThreadWithoutReloading() {
+        ShibAuthConfiguration config = new ShibAuthConfiguration();
+        config.freeze();
+        assertNull(ConfigReloader.start(new AtomicReference(config)));
+    }
+}
@@ -0,0 +1,38 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+public class DistinguishedNameParserTest extends TestCase {
+
+    public void testSimpleNames() {
+        assertEquals("jdoe", DistinguishedNameParser.getAttribute("CN=jdoe,OU=People,O=Example,C=FI", "CN"));
+        assertEquals("People", DistinguishedNameParser.getAttribute("cn = jdoe , ou = People ; o=Example", "OU"));
+        assertEquals("jdoe", DistinguishedNameParser.getAttribute("C=FI,O=Example,cn=jdoe", "CN"));
+        assertEquals("jdoe", DistinguishedNameParser.getAttribute("2.5.4.3=jdoe,O=Example", "2.5.4.3"));
+        assertNull(DistinguishedNameParser.getAttribute("OU=People,O=Example", "CN"));
+        assertNull(DistinguishedNameParser.getAttribute("", "CN"));
+        assertNull(DistinguishedNameParser.getAttribute(null, "CN"));
+    }
+
+    public void testFirstValueWins() {
+        assertEquals("a", DistinguishedNameParser.getAttribute("CN=a,CN=b", "CN"));
+        assertEquals("b", DistinguishedNameParser.getAttribute("CN=,CN=b", "CN"));
+        assertEquals("jdoe", DistinguishedNameParser.getAttribute("UID=1+CN=jdoe,O=Example", "CN"));
+    }
+
+    public void testEscapes() {
+        assertEquals("Doe, John", DistinguishedNameParser.getAttribute("CN=Doe\\, John,O=Example", "CN"));
+        assertEquals("a+b=c;d", DistinguishedNameParser.getAttribute("CN=a\\+b\\=c\\;d", "CN"));
+        assertEquals("J\u00e4rvinen", DistinguishedNameParser.getAttribute("CN=J\\C3\\A4rvinen,C=FI", "CN"));
+        assertEquals(" x ", DistinguishedNameParser.getAttribute("CN=\\ x\\ ,C=FI", "CN"));
+        assertEquals("x", DistinguishedNameParser.getAttribute("CN=x  ,C=FI", "CN"));
+        assertEquals("Example, Inc.", DistinguishedNameParser.getAttribute("CN=jdoe,O=\"Example, Inc.\" ,C=FI", "O"));
+    }
+
+    public void testHexValuesAndMalformedNames() {
+        assertEquals("jdoe", DistinguishedNameParser.getAttribute("CN=#04046a646f65,CN=jdoe", "CN"));
+        assertNull(DistinguishedNameParser.getAttribute("O=Example,bogus,CN=jdoe", "CN"));
+        assertNull(DistinguishedNameParser.getAttribute("O=\"Example,CN=jdoe", "CN"));
+        assertEquals("jdoe", DistinguishedNameParser.getAttribute("CN=jdoe,bogus", "CN"));
+    }
+}
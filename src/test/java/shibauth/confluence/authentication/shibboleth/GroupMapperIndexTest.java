@@ -0,0 +1,117 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class GroupMapperIndexTest extends TestCase {
+
+    private static final String[][] MAPPERS = {
+            {"urn:mace:example\\.edu:groups:(.*)", "$1", "true"},
+            {"^urn\\:mace\\:example.edu\\:groups\\:staff$", "all-staff", "true"},
+            {"URN:MACE:EXAMPLE.EDU:GROUPS:(\\w+)", "ci-$1", "false"},
+            {"staff", "cs100", "false"},
+            {"staff", "cs101", "true"},
+            {"cn=(\\w+),ou=groups,dc=example,dc=edu", "ldap-$1", "true"},
+            {"a+bc", "quantified-first", "true"},
+            {"xy?z", "quantified-later", "true"},
+            {"member|affiliate", "alternation", "true"},
+            {"(?i)faculty", "inline-flag", "true"},
+            {"[a-z]+@example\\.edu", "mail", "true"},
+            {"\\d+-(.*)", "numbered", "true"},
+            {null, "everyone", "true"},
+            {"ab(c|d)e", "group-alternation", "true"},
+            {"urn:mace:example.edu:groups:", "prefix-only", "true"},
+    };
+
+    private static final String[] VALUES = {
+            "urn:mace:example.edu:groups:staff", "URN:MACE:EXAMPLE.EDU:GROUPS:staff", "urn:mace:example.edu:groups:",
+            "urn:mace:exampleXedu:groups:x", "staff", "STAFF", "Staff", "staff2", "cn=proj,ou=groups,dc=example,dc=edu",
+            "bc", "abc", "aaabc", "xz", "xyz", "xyyz", "member", "affiliate", "FACULTY", "joe@example.edu",
+            "123-x", "abce", "abde", "", "a", "urn"
+    };
+
+    private List buildMappers() {
+        List mappers = new ArrayList();
+        for (int i = 0; i < MAPPERS.length; i++) {
+            mappers.add(new GroupMapper("m" + i, MAPPERS[i][0], MAPPERS[i][1], Boolean.valueOf(MAPPERS[i][2]).booleanValue()));
+        }
+        return mappers;
+    }
+
+    private static List linearScan(List mappers, String value) {
+        List results = new ArrayList();
+        for (Iterator it = mappers.iterator(); it.hasNext(); ) {
+            String output = ((GroupMapper) it.next()).process(value);
+            if (output != null) {
+                results.add(output);
+            }
+        }
+        return results;
+    }
+
+    public void testSameResultsAsLinearScan() {
+        List mappers = buildMappers();
+        GroupMapperIndex index = new GroupMapperIndex(mappers);
+
+        for (int i = 0; i < VALUES.length; i++) {
+            assertEquals(VALUES[i], linearScan(mappers, VALUES[i]), linearScan(index.candidates(VALUES[i]), VALUES[i]));
+        }
+    }
+
+    public void testSameResultsForRandomValues() {
+        List mappers = buildMappers();
+        GroupMapperIndex index = new GroupMapperIndex(mappers);
+        Random random = new Random(4711);
+
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder value = new StringBuilder(VALUES[random.nextInt(VALUES.length)]);
+            // mutate a few characters to hit near misses
+            for (int j = random.nextInt(3); j > 0 && value.length() > 0; j--) {
+                value.setCharAt(random.nextInt(value.length()), "aAsSz:._1".charAt(random.nextInt(9)));
+            }
+
+            String v = value.toString();
+            assertEquals(v, linearScan(mappers, v), linearScan(index.candidates(v), v));
+        }
+    }
+
+    public void testLiteralsSkipNonMatchingMappers() {
+        List mappers = new ArrayList();
+        mappers.add(new GroupMapper("a", "urn:a:(.*)", "$1", true));
+        mappers.add(new GroupMapper("b", "^urn\\:b$", "b", true));
+        mappers.add(new GroupMapper("c", "URN:C:.*", "c", false));
+        GroupMapperIndex index = new GroupMapperIndex(mappers);
+
+        assertEquals(1, index.candidates("urn:a:x").size());
+        assertEquals(1, index.candidates("urn:b").size());
+        assertEquals(0, index.candidates("urn:b:x").size());
+        assertEquals(1, index.candidates("urn:c:x").size());
+        assertEquals(0, index.candidates("other").size());
+    }
+
+    public void testLiteralPrefix() {
+        StringBuilder prefix = new StringBuilder();
+        assertTrue(GroupMapperIndex.literalPrefix("^a\\:b\\.c$", prefix));
+        assertEquals("a:b.c", prefix.toString());
+
+        prefix.setLength(0);
+        assertFalse(GroupMapperIndex.literalPrefix("abc*", prefix));
+        assertEquals("ab", prefix.toString());
+
+        prefix.setLength(0);
+        assertFalse(GroupMapperIndex.literalPrefix("ab\\w", prefix));
+        assertEquals("ab", prefix.toString());
+
+        prefix.setLength(0);
+        assertFalse(GroupMapperIndex.literalPrefix("ab|cd", prefix));
+        assertEquals("", prefix.toString());
+
+        prefix.setLength(0);
+        assertFalse(GroupMapperIndex.literalPrefix("[|]ab", prefix));
+        assertEquals("", prefix.toString());
+    }
+}
@@ -0,0 +1,145 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Pins the output of the mapper examples shipped in conf/remoteUserAuthenticator.properties.
+ */
+public class GroupMapperTest extends TestCase {
+
+    private static final String SHIPPED_EXAMPLES =
+            "dynamicroles.mapper.label1.match=some\\:urn\\:(\\\\w+)\\:(.*)\n" +
+            "dynamicroles.mapper.label1.transform=$1, $2\n" +
+            "dynamicroles.mapper.map2.match = staff\n" +
+            "dynamicroles.mapper.map2.casesensitive = false\n" +
+            "dynamicroles.mapper.map2.transform = cs100\n" +
+            "remoteuser.map.remoteusermap.match = ^(http|https)://(.*?)(:|/)?[^!]*?!([^!]*?)!(.*)\n" +
+            "remoteuser.map.remoteusermap.casesensitive = false\n" +
+            "remoteuser.map.remoteusermap.transform = $5@$2\n" +
+            "fullname.map.fullnamemap.match = ^(.*);(.*)\n" +
+            "fullname.map.fullnamemap.casesensitive = false\n" +
+            "fullname.map.fullnamemap.transform = $2 $1\n" +
+            "fullname.map.fullnamemap2.match = ^(.*),(.*)\n" +
+            "fullname.map.fullnamemap2.casesensitive = false\n" +
+            "fullname.map.fullnamemap2.transform = $2 $1\n";
+
+    private Properties props;
+
+    protected void setUp() throws IOException {
+        props = new Properties();
+        props.load(new StringReader(SHIPPED_EXAMPLES));
+    }
+
+    private GroupMapper mapper(String prefix) {
+        return new GroupMapper(prefix, props.getProperty(prefix + ShibAuthConstants.PART_MATCH),
+                props.getProperty(prefix + ShibAuthConstants.PART_TRANSFORM),
+                Boolean.valueOf(props.getProperty(prefix + ShibAuthConstants.PART_SENSITIVE, "true")).booleanValue());
+    }
+
+    public void testShippedDynamicRolesExamples() {
+        GroupMapper label1 = mapper(ShibAuthConstants.ROLES_ATTRIB_PREFIX + "label1");
+        assertEquals("group1, group2", label1.process("some:urn:group1:group2"));
+        assertEquals("users, administrators", label1.process("some:urn:users:administrators"));
+        assertNull(label1.process("other:urn:group1:group2"));
+
+        GroupMapper map2 = mapper(ShibAuthConstants.ROLES_ATTRIB_PREFIX + "map2");
+        assertEquals("cs100", map2.process("StaFF"));
+        assertEquals("cs100", map2.process("staff"));
+        assertNull(map2.process("staff2"));
+    }
+
+    public void testShippedRemoteUserExample() {
+        // The lazy (.*?) before the optional (:|/)? leaves $2 empty, this is what the example has always produced.
+        GroupMapper mapper = mapper(ShibAuthConstants.REMOTEUSER_MAP_PREFIX + "remoteusermap");
+        assertEquals("1234-56789-#00%00-TTT@",
+                mapper.process("https://idp.edu/idp!https://sp.edu/shibboleth!1234-56789-#00%00-TTT"));
+    }
+
+    public void testShippedFullNameExamples() {
+        assertEquals(" John Doe", mapper(ShibAuthConstants.FULL_NAME_MAP_PREFIX + "fullnamemap").process("Doe; John"));
+        assertEquals("%John Doe#", mapper(ShibAuthConstants.FULL_NAME_MAP_PREFIX + "fullnamemap2").process("Doe#,%John"));
+    }
+
+    public void testMatchOnlyAndTransformOnly() {
+        GroupMapper passthrough = new GroupMapper("p", "urn:example:(.*)", null, true);
+        assertEquals("urn:example:staff", passthrough.process("urn:example:staff"));
+
+        GroupMapper fixed = new GroupMapper("f", null, "everyone", true);
+        assertEquals("everyone", fixed.process("anything"));
+        assertEquals("everyone", fixed.process(null));
+
+        assertNull(new GroupMapper("n", null, null, true).process(""));
+        assertEquals("$", new GroupMapper("z", "", "$$0", true).process(""));
+    }
+
+    public void testGroupReferences() {
+        GroupMapper whole = new GroupMapper("w", "grp-(\\d+)", "$0/$1", true);
+        assertEquals("grp-7/7", whole.process("grp-7"));
+
+        // With a single group, "$10" is group 1 followed by a literal 0.
+        GroupMapper one = new GroupMapper("o", "(a)", "$10", true);
+        assertEquals("a0", one.process("a"));
+
+        GroupMapper ten = new GroupMapper("t", "(a)(b)(c)(d)(e)(f)(g)(h)(i)(j)", "$10-$1-$9", true);
+        assertEquals("j-a-i", ten.process("abcdefghij"));
+
+        // Unknown groups and a trailing $ are kept literally.
+        assertEquals("$5 x$", new GroupMapper("u", "(x)", "$5 $1$", true).process("x"));
+    }
+
+    public void testGroupValuesAreCopiedLiterally() {
+        GroupMapper mapper = new GroupMapper("l", "(.*):(.*)", "$2-$1", true);
+        assertEquals("$1\\x-a$2", mapper.process("a$2:$1\\x"));
+
+        GroupMapper optional = new GroupMapper("o", "(a)?b", "[$1]", true);
+        assertEquals("[]", optional.process("b"));
+    }
+
+    public void testCollectionOutputSameAsSplitString() {
+        GroupMapper[] mappers = {
+                mapper(ShibAuthConstants.ROLES_ATTRIB_PREFIX + "label1"),
+                mapper(ShibAuthConstants.ROLES_ATTRIB_PREFIX + "map2"),
+                new GroupMapper("literals", "staff", " a, b;;c ,", true),
+                new GroupMapper("passthrough", "urn:(.*)", null, true),
+                new GroupMapper("groups", "(.*)=(.*)", "$2;x-$1", true),
+                new GroupMapper("everyone", null, "everyone", true),
+        };
+        String[] values = {"some:urn:a,b:c; d", "staff", "urn: x;y, ", "urn:z", "k=v", "=", "a,b=;", "", null};
+
+        for (int i = 0; i < mappers.length; i++) {
+            for (int j = 0; j < values.length; j++) {
+                List groups = new ArrayList();
+                String output = mappers[i].process(values[j]);
+                assertEquals(mappers[i] + " / " + values[j], output != null, mappers[i].process(values[j], groups));
+                assertEquals(mappers[i] + " / " + values[j],
+                        StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(output), groups);
+            }
+        }
+    }
+
+    public void testMatchTimeout() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            value.append('a');
+        }
+        value.append('b');
+
+        // Takes seconds with java.util.regex.
+        GroupMapper mapper = new GroupMapper("slow", "(.*a){12}", "slow", true, CompiledPattern.ENGINE_JDK, 5);
+        long timeouts = ShibAuthStatistics.getRegexTimeouts();
+        long start = System.currentTimeMillis();
+        assertNull(mapper.process(value.toString()));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(timeouts + 1, ShibAuthStatistics.getRegexTimeouts());
+
+        // A budget doesn't change the result of matches that finish in time.
+        GroupMapper fast = new GroupMapper("fast", "(a+)", "$1-x", true, CompiledPattern.ENGINE_JDK, 5000);
+        assertEquals("aaa-x", fast.process("aaa"));
+    }
+}
@@ -0,0 +1,180 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import com.atlassian.confluence.user.ConfluenceUser;
+import com.atlassian.confluence.user.UserAccessor;
+import com.atlassian.crowd.embedded.api.CrowdService;
+import com.atlassian.crowd.embedded.api.Group;
+import com.atlassian.crowd.embedded.api.User;
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class GroupMembershipSynchronizerTest extends TestCase {
+
+    /**
+     * Map<method name, Integer> calls of the mocks
+     */
+    private final Map calls = new HashMap();
+
+    private final List added = new ArrayList();
+
+    private final List removed = new ArrayList();
+
+    public void testOnlyChangedGroupsAreLookedUp() {
+        ShibAuthConfiguration config = new ShibAuthConfiguration();
+        config.setDefaultRoles(new ArrayList(Arrays.asList(new String[]{"confluence-users"})));
+        config.setPurgeMappings(Arrays.asList(new GroupMapper[]{new GroupMapper("purge", "old-.*", "$0", true)}));
+        config.setPurgeRolesLimit(Integer.valueOf(10));
+        assertEquals(2, purge(config, new String[]{"old-a", "staff", "old-b", "old-c"}));
+
+        // every purge mapping tried counts towards purge.roles.limit
+        config.setPurgeRolesLimit(Integer.valueOf(1));
+        assertEquals(1, purge(config, new String[]{"old-a", "staff", "old-b", "old-c"}));
+
+        config.setPurgeRolesLimit(Integer.valueOf(10));
+        calls.clear();
+        removed.clear();
+
+        IdentityContext identity = newIdentityContext(new String[]{
+                "Confluence-Users", "staff", "old-course", "old-project", "wiki-admins"});
+        User user = (User) mock(User.class);
+
+        assertTrue(newSynchronizer(config).synchronize(identity, user,
+                new CaseInsensitiveStringSet(Arrays.asList(new String[]{"STAFF", "faculty"}))));
+
+        assertEquals(Arrays.asList(new String[]{"faculty"}), added);
+        assertEquals(Arrays.asList(new String[]{"old-course", "old-project"}), removed);
+
+        // one read of the memberships, one group lookup per write
+        assertEquals(1, count("getGroupNames"));
+        assertEquals(3, count("getGroup"));
+        assertEquals(0, count("isUserMemberOfGroup"));
+    }
+
+    public void testIncompleteChanges() {
+        ShibAuthConfiguration config = new ShibAuthConfiguration();
+        config.setDefaultRoles(new ArrayList());
+        config.setPurgeMappings(Arrays.asList(new GroupMapper[]{new GroupMapper("purge", "old-.*", "$0", true)}));
+        Set keep = new CaseInsensitiveStringSet(Arrays.asList(new String[]{"staff"}));
+        User user = (User) mock(User.class);
+
+        config.setPurgeRolesLimit(Integer.valueOf(10));
+        assertTrue(newSynchronizer(config).purgeUserRoles(user, keep,
+                Arrays.asList(new String[]{"old-a", "staff", "old-b"})));
+
+        // purge.roles.limit leaves old-b for a later login
+        config.setPurgeRolesLimit(Integer.valueOf(1));
+        assertFalse(newSynchronizer(config).purgeUserRoles(user, keep,
+                Arrays.asList(new String[]{"old-a", "staff", "old-b"})));
+
+        GroupMembershipSynchronizer failing = new GroupMembershipSynchronizer(config,
+                (CrowdService) mock(CrowdService.class), null) {
+            protected void addUserToGroup(User user, Group group) {
+                throw new IllegalStateException("expected");
+            }
+
+            protected void removeUserFromGroup(User user, Group group) {
+            }
+        };
+        assertFalse(failing.synchronize(newIdentityContext(new String[]{"staff"}), user,
+                new CaseInsensitiveStringSet(Arrays.asList(new String[]{"faculty"}))));
+    }
+
+    public void testNothingToChange() {
+        ShibAuthConfiguration config = new ShibAuthConfiguration();
+        config.setDefaultRoles(new ArrayList(Arrays.asList(new String[]{"confluence-users"})));
+
+        IdentityContext identity = newIdentityContext(new String[]{"confluence-users", "staff"});
+        assertTrue(newSynchronizer(config).synchronize(identity, (User) mock(User.class),
+                new CaseInsensitiveStringSet(Arrays.asList(new String[]{"staff"}))));
+
+        assertTrue(added.isEmpty());
+        assertEquals(1, count("getGroupNames"));
+        assertEquals(0, count("getGroup"));
+    }
+
+    private int purge(ShibAuthConfiguration config, String[] groupNames) {
+        removed.clear();
+        Set keep = new CaseInsensitiveStringSet(Arrays.asList(new String[]{"staff", "old-c"}));
+        newSynchronizer(config).purgeUserRoles((User) mock(User.class), keep, Arrays.asList(groupNames));
+        return removed.size();
+    }
+
+    private GroupMembershipSynchronizer newSynchronizer(ShibAuthConfiguration config) {
+        return new GroupMembershipSynchronizer(config, (CrowdService) mock(CrowdService.class), null) {
+            protected void addUserToGroup(User user, Group group) {
+                added.add(group.getName());
+            }
+
+            protected void removeUserFromGroup(User user, Group group) {
+                removed.add(group.getName());
+            }
+        };
+    }
+
+    private IdentityContext newIdentityContext(final String[] groupNames) {
+        UserAccessor userAccessor = (UserAccessor) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{UserAccessor.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        called(method.getName());
+                        if (method.getName().equals("getGroupNames")) {
+                            return new ArrayList(Arrays.asList(groupNames));
+                        }
+                        return mock(ConfluenceUser.class);
+                    }
+                });
+
+        return new IdentityContext("jdoe", (CrowdService) mock(CrowdService.class), userAccessor) {
+            protected Principal lookupUser(String userid) {
+                return null;
+            }
+        };
+    }
+
+    private Object mock(Class type) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{type}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getName")) {
+                    return "jdoe";
+                }
+                if (name.equals("isActive")) {
+                    return Boolean.TRUE;
+                }
+
+                called(name);
+                if (name.equals("getGroup")) {
+                    return group((String) args[0]);
+                }
+                return null;
+            }
+        });
+    }
+
+    private Group group(final String name) {
+        return (Group) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Group.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return name;
+                    }
+                });
+    }
+
+    private void called(String name) {
+        calls.put(name, Integer.valueOf(count(name) + 1));
+    }
+
+    private int count(String name) {
+        Integer count = (Integer) calls.get(name);
+        return (count == null) ? 0 : count.intValue();
+    }
+}
@@ -0,0 +1,112 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import com.atlassian.confluence.user.ConfluenceUser;
+import com.atlassian.confluence.user.UserAccessor;
+import com.atlassian.crowd.embedded.api.CrowdService;
+import com.atlassian.crowd.embedded.api.User;
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class IdentityContextTest extends TestCase {
+
+    /**
+     * Map<method name, Integer> calls of the mocks
+     */
+    private final Map calls = new HashMap();
+
+    private final List groups = new ArrayList(Arrays.asList(new String[]{"confluence-users"}));
+
+    public void testLooksUpOnce() {
+        IdentityContext identity = newIdentityContext();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("jdoe", identity.getUser().getName());
+            assertEquals("jdoe", identity.getCrowdUser().getName());
+            assertEquals(groups, identity.getGroupNames());
+        }
+
+        assertEquals(1, count("lookupUser"));
+        assertEquals(1, count("getUser"));
+        assertEquals(1, count("getGroupNames"));
+        // the Principal is the Confluence user already
+        assertEquals(0, count("getUserByName"));
+    }
+
+    public void testRefreshAfterChanges() {
+        IdentityContext identity = newIdentityContext();
+        identity.getUser();
+        identity.getGroupNames();
+        identity.getCrowdUser();
+
+        identity.groupsChanged();
+        identity.getGroupNames();
+        identity.getCrowdUser();
+        assertEquals(2, count("getGroupNames"));
+        assertEquals(1, count("getUser"));
+
+        identity.userChanged();
+        identity.getUser();
+        identity.getCrowdUser();
+        identity.getGroupNames();
+        assertEquals(2, count("getUser"));
+        assertEquals(2, count("lookupUser"));
+        assertEquals(3, count("getGroupNames"));
+    }
+
+    private IdentityContext newIdentityContext() {
+        CrowdService crowdService = (CrowdService) mock(CrowdService.class);
+        UserAccessor userAccessor = (UserAccessor) mock(UserAccessor.class);
+        return new IdentityContext("jdoe", crowdService, userAccessor) {
+            protected Principal lookupUser(String userid) {
+                count("lookupUser", 1);
+                return (Principal) mock(ConfluenceUser.class);
+            }
+        };
+    }
+
+    private Object mock(Class type) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{type, User.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getName")) {
+                    return "jdoe";
+                }
+                if (name.equals("hashCode")) {
+                    return Integer.valueOf(System.identityHashCode(proxy));
+                }
+                if (name.equals("equals")) {
+                    return Boolean.valueOf(proxy == args[0]);
+                }
+
+                count(name, 1);
+                if (name.equals("getUser") || name.equals("getUserByName")) {
+                    return mock(ConfluenceUser.class);
+                }
+                if (name.equals("getGroupNames")) {
+                    return groups;
+                }
+                return null;
+            }
+        });
+    }
+
+    private int count(String name) {
+        return count(name, 0);
+    }
+
+    private int count(String name, int increment) {
+        Integer count = (Integer) calls.get(name);
+        int value = ((count == null) ? 0 : count.intValue()) + increment;
+        calls.put(name, Integer.valueOf(value));
+        return value;
+    }
+}
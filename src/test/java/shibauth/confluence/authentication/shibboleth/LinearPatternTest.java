@@ -0,0 +1,139 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class LinearPatternTest extends TestCase {
+
+    private static final String[] PATTERNS = {
+            "some\\:urn\\:(\\w+)\\:(.*)",
+            "staff",
+            "^(http|https)://(.*?)(:|/)?[^!]*?!([^!]*?)!(.*)",
+            "^(.*);(.*)",
+            "^(.*),(.*)",
+            "^CN=(.*)",
+            "urn:mace:example\\.edu:groups:(.*)",
+            "(a|ab)(c|bcd)(d*)",
+            "(a+)(b+)?",
+            "(a*?)(a*)",
+            "x{2,3}?(x*)",
+            "[^a-c\\d]+(\\.)?",
+            "\\s*(\\S+)\\s*",
+            "(?:ab|a)(b?)",
+            "a{3}",
+            "[a-z]+@example\\.edu$",
+            "\\x41\\u0042(\\t?)",
+            "(a|b|)c",
+            "^$",
+            ".*",
+            "(.)*",
+    };
+
+    private static final String ALPHABET = "abcdx.;,:/!AB1 \t\n";
+
+    public void testSameResultsAsJdk() throws Exception {
+        Random random = new Random(4711);
+
+        for (int i = 0; i < PATTERNS.length; i++) {
+            for (int flags = 0; flags <= Pattern.CASE_INSENSITIVE; flags += Pattern.CASE_INSENSITIVE) {
+                Pattern jdk = Pattern.compile(PATTERNS[i], flags);
+                LinearPattern linear = new LinearPattern(PATTERNS[i], flags);
+                assertEquals(PATTERNS[i], jdk.matcher("").groupCount(), linear.groupCount());
+
+                for (int j = 0; j < 300; j++) {
+                    StringBuilder value = new StringBuilder();
+                    for (int k = random.nextInt(12); k > 0; k--) {
+                        value.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+                    }
+                    assertSameMatch(jdk, linear, value.toString());
+                }
+
+                assertSameMatch(jdk, linear, "some:urn:group1:group2");
+                assertSameMatch(jdk, linear, "https://idp.edu/idp!https://sp.edu/shibboleth!1234-56789-#00%00-TTT");
+                assertSameMatch(jdk, linear, "Doe; John");
+                assertSameMatch(jdk, linear, "CN=jdoe,OU=people");
+                assertSameMatch(jdk, linear, "joe@example.edu\n");
+            }
+        }
+    }
+
+    private static void assertSameMatch(Pattern jdk, LinearPattern linear, String value) {
+        String message = jdk.pattern() + " / " + value;
+        Matcher expected = jdk.matcher(value);
+        MatchResult actual = linear.matches(value);
+
+        if (!expected.matches()) {
+            assertNull(message, actual);
+        } else {
+            assertNotNull(message, actual);
+            for (int g = 0; g <= expected.groupCount(); g++) {
+                assertEquals(message + " group " + g, expected.group(g), actual.group(g));
+            }
+        }
+
+        assertEquals(message, jdk.matcher(value).replaceAll("<$0>"), linear.replaceAll(value, "<$0>"));
+    }
+
+    public void testReplaceAll() throws Exception {
+        assertEquals("a_b_c", new LinearPattern("[#%]", 0).replaceAll("a#b%c", "_"));
+        assertEquals("x$y", new LinearPattern("-", 0).replaceAll("x-y", "\\$"));
+        assertEquals("-a-b-", new LinearPattern("x*", 0).replaceAll("ab", "-"));
+        assertEquals("b-a", new LinearPattern("(a)-(b)", 0).replaceAll("a-b", "$2-$1"));
+    }
+
+    public void testCheckReplacement() {
+        String[] engines = {CompiledPattern.ENGINE_JDK, CompiledPattern.ENGINE_LINEAR};
+        for (int i = 0; i < engines.length; i++) {
+            CompiledPattern pattern = CompiledPattern.compile("(a)-(b)", 0, engines[i], null);
+            pattern.checkReplacement("$2-$1 \\$ $20");
+
+            String[] invalid = {"$", "x\\", "$x", "$3"};
+            for (int j = 0; j < invalid.length; j++) {
+                try {
+                    pattern.checkReplacement(invalid[j]);
+                    fail(invalid[j]);
+                } catch (IllegalArgumentException e) {
+                    // expected
+                } catch (IndexOutOfBoundsException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    public void testLinearTime() throws Exception {
+        // Catastrophic backtracking for java.util.regex, a single pass for the linear engine.
+        LinearPattern pattern = new LinearPattern("(a|aa)+b", 0);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            value.append('a');
+        }
+
+        long start = System.currentTimeMillis();
+        assertNull(pattern.matches(value));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    public void testUnsupportedSyntaxFallsBack() {
+        String[] unsupported = {"(a)\\1", "a(?=b)", "(?i)a", "a*+", "\\bword", "[a-z&&[^x]]", "(a*)*", "\\p{Alpha}"};
+
+        for (int i = 0; i < unsupported.length; i++) {
+            try {
+                new LinearPattern(unsupported[i], 0);
+                fail(unsupported[i]);
+            } catch (LinearPattern.UnsupportedSyntaxException e) {
+                // expected
+            }
+
+            CompiledPattern pattern = CompiledPattern.compile(unsupported[i], 0, CompiledPattern.ENGINE_LINEAR, null);
+            assertEquals(CompiledPattern.ENGINE_JDK, pattern.getEngine());
+        }
+
+        assertEquals(CompiledPattern.ENGINE_LINEAR,
+                CompiledPattern.compile("urn:(.*)", 0, CompiledPattern.ENGINE_LINEAR, null).getEngine());
+    }
+}
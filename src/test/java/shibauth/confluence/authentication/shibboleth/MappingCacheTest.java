@@ -0,0 +1,48 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+public class MappingCacheTest extends TestCase {
+
+    public void testHitsAndMisses() {
+        MappingCache cache = new MappingCache(100);
+        long hits = ShibAuthStatistics.getMappingCacheHits();
+        long misses = ShibAuthStatistics.getMappingCacheMisses();
+
+        assertNull(cache.get("dynamicroles.header.entitlement", "urn:a"));
+        cache.put("dynamicroles.header.entitlement", "urn:a", "a");
+        assertEquals("a", cache.get("dynamicroles.header.entitlement", "urn:a"));
+
+        // the same value of another header is a different entry
+        assertNull(cache.get("dynamicroles.header.affiliation", "urn:a"));
+
+        assertEquals(hits + 1, ShibAuthStatistics.getMappingCacheHits());
+        assertEquals(misses + 2, ShibAuthStatistics.getMappingCacheMisses());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        MappingCache cache = new MappingCache(3);
+        long evictions = ShibAuthStatistics.getMappingCacheEvictions();
+
+        cache.put("h", "a", "1");
+        cache.put("h", "b", "2");
+        cache.put("h", "c", "3");
+        assertEquals("1", cache.get("h", "a"));
+        cache.put("h", "d", "4");
+
+        assertEquals(3, cache.size());
+        assertNull(cache.get("h", "b"));
+        assertEquals("1", cache.get("h", "a"));
+        assertEquals(evictions + 1, ShibAuthStatistics.getMappingCacheEvictions());
+    }
+
+    public void testSizeIsBounded() {
+        MappingCache cache = new MappingCache(1000);
+        for (int i = 0; i < 5000; i++) {
+            cache.put("h", "value" + i, "x");
+        }
+
+        assertTrue(cache.size() <= 1000);
+        assertEquals("x", cache.get("h", "value4999"));
+    }
+}
@@ -0,0 +1,40 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.Properties;
+
+public class MappingPropertiesTest extends TestCase {
+
+    public void testIndexesHeadersAndMapperParts() {
+        Properties props = new Properties();
+        props.setProperty("dynamicroles.header.SHIB-EP-ENTITLEMENT", "label1, label.2");
+        props.setProperty("dynamicroles.header.", "ignored");
+        props.setProperty("dynamicroles.mapper.label1.match", "staff");
+        props.setProperty("dynamicroles.mapper.label1.transform", "cs100");
+        props.setProperty("dynamicroles.mapper.label.2.match", "(.*)");
+        props.setProperty("dynamicroles.mapper.label.2.casesensitive", "false");
+        props.setProperty("dynamicroles.mapper.label3.unknown", "x");
+        props.setProperty("remoteuser.map.label1.match", "^(.*)@example.edu$");
+        props.setProperty("create.users", "true");
+
+        MappingProperties index = new MappingProperties(props);
+
+        assertEquals(1, index.getRoleHeaders().size());
+        assertEquals("label1, label.2", index.getRoleHeaderMappers("SHIB-EP-ENTITLEMENT"));
+
+        MappingProperties.MapperDefinition label1 = index.getMapper(ShibAuthConstants.ROLES_ATTRIB_PREFIX, "label1");
+        assertEquals("staff", label1.match);
+        assertEquals("cs100", label1.transform);
+        assertNull(label1.sensitive);
+
+        MappingProperties.MapperDefinition label2 = index.getMapper(ShibAuthConstants.ROLES_ATTRIB_PREFIX, "label.2");
+        assertEquals("(.*)", label2.match);
+        assertNull(label2.transform);
+        assertEquals("false", label2.sensitive);
+
+        assertNull(index.getMapper(ShibAuthConstants.ROLES_ATTRIB_PREFIX, "label3"));
+        assertEquals("^(.*)@example.edu$", index.getMapper(ShibAuthConstants.REMOTEUSER_MAP_PREFIX, "label1").match);
+        assertNull(index.getMapper(ShibAuthConstants.FULL_NAME_MAP_PREFIX, "label1"));
+    }
+}
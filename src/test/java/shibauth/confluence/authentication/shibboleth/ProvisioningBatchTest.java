@@ -0,0 +1,111 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.interceptor.DefaultTransactionAttribute;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+public class ProvisioningBatchTest extends TestCase {
+
+    private final TestTransactionManager transactionManager = new TestTransactionManager();
+
+    public void testOneTransaction() {
+        ProvisioningBatch batch = newBatch(0);
+        for (int i = 0; i < 60; i++) {
+            batch.add(new Write(i, false));
+        }
+        assertEquals(60, batch.size());
+        assertTrue(transactionManager.committed.isEmpty());
+
+        assertTrue(batch.flush());
+        assertEquals(1, transactionManager.transactions);
+        assertEquals(60, transactionManager.committed.size());
+        assertEquals(0, batch.size());
+
+        assertTrue(batch.flush());
+        assertEquals(1, transactionManager.transactions);
+    }
+
+    public void testChunksAndFailures() {
+        ProvisioningBatch batch = newBatch(25);
+        for (int i = 0; i < 60; i++) {
+            batch.add(new Write(i, false));
+        }
+        batch.add(new ProvisioningBatch.Operation("fail") {
+            public void run() throws Exception {
+                throw new Exception("expected");
+            }
+        });
+        batch.add(new Write(60, false));
+
+        assertFalse(batch.flush());
+        // two chunks of 25, the failed one of 12 rolled back and applied again one write at a time
+        assertEquals(2 + 1 + 12, transactionManager.transactions);
+        // a failed write does not keep the others from being applied
+        assertEquals(61, transactionManager.committed.size());
+        assertEquals(Integer.valueOf(60), transactionManager.committed.get(60));
+    }
+
+    public void testFailedWriteMarksTransactionRollbackOnly() {
+        ProvisioningBatch batch = newBatch(0);
+        batch.add(new Write(0, false));
+        batch.add(new Write(1, true));
+        batch.add(new Write(2, false));
+
+        assertFalse(batch.flush());
+        // the batch transaction is rolled back and the writes are applied one transaction each
+        assertEquals(4, transactionManager.transactions);
+        assertEquals(2, transactionManager.committed.size());
+        assertEquals(Integer.valueOf(0), transactionManager.committed.get(0));
+        assertEquals(Integer.valueOf(2), transactionManager.committed.get(1));
+    }
+
+    public void testWriteFailingAtCommit() {
+        transactionManager.failAtCommit = Integer.valueOf(1);
+        ProvisioningBatch batch = newBatch(0);
+        batch.add(new Write(0, false));
+        batch.add(new Write(1, false));
+        batch.add(new Write(2, false));
+
+        assertFalse(batch.flush());
+        assertEquals(4, transactionManager.transactions);
+        assertEquals(2, transactionManager.committed.size());
+        assertEquals(Integer.valueOf(0), transactionManager.committed.get(0));
+        assertEquals(Integer.valueOf(2), transactionManager.committed.get(1));
+    }
+
+    private ProvisioningBatch newBatch(int batchSize) {
+        return new ProvisioningBatch(transactionManager, batchSize);
+    }
+
+    /**
+     * A Crowd write: joins the transaction of the batch and, if it fails, marks it rollback-only.
+     */
+    private class Write extends ProvisioningBatch.Operation {
+        private final int id;
+
+        private final boolean fail;
+
+        Write(int id, boolean fail) {
+            super("write " + id);
+            this.id = id;
+            this.fail = fail;
+        }
+
+        public void run() {
+            new TransactionTemplate(transactionManager,
+                    new DefaultTransactionAttribute(TransactionDefinition.PROPAGATION_REQUIRED)).execute(
+                    new TransactionCallback() {
+                        public Object doInTransaction(TransactionStatus status) {
+                            transactionManager.written.add(Integer.valueOf(id));
+                            if (fail) {
+                                throw new IllegalStateException("expected");
+                            }
+                            return null;
+                        }
+                    });
+        }
+    }
+}
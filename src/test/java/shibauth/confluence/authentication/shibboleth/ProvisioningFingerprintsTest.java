@@ -0,0 +1,176 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ProvisioningFingerprintsTest extends TestCase {
+
+    public void testFingerprint() {
+        byte[] fingerprint = ProvisioningFingerprints.fingerprint(new String[]{"jdoe", "John Doe", null});
+        assertEquals(ProvisioningFingerprints.FINGERPRINT_LENGTH, fingerprint.length);
+        assertTrue(Arrays.equals(fingerprint,
+                ProvisioningFingerprints.fingerprint(new String[]{"jdoe", "John Doe", null})));
+
+        assertFalse(Arrays.equals(fingerprint,
+                ProvisioningFingerprints.fingerprint(new String[]{"jdoe", "John Doe", ""})));
+        assertFalse(Arrays.equals(ProvisioningFingerprints.fingerprint(new String[]{"ab", "c"}),
+                ProvisioningFingerprints.fingerprint(new String[]{"a", "bc"})));
+    }
+
+    public void testIsUnchanged() throws Exception {
+        ProvisioningFingerprints fingerprints = new ProvisioningFingerprints();
+        byte[] fingerprint = ProvisioningFingerprints.fingerprint(new String[]{"jdoe", "staff"});
+        assertFalse(fingerprints.isUnchanged("jdoe", fingerprint, 0));
+
+        fingerprints.synced("jdoe", fingerprint);
+        assertEquals(1, fingerprints.size());
+        assertTrue(fingerprints.isUnchanged("jdoe", fingerprint, 0));
+        assertTrue(fingerprints.isUnchanged("jdoe", ProvisioningFingerprints.fingerprint(new String[]{"jdoe", "staff"}), 60000));
+        assertFalse(fingerprints.isUnchanged("jdoe", ProvisioningFingerprints.fingerprint(new String[]{"jdoe", "faculty"}), 0));
+        assertFalse(fingerprints.isUnchanged("asmith", fingerprint, 0));
+
+        Thread.sleep(20);
+        assertFalse(fingerprints.isUnchanged("jdoe", fingerprint, 10));
+    }
+
+    public void testStoreSurvivesRestart() throws Exception {
+        File file = File.createTempFile("fingerprints", ".dat");
+        file.delete();
+        try {
+            byte[] jdoe = ProvisioningFingerprints.fingerprint(new String[]{"jdoe"});
+            byte[] asmith = ProvisioningFingerprints.fingerprint(new String[]{"asmith"});
+
+            ProvisioningFingerprints fingerprints = new ProvisioningFingerprints(file);
+            fingerprints.synced("jdoe", jdoe);
+            fingerprints.load();
+            fingerprints.synced("asmith", asmith);
+            fingerprints.close();
+
+            fingerprints = new ProvisioningFingerprints(file);
+            assertFalse(fingerprints.isUnchanged("jdoe", jdoe, 0));
+            fingerprints.load();
+            assertTrue(fingerprints.isUnchanged("jdoe", jdoe, 0));
+            assertTrue(fingerprints.isUnchanged("asmith", asmith, 0));
+            fingerprints.close();
+
+            // a torn record at the end is dropped, the records before it are kept
+            long length = file.length();
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(new byte[]{0, 0, 0, 4, 'j', 'd'});
+            }
+            fingerprints = new ProvisioningFingerprints(file);
+            fingerprints.load();
+            assertEquals(length, file.length());
+            byte[] changed = ProvisioningFingerprints.fingerprint(new String[]{"jdoe", "staff"});
+            fingerprints.synced("jdoe", changed);
+            fingerprints.close();
+
+            // a corrupt record ends the file
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(length - 1);
+                int last = raf.read();
+                raf.seek(length - 1);
+                raf.write(last ^ 0xff);
+            }
+            fingerprints = new ProvisioningFingerprints(file);
+            fingerprints.load();
+            assertEquals(1, fingerprints.size());
+            assertTrue(fingerprints.isUnchanged("jdoe", jdoe, 0));
+            fingerprints.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testStoreCompaction() throws Exception {
+        File file = File.createTempFile("fingerprints", ".dat");
+        try {
+            ProvisioningFingerprints fingerprints = new ProvisioningFingerprints(file);
+            fingerprints.load();
+            byte[] fingerprint = null;
+            for (int i = 0; i < ProvisioningFingerprintStore.COMPACT_MIN_RECORDS * 3; i++) {
+                fingerprint = ProvisioningFingerprints.fingerprint(new String[]{"jdoe", Integer.toString(i)});
+                fingerprints.synced("jdoe", fingerprint);
+                fingerprints.synced("asmith", fingerprint);
+            }
+            fingerprints.awaitCompaction();
+            fingerprints.close();
+            assertTrue(file.length() < ProvisioningFingerprintStore.COMPACT_MIN_RECORDS * 40);
+
+            fingerprints = new ProvisioningFingerprints(file);
+            fingerprints.load();
+            assertEquals(2, fingerprints.size());
+            assertTrue(fingerprints.isUnchanged("jdoe", fingerprint, 0));
+            assertTrue(fingerprints.isUnchanged("asmith", fingerprint, 0));
+            fingerprints.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testStoreCompactionDropsExpiredUsers() throws Exception {
+        File file = File.createTempFile("fingerprints", ".dat");
+        try {
+            Map entries = new ConcurrentHashMap();
+            ProvisioningFingerprintStore store = new ProvisioningFingerprintStore(file, entries);
+            store.setMaxAge(60000);
+            store.load();
+            byte[] fingerprint = ProvisioningFingerprints.fingerprint(new String[]{"jdoe"});
+            ProvisioningFingerprints.Entry expired = new ProvisioningFingerprints.Entry(fingerprint,
+                    System.currentTimeMillis() - 120000);
+            ProvisioningFingerprints.Entry recent = new ProvisioningFingerprints.Entry(fingerprint,
+                    System.currentTimeMillis());
+            entries.put("asmith", expired);
+            store.append("asmith", expired);
+            entries.put("jdoe", recent);
+            store.append("jdoe", recent);
+
+            store.compact();
+            assertEquals(1, entries.size());
+            assertTrue(entries.containsKey("jdoe"));
+            store.close();
+
+            ProvisioningFingerprints fingerprints = new ProvisioningFingerprints(file);
+            fingerprints.load();
+            assertEquals(1, fingerprints.size());
+            assertTrue(fingerprints.isUnchanged("jdoe", fingerprint, 0));
+            fingerprints.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testFailedCompactionStopsWrites() throws Exception {
+        File file = File.createTempFile("fingerprints", ".dat");
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            ProvisioningFingerprints fingerprints = new ProvisioningFingerprints(file);
+            fingerprints.load();
+            // the new file cannot be written
+            assertTrue(tmp.mkdir());
+
+            byte[] fingerprint = ProvisioningFingerprints.fingerprint(new String[]{"jdoe"});
+            for (int i = 0; i < ProvisioningFingerprintStore.COMPACT_MIN_RECORDS; i++) {
+                fingerprints.synced("jdoe", fingerprint);
+            }
+            fingerprints.awaitCompaction();
+            long length = file.length();
+
+            // no compaction is started again, and nothing more is written
+            fingerprints.synced("jdoe", fingerprint);
+            fingerprints.awaitCompaction();
+            assertEquals(length, file.length());
+            assertTrue(fingerprints.isUnchanged("jdoe", fingerprint, 0));
+            fingerprints.close();
+        } finally {
+            tmp.delete();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ProvisioningJournalTest extends TestCase {
+
+    private File file;
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("journal", ".dat");
+        file.delete();
+    }
+
+    protected void tearDown() {
+        file.delete();
+    }
+
+    public void testPendingWritesAreRecovered() throws Exception {
+        ProvisioningJournal journal = new ProvisioningJournal(file);
+        assertTrue(journal.takeRecovered().isEmpty());
+
+        ProvisioningJournal.Entry add = ProvisioningJournal.Entry.addGroup("jdoe", "staff");
+        ProvisioningJournal.Entry remove = ProvisioningJournal.Entry.removeGroup("jdoe", "old-course");
+        ProvisioningJournal.Entry update = ProvisioningJournal.Entry.updateUser("jdoe", "John Doe", null);
+        journal.append(add);
+        journal.append(remove);
+        journal.append(update);
+        journal.sync();
+        journal.applied(remove);
+        journal.close();
+
+        // a torn record at the end is dropped
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 0, 0, 20, 1});
+        }
+
+        journal = new ProvisioningJournal(file);
+        List recovered = journal.takeRecovered();
+        assertEquals(2, recovered.size());
+        ProvisioningJournal.Entry first = (ProvisioningJournal.Entry) recovered.get(0);
+        assertEquals(ProvisioningJournal.ADD_GROUP, first.getType());
+        assertEquals("staff", first.getGroup());
+        ProvisioningJournal.Entry second = (ProvisioningJournal.Entry) recovered.get(1);
+        assertEquals("John Doe", second.getDisplayName());
+        assertNull(second.getEmailAddress());
+        assertTrue(journal.takeRecovered().isEmpty());
+
+        // new writes get new sequence numbers
+        ProvisioningJournal.Entry next = ProvisioningJournal.Entry.addGroup("asmith", "staff");
+        journal.append(next);
+        assertTrue(next.seq > second.seq);
+        journal.applied(first);
+        journal.applied(second);
+        journal.close();
+
+        journal = new ProvisioningJournal(file);
+        assertEquals(1, journal.takeRecovered().size());
+        journal.close();
+    }
+
+    public void testBatchJournalsUntilCommitted() throws Exception {
+        ProvisioningJournal journal = new ProvisioningJournal(file);
+        TestTransactionManager transactionManager = new TestTransactionManager();
+        transactionManager.failCommits = true;
+        ProvisioningBatch batch = new ProvisioningBatch(transactionManager, 0, journal);
+        batch.add(new ProvisioningBatch.Operation("add", ProvisioningJournal.Entry.addGroup("jdoe", "staff")) {
+            public void run() {
+            }
+        });
+        batch.add(new ProvisioningBatch.Operation("fail", ProvisioningJournal.Entry.addGroup("jdoe", "admins")) {
+            public void run() throws Exception {
+                throw new Exception("expected");
+            }
+        });
+
+        assertFalse(batch.flush());
+        journal.close();
+
+        // not committed, so replayed; the write that failed by itself is not
+        journal = new ProvisioningJournal(file);
+        List recovered = journal.takeRecovered();
+        assertEquals(1, recovered.size());
+        assertEquals("staff", ((ProvisioningJournal.Entry) recovered.get(0)).getGroup());
+
+        ProvisioningBatch committed = new ProvisioningBatch(new TestTransactionManager(), 0, journal);
+        committed.add(new ProvisioningBatch.Operation("add", ProvisioningJournal.Entry.addGroup("jdoe", "staff")) {
+            public void run() {
+            }
+        });
+        assertTrue(committed.flush());
+        journal.close();
+
+        journal = new ProvisioningJournal(file);
+        // the write of the failed batch is still pending, the committed one is not
+        assertEquals(1, journal.takeRecovered().size());
+        journal.close();
+    }
+
+    public void testCompaction() throws Exception {
+        ProvisioningJournal journal = new ProvisioningJournal(file);
+        for (int i = 0; i < 30000; i++) {
+            ProvisioningJournal.Entry entry = ProvisioningJournal.Entry.addGroup("jdoe", "group" + i);
+            journal.append(entry);
+            journal.applied(entry);
+        }
+        journal.awaitCompaction();
+        journal.close();
+        assertTrue(file.length() < ProvisioningJournal.COMPACT_THRESHOLD);
+
+        journal = new ProvisioningJournal(file);
+        assertTrue(journal.takeRecovered().isEmpty());
+        journal.close();
+    }
+
+    public void testCompactionWithPendingWrites() throws Exception {
+        ProvisioningJournal journal = new ProvisioningJournal(file);
+        // e.g. a write of another thread that is always in flight
+        journal.append(ProvisioningJournal.Entry.addGroup("asmith", "staff"));
+        for (int i = 0; i < 30000; i++) {
+            ProvisioningJournal.Entry entry = ProvisioningJournal.Entry.addGroup("jdoe", "group" + i);
+            journal.append(entry);
+            journal.applied(entry);
+        }
+        journal.awaitCompaction();
+        journal.close();
+        assertTrue(file.length() < ProvisioningJournal.COMPACT_THRESHOLD);
+
+        journal = new ProvisioningJournal(file);
+        List recovered = journal.takeRecovered();
+        assertEquals(1, recovered.size());
+        assertEquals("asmith", ((ProvisioningJournal.Entry) recovered.get(0)).getUserid());
+        journal.close();
+    }
+
+    public void testQueuedGroupSynchronization() throws Exception {
+        ProvisioningJournal journal = new ProvisioningJournal(file);
+        ProvisioningJournal.Entry sync = ProvisioningJournal.Entry.syncGroups("jdoe",
+                Arrays.asList(new String[]{"staff", "students"}));
+        journal.append(sync);
+        ProvisioningJournal.Entry none = ProvisioningJournal.Entry.syncGroups("asmith", new ArrayList());
+        journal.append(none);
+
+        // too large for a record, so not journaled
+        StringBuilder group = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            group.append('x');
+        }
+        ProvisioningJournal.Entry large = ProvisioningJournal.Entry.syncGroups("bjones",
+                Arrays.asList(new String[]{group.toString()}));
+        journal.append(large);
+        journal.applied(large);
+        journal.sync();
+        journal.close();
+
+        journal = new ProvisioningJournal(file);
+        List recovered = journal.takeRecovered();
+        assertEquals(2, recovered.size());
+        ProvisioningJournal.Entry first = (ProvisioningJournal.Entry) recovered.get(0);
+        assertEquals(ProvisioningJournal.SYNC_GROUPS, first.getType());
+        assertEquals("jdoe", first.getUserid());
+        assertEquals(Arrays.asList(new String[]{"staff", "students"}), first.getRoles());
+        assertTrue(((ProvisioningJournal.Entry) recovered.get(1)).getRoles().isEmpty());
+        journal.close();
+    }
+
+    public void testConcurrentSyncs() throws Exception {
+        final ProvisioningJournal journal = new ProvisioningJournal(file);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final String userid = "user" + t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 4000; i++) {
+                        ProvisioningJournal.Entry entry = ProvisioningJournal.Entry.addGroup(userid, "group" + i);
+                        journal.append(entry);
+                        journal.sync();
+                        if (i % 100 != 0) {
+                            journal.applied(entry);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+        journal.awaitCompaction();
+        journal.close();
+
+        // compacted meanwhile, without losing a pending write
+        assertTrue(file.length() < ProvisioningJournal.COMPACT_THRESHOLD);
+        ProvisioningJournal reopened = new ProvisioningJournal(file);
+        assertEquals(8 * 40, reopened.takeRecovered().size());
+        reopened.close();
+    }
+}
@@ -0,0 +1,81 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ReplacementChainTest extends TestCase {
+
+    private static final String[][] CHAINS = {
+            {"\\#", "A", "\\%", "c", "-", ""},
+            {"a", "b", "b", "c", "c", "aa"},
+            {"[^a-z]", "_", "_", "\\$"},
+            {"\\s", "", "[A-Z]", "x", "(dr|mr)\\.?", "", "x", "y"},
+            {"\\.", "$0$0", "\\d", "#"},
+            {"[a-c&&[^b]]", "\u00e9", "\u00e9", "e\u0301", "[^\\p{ASCII}]", "?"},
+            {"\\w", "\ud83d\ude00", "[^a]", "-"},
+    };
+
+    private static final String ALPHABET = "abcxyzAB#%-_ .$\u00e9\ud83d\ude00\t19";
+
+    private static ReplacementChain compile(String[] pairs, String engine) {
+        List patterns = new ArrayList();
+        List replacements = new ArrayList();
+        for (int i = 0; i < pairs.length; i += 2) {
+            patterns.add(CompiledPattern.compile(pairs[i], 0, engine, null));
+            replacements.add(pairs[i + 1]);
+        }
+        return new ReplacementChain("test", patterns, replacements, 0);
+    }
+
+    private static String sequential(String[] pairs, String value) {
+        for (int i = 0; i < pairs.length; i += 2) {
+            value = value.replaceAll(pairs[i], pairs[i + 1]);
+        }
+        return value;
+    }
+
+    public void testSameResultsAsSequentialReplaceAll() {
+        Random random = new Random(4711);
+        String[] engines = {CompiledPattern.ENGINE_JDK, CompiledPattern.ENGINE_LINEAR};
+
+        for (int i = 0; i < CHAINS.length; i++) {
+            for (int e = 0; e < engines.length; e++) {
+                ReplacementChain chain = compile(CHAINS[i], engines[e]);
+
+                for (int j = 0; j < 500; j++) {
+                    StringBuilder value = new StringBuilder();
+                    for (int k = random.nextInt(10); k > 0; k--) {
+                        value.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+                    }
+
+                    String v = value.toString();
+                    assertEquals(CHAINS[i][0] + " / " + v, sequential(CHAINS[i], v), chain.apply(v));
+                }
+            }
+        }
+    }
+
+    public void testSingleCharacterPairsTakeOnePass() {
+        assertEquals(1, compile(CHAINS[0], CompiledPattern.ENGINE_JDK).getPassCount());
+        assertEquals(1, compile(CHAINS[1], CompiledPattern.ENGINE_JDK).getPassCount());
+        // [A-Z] and x are merged, the regex in between is not
+        assertEquals(3, compile(CHAINS[3], CompiledPattern.ENGINE_JDK).getPassCount());
+        // $0 depends on the match
+        assertEquals(2, compile(CHAINS[4], CompiledPattern.ENGINE_JDK).getPassCount());
+    }
+
+    public void testIsSingleCharRegex() {
+        String[] single = {"a", "-", "\\#", "\\.", "\\d", "[abc]", "[^a-z]", "[a-c&&[^b]]", "[\\]]"};
+        String[] multi = {".", "ab", "\\1", "\\b", "\\R", "[a][b]", "[a]+", "(a)", "a|b", "\\p{L}", "[a]]"};
+
+        for (int i = 0; i < single.length; i++) {
+            assertTrue(single[i], ReplacementChain.isSingleCharRegex(single[i]));
+        }
+        for (int i = 0; i < multi.length; i++) {
+            assertFalse(multi[i], ReplacementChain.isSingleCharRegex(multi[i]));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+public class RoleMappingFileTest extends TestCase {
+
+    private File file;
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("role-mappings", ".csv");
+    }
+
+    protected void tearDown() {
+        file.delete();
+    }
+
+    private void write(String rows, boolean append) throws IOException {
+        long modified = file.lastModified();
+        OutputStream out = new FileOutputStream(file, append);
+        try {
+            out.write(rows.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            out.close();
+        }
+        // make the change visible on file systems with a coarse timestamp
+        file.setLastModified(modified + 2000);
+    }
+
+    public void testLoadAndAppend() throws Exception {
+        write("# header, value, groups\n" +
+                "SHIB-EP-ENTITLEMENT, urn:mace:example.edu:staff, staff, employees\r\n" +
+                "\n" +
+                "SHIB-EP-ENTITLEMENT; urn:mace:example.edu:student; students\n" +
+                "affiliation, member\n", false);
+
+        RoleMappingFile mappings = new RoleMappingFile(file.getPath());
+        List errors = mappings.load();
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).toString().indexOf("line 5") >= 0);
+
+        String[] staff = mappings.getGroups("SHIB-EP-ENTITLEMENT", "urn:mace:example.edu:staff");
+        assertEquals(Arrays.asList(new String[]{"staff", "employees"}), Arrays.asList(staff));
+        assertEquals("students", mappings.getGroups("SHIB-EP-ENTITLEMENT", "urn:mace:example.edu:student")[0]);
+        assertNull(mappings.getGroups("SHIB-EP-ENTITLEMENT", "URN:MACE:EXAMPLE.EDU:STAFF"));
+        assertNull(mappings.getGroups("affiliation", "member"));
+        assertFalse(mappings.reloadIfChanged());
+
+        write("SHIB-EP-ENTITLEMENT, urn:mace:example.edu:staff, all-staff\n" +
+                "affiliation, faculty, faculty\n", true);
+        assertTrue(mappings.reloadIfChanged());
+
+        assertEquals(Arrays.asList(new String[]{"staff", "employees", "all-staff"}),
+                Arrays.asList(mappings.getGroups("SHIB-EP-ENTITLEMENT", "urn:mace:example.edu:staff")));
+        assertEquals("faculty", mappings.getGroups("affiliation", "faculty")[0]);
+        assertEquals("students", mappings.getGroups("SHIB-EP-ENTITLEMENT", "urn:mace:example.edu:student")[0]);
+        // published arrays are never changed
+        assertEquals(2, staff.length);
+
+        // not an append, the file is read again
+        write("affiliation, faculty, teachers\n", false);
+        assertTrue(mappings.reloadIfChanged());
+        assertEquals("teachers", mappings.getGroups("affiliation", "faculty")[0]);
+        assertNull(mappings.getGroups("SHIB-EP-ENTITLEMENT", "urn:mace:example.edu:staff"));
+        assertEquals(1, mappings.getHeaders().size());
+    }
+
+    public void testLargeFileIsMapped() throws Exception {
+        StringBuilder rows = new StringBuilder();
+        int count = 0;
+        while (rows.length() < RoleMappingFile.MAP_THRESHOLD) {
+            rows.append("SHIB-EP-ENTITLEMENT, urn:mace:example.edu:group").append(count).append(", group")
+                    .append(count).append('\n');
+            count++;
+        }
+        write(rows.toString(), false);
+
+        RoleMappingFile mappings = new RoleMappingFile(file.getPath());
+        assertTrue(mappings.load().isEmpty());
+        assertEquals("group0", mappings.getGroups("SHIB-EP-ENTITLEMENT", "urn:mace:example.edu:group0")[0]);
+        assertEquals("group" + (count - 1),
+                mappings.getGroups("SHIB-EP-ENTITLEMENT", "urn:mace:example.edu:group" + (count - 1))[0]);
+
+        write("SHIB-EP-ENTITLEMENT, urn:mace:example.edu:new, new\n", true);
+        assertTrue(mappings.reloadIfChanged());
+        assertEquals("new", mappings.getGroups("SHIB-EP-ENTITLEMENT", "urn:mace:example.edu:new")[0]);
+        assertEquals("group1", mappings.getGroups("SHIB-EP-ENTITLEMENT", "urn:mace:example.edu:group1")[0]);
+    }
+}
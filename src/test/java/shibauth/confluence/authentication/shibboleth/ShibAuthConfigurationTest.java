@@ -0,0 +1,59 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ShibAuthConfigurationTest extends TestCase {
+
+    public void testFrozenConfigurationIsImmutable() {
+        ShibAuthConfiguration config = new ShibAuthConfiguration();
+        config.setCreateUsers(true);
+        config.setDefaultRoles(new ArrayList(Arrays.asList(new String[]{"confluence-users"})));
+
+        List mappers = new ArrayList();
+        mappers.add(new GroupMapper("staff", "staff", "cs100", true));
+        Map groupMappings = new HashMap();
+        groupMappings.put("SHIB-EP-ENTITLEMENT", mappers);
+        config.setGroupMappings(groupMappings);
+
+        config.freeze();
+        assertTrue(config.isFrozen());
+        assertTrue(config.isCreateUsers());
+
+        try {
+            config.setCreateUsers(false);
+            fail("setter of a frozen configuration");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        try {
+            config.getDefaultRoles().add("confluence-administrators");
+            fail("default roles of a frozen configuration");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        Collection frozenMappers = config.getGroupMappings("SHIB-EP-ENTITLEMENT");
+        assertEquals(1, frozenMappers.size());
+        try {
+            frozenMappers.clear();
+            fail("group mappings of a frozen configuration");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        assertNotNull(config.getGroupMapperIndex("SHIB-EP-ENTITLEMENT"));
+        assertTrue(config.isCreateUsers());
+    }
+
+    public void testLoadedConfigurationIsFrozen() {
+        assertTrue(ShibAuthConfigLoader.getShibAuthConfiguration(null).isFrozen());
+    }
+}
@@ -0,0 +1,56 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest extends TestCase {
+
+    public void testOneLeaderPerKey() throws Exception {
+        final SingleFlight singleFlight = new SingleFlight();
+        final AtomicInteger leaders = new AtomicInteger();
+        final AtomicInteger created = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(30);
+
+        for (int i = 0; i < 30; i++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        if (singleFlight.begin("jdoe", 5000)) {
+                            try {
+                                leaders.incrementAndGet();
+                                Thread.sleep(500);
+                                created.incrementAndGet();
+                            } finally {
+                                singleFlight.finish("jdoe");
+                            }
+                        } else {
+                            // the user was created by the time the others go on
+                            assertEquals(1, created.get());
+                        }
+                    } catch (Throwable t) {
+                        leaders.addAndGet(100);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, leaders.get());
+        assertEquals(0, singleFlight.size());
+
+        // the next one leads again
+        assertTrue(singleFlight.begin("jdoe", 0));
+        assertTrue(singleFlight.begin("asmith", 0));
+        assertFalse(singleFlight.begin("jdoe", 10));
+        singleFlight.finish("jdoe");
+        singleFlight.finish("asmith");
+    }
+}
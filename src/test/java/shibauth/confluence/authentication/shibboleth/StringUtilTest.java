@@ -0,0 +1,78 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class StringUtilTest extends TestCase {
+
+    private static List splitWithRegex(String s) {
+        List results = new ArrayList();
+        String[] terms = s.split("[,;]");
+        for (int i = 0; i < terms.length; i++) {
+            String term = terms[i].trim();
+            if (term.length() > 0) {
+                results.add(term);
+            }
+        }
+        return results;
+    }
+
+    public void testSplitSameAsRegexSplit() {
+        Random random = new Random(4711);
+        String alphabet = "ab ,;\t";
+
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder value = new StringBuilder();
+            for (int j = random.nextInt(10); j > 0; j--) {
+                value.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            String v = value.toString();
+            assertEquals(v, splitWithRegex(v), StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(v));
+        }
+
+        assertTrue(StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(null).isEmpty());
+    }
+
+    public void testSplitEscapedSemicolon() {
+        assertEquals(Arrays.asList(new String[]{"a;b", "c"}),
+                StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon("a\\;b;c"));
+        assertEquals(Arrays.asList(new String[]{";", "x\\y", "z\\"}),
+                StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(" \\; ,x\\y;z\\"));
+    }
+
+    public void testSplitIntoReusedCollection() {
+        List out = new ArrayList();
+        StringUtil.addNonEmptyStringsDelimitedByCommaOrSemicolon("staff;member", out);
+        StringUtil.addNonEmptyStringsDelimitedByCommaOrSemicolon(new StringBuilder(" faculty "), out);
+        assertEquals(Arrays.asList(new String[]{"staff", "member", "faculty"}), out);
+    }
+
+    public void testConvertToUTF8SameAsDecodingLowBytes() throws Exception {
+        Random random = new Random(4711);
+        String alphabet = "aZ9 -\u00c3\u00a4\u00b6\u00c5\u00a1\u00e2\u0082\u00ac\u0100\u20ac";
+
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder value = new StringBuilder();
+            for (int j = random.nextInt(600); j > 0; j--) {
+                value.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            String v = value.toString();
+            byte[] bytes = new byte[v.length()];
+            for (int j = 0; j < v.length(); j++) {
+                bytes[j] = (byte) v.charAt(j);
+            }
+            assertEquals(v, new String(bytes, "UTF-8"), StringUtil.convertToUTF8(v));
+        }
+
+        String ascii = "jdoe@example.edu";
+        assertSame(ascii, StringUtil.convertToUTF8(ascii));
+        assertEquals("J\u00e4rvinen", StringUtil.convertToUTF8("J\u00c3\u00a4rvinen"));
+        assertNull(StringUtil.convertToUTF8(null));
+    }
+}
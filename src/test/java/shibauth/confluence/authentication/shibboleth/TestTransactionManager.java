@@ -0,0 +1,120 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import org.springframework.transaction.NestedTransactionNotSupportedException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.UnexpectedRollbackException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One physical transaction at a time that rejects PROPAGATION_NESTED, like Confluence's Hibernate
+ * transaction manager.
+ */
+class TestTransactionManager implements PlatformTransactionManager {
+    final List written = new ArrayList();
+
+    final List committed = new ArrayList();
+
+    private boolean active;
+
+    private boolean rollbackOnly;
+
+    /**
+     * Fail the commits of new transactions, e.g. because the database went away
+     */
+    boolean failCommits;
+
+    /**
+     * A write that fails the commit of the transaction it is in, like a Crowd write that fails when the
+     * session is flushed
+     */
+    Object failAtCommit;
+
+    int transactions;
+
+    public TransactionStatus getTransaction(TransactionDefinition definition) {
+        if (!active) {
+            active = true;
+            rollbackOnly = false;
+            written.clear();
+            transactions++;
+            return new Status(true);
+        }
+        if (definition.getPropagationBehavior() == TransactionDefinition.PROPAGATION_NESTED) {
+            throw new NestedTransactionNotSupportedException("expected");
+        }
+        return new Status(false);
+    }
+
+    public void commit(TransactionStatus status) {
+        if (!status.isNewTransaction()) {
+            return;
+        }
+        active = false;
+        if (failCommits) {
+            written.clear();
+            throw new IllegalStateException("commit failed");
+        }
+        if (rollbackOnly || (failAtCommit != null && written.contains(failAtCommit))) {
+            written.clear();
+            throw new UnexpectedRollbackException("expected");
+        }
+        committed.addAll(written);
+        written.clear();
+    }
+
+    public void rollback(TransactionStatus status) {
+        if (status.isNewTransaction()) {
+            active = false;
+            written.clear();
+        } else {
+            rollbackOnly = true;
+        }
+    }
+
+    private class Status implements TransactionStatus {
+        private final boolean newTransaction;
+
+        Status(boolean newTransaction) {
+            this.newTransaction = newTransaction;
+        }
+
+        public boolean isNewTransaction() {
+            return newTransaction;
+        }
+
+        public boolean hasSavepoint() {
+            return false;
+        }
+
+        public void setRollbackOnly() {
+            rollbackOnly = true;
+        }
+
+        public boolean isRollbackOnly() {
+            return rollbackOnly;
+        }
+
+        public void flush() {
+        }
+
+        public boolean isCompleted() {
+            return false;
+        }
+
+        public Object createSavepoint() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void rollbackToSavepoint(Object savepoint) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void releaseSavepoint(Object savepoint) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}